@@ -0,0 +1,300 @@
+package io.ecx.examples.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONValue;
+
+import io.ecx.examples.directory.AsyncLogger;
+import io.ecx.examples.directory.Directory;
+
+/**
+ * A client that asks for listings without waiting for them, so one thread can have hundreds in flight at once.
+ *
+ * <p>
+ * Requests are shared out in turn over a few connections. Each request carries an id, and a thread for each
+ * connection reads the replies as they come back, in whatever order the server finishes them, and completes the
+ * future with the matching id. The server works on up to 64 listings of a connection at a time and stops reading
+ * the connection beyond that, so past that point requests wait in the socket buffers until earlier listings have been
+ * sent. A connection is opened by the first request sent over it, and opened again by the next if it fails. The
+ * requests in flight on a connection that fails, or is closed, complete with a {@link ResponseException}.
+ * </p>
+ * <p>
+ * Each request has a deadline, a request not answered by then completes with a {@link ResponseException} and its
+ * reply is ignored if it comes later. A reply that matches no request waiting, such as one the server couldn't give
+ * an id, is logged and ignored, the others on the connection carry on and the request it answered fails at its
+ * deadline.
+ * </p>
+ * <p>
+ * Futures are completed by the reading threads, so stages added with the non-async methods of
+ * {@link CompletableFuture} run on them and hold up the replies behind, anything slow should use the async methods.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class AsyncClient implements Closeable {
+    /** The default number of connections. */
+    public static final int DEFAULT_CONNECTIONS = 2;
+    /** The default longest wait for a reply, in milliseconds. */
+    public static final long DEFAULT_TIMEOUT = 30000L;
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+    // Fails the requests not answered in time, shared by all the clients.
+    private static final ScheduledThreadPoolExecutor DEADLINES = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "AsyncClient deadlines");
+
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // Most requests are answered, so their deadlines are cancelled rather than left to expire.
+        DEADLINES.setRemoveOnCancelPolicy(true);
+    }
+
+    private final boolean binary;
+    private final long timeout;
+    private final Channel[] channels;
+    // Ids start at one, zero is no id.
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Constructor, with the default number of connections.
+     *
+     * @param binary
+     *            true to ask the server for the compact binary format.
+     */
+    public AsyncClient(boolean binary) {
+        this(binary, DEFAULT_CONNECTIONS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param binary
+     *            true to ask the server for the compact binary format.
+     * @param connections
+     *            the most connections to open.
+     */
+    public AsyncClient(boolean binary, int connections) {
+        this(binary, connections, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param binary
+     *            true to ask the server for the compact binary format.
+     * @param connections
+     *            the most connections to open.
+     * @param timeout
+     *            the longest to wait for a reply to a request, in milliseconds.
+     */
+    public AsyncClient(boolean binary, int connections, long timeout) {
+        this.binary = binary;
+        this.timeout = timeout;
+        channels = new Channel[Math.max(connections, 1)];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = new Channel();
+        }
+    }
+
+    /**
+     * Ask for a directory from the server, the request is sent before this returns but the listing isn't waited for.
+     *
+     * @param path
+     *            the path of the directory to be listed on the server.
+     * @return the directory when it arrives, or a {@link ResponseException} if there was a problem or it didn't
+     *         arrive in the client's timeout.
+     */
+    public CompletableFuture<Directory> getDirectoryAsync(String path) {
+        return getDirectoryAsync(path, timeout);
+    }
+
+    /**
+     * Ask for a directory from the server with a timeout of its own, the request is sent before this returns but the
+     * listing isn't waited for.
+     *
+     * @param path
+     *            the path of the directory to be listed on the server.
+     * @param timeout
+     *            the longest to wait for the reply, in milliseconds.
+     * @return the directory when it arrives, or a {@link ResponseException} if there was a problem or it didn't
+     *         arrive in time.
+     */
+    public CompletableFuture<Directory> getDirectoryAsync(String path, long timeout) {
+        CompletableFuture<Directory> future = new CompletableFuture<>();
+
+        if (closed) {
+            future.completeExceptionally(new ResponseException("Client closed!"));
+            return future;
+        }
+
+        long id = ids.incrementAndGet();
+
+        channels[Math.floorMod(next.getAndIncrement(), channels.length)].send(id,
+                "{\"directory\":\"" + JSONValue.escape(path) + "\",\"id\":" + id + "}", future, timeout);
+        return future;
+    }
+
+    /**
+     * Get the number of requests sent but not yet answered.
+     *
+     * @return the number in flight.
+     */
+    public int getInFlight() {
+        int count = 0;
+
+        for (Channel channel : channels) {
+            count += channel.getInFlight();
+        }
+        return count;
+    }
+
+    /**
+     * Close the connections once the requests in flight have been answered, requests made after this fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Channel channel : channels) {
+            channel.close();
+        }
+    }
+
+    /*
+     * One of the connections to share requests over, the connection itself is replaced if it fails.
+     */
+    private class Channel {
+        // The connection open, or null if there isn't one.
+        private Link link;
+
+        synchronized void send(long id, String request, CompletableFuture<Directory> future, long timeout) {
+            try {
+                if (link == null) {
+                    link = new Link(this, new Connection(binary));
+                    link.start();
+                }
+
+                Link sent = link;
+                // Waiting before it is sent, the reply may come back before send() returns.
+                sent.pending.put(id, future);
+
+                ScheduledFuture<?> deadline = DEADLINES.schedule(() -> {
+                    // Only if the reply hasn't been taken, one that comes later is then ignored.
+                    if (sent.pending.remove(id, future)) {
+                        future.completeExceptionally(new ResponseException("Timed out!"));
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+
+                future.whenComplete((directory, e) -> deadline.cancel(false));
+                link.connection.send(request);
+            } catch (ResponseException e) {
+                future.completeExceptionally(e);
+            } catch (IOException e) {
+                link.pending.remove(id);
+                future.completeExceptionally(new ResponseException(e));
+                // The reading thread fails the rest.
+                link.connection.close();
+            }
+        }
+
+        synchronized int getInFlight() {
+            return link != null ? link.pending.size() : 0;
+        }
+
+        synchronized void close() {
+            if (link != null) {
+                try {
+                    // The server answers the requests it has first, and the reading thread closes the connection.
+                    link.connection.send("{\"command\":\"bye\"}");
+                } catch (IOException e) {
+                    link.connection.close();
+                }
+                link = null;
+            }
+        }
+
+        /*
+         * Forget a connection that has failed or is closing, after this no more requests are sent over it.
+         */
+        synchronized void forget(Link failed) {
+            if (link == failed) {
+                link = null;
+            }
+        }
+    }
+
+    /*
+     * A connection, the requests waiting for replies by id and the thread reading them.
+     */
+    private static class Link implements Runnable {
+        private final Channel channel;
+        private final Connection connection;
+        private final ConcurrentHashMap<Long, CompletableFuture<Directory>> pending = new ConcurrentHashMap<>();
+
+        Link(Channel channel, Connection connection) {
+            this.channel = channel;
+            this.connection = connection;
+        }
+
+        void start() {
+            Thread reader = new Thread(this, "AsyncClient reader");
+
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        @Override
+        public void run() {
+            ResponseException failure;
+
+            try {
+                for (;;) {
+                    Response response = connection.receive();
+
+                    if (response.getType() == Response.RESPONSE_TYPE.COMMAND
+                            && response.getCommandType() == Response.COMMAND_TYPE.BYE) {
+                        failure = new ResponseException("Client closed!");
+                        break;
+                    }
+
+                    CompletableFuture<Directory> future = pending.remove(response.getId());
+
+                    if (future == null) {
+                        // Timed out, or without an id to match, so there is nothing waiting to fail.
+                        LOG.warn("Unexpected reply", response.getType() == Response.RESPONSE_TYPE.EXCEPTION
+                                ? response.getException().getMessage() : "id " + response.getId());
+                    } else if (response.getType() == Response.RESPONSE_TYPE.DIRECTORY) {
+                        future.complete(response.getDirectory());
+                    } else if (response.getType() == Response.RESPONSE_TYPE.EXCEPTION) {
+                        future.completeExceptionally(response.getException());
+                    } else {
+                        future.completeExceptionally(new ResponseException("Unexpected reply!"));
+                    }
+                }
+            } catch (ResponseException e) {
+                failure = e;
+            }
+
+            connection.close();
+            // Once forgotten nothing more is added, so everything left can be failed.
+            channel.forget(this);
+            for (Iterator<CompletableFuture<Directory>> futures = pending.values().iterator(); futures.hasNext();) {
+                CompletableFuture<Directory> future = futures.next();
+
+                futures.remove();
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package io.ecx.examples.client;
+
+import io.ecx.examples.directory.Directory;
+
+/**
+ * Receives the directories of a batch as the server lists them, see
+ * {@link Client#listDirectories(java.util.Collection, boolean, BatchListener)}. The calls come one at a time on the
+ * thread that asked for the batch, in the order the server finishes the directories.
+ *
+ * @author Paul Hounslow
+ */
+public interface BatchListener {
+
+    /**
+     * A directory has been listed.
+     *
+     * @param path
+     *            the path as it was asked for.
+     * @param directory
+     *            the listing.
+     */
+    void listed(String path, Directory directory);
+
+    /**
+     * A directory couldn't be listed.
+     *
+     * @param path
+     *            the path as it was asked for.
+     * @param exception
+     *            the server's reason.
+     */
+    void failed(String path, ResponseException exception);
+}
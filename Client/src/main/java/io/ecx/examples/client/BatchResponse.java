@@ -0,0 +1,86 @@
+package io.ecx.examples.client;
+
+import org.json.simple.JSONObject;
+
+import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryDelta;
+
+public class BatchResponse implements Response {
+
+    private final int count;
+    private final int failed;
+    private final long id;
+
+    public BatchResponse(JSONObject input) {
+        this(((Long)input.get("batch")).intValue(), ((Long)input.get("failed")).intValue(),
+                input.containsKey("id") ? (Long)input.get("id") : NO_ID);
+    }
+
+    public BatchResponse(int count, int failed, long id) {
+        this.count = count;
+        this.failed = failed;
+        this.id = id;
+    }
+
+    @Override
+    public RESPONSE_TYPE getType() {
+        return Response.RESPONSE_TYPE.BATCH;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Get the number of directories in the batch, each has been sent as a listing or an exception.
+     * @return the number of directories.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the number of directories in the batch that couldn't be listed.
+     * @return the number sent as exceptions.
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    @Override
+    public COMMAND_TYPE getCommandType() throws ResponseException {
+        throw new ResponseException("Not appropriate for batch!");
+    }
+
+    @Override
+    public Directory getDirectory() throws ResponseException {
+        throw new ResponseException("Not appropriate for batch!");
+    }
+
+    @Override
+    public DirectoryDelta getDelta() throws ResponseException {
+        throw new ResponseException("Not appropriate for batch!");
+    }
+
+    @Override
+    public long getVersion() throws ResponseException {
+        throw new ResponseException("Not appropriate for batch!");
+    }
+
+    @Override
+    public String getCursor() throws ResponseException {
+        throw new ResponseException("Not appropriate for batch!");
+    }
+
+    @Override
+    public String getPath() throws ResponseException {
+        throw new ResponseException("Not appropriate for batch!");
+    }
+
+    @Override
+    public ResponseException getException() throws ResponseException {
+        throw new ResponseException("Not appropriate for batch!");
+    }
+
+}
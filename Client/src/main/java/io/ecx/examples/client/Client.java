@@ -1,14 +1,18 @@
 package io.ecx.examples.client;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-import org.json.simple.parser.ParseException;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 
 import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryQuery;
 
 /**
  * A Simple directory client to demonstrate networking and JSON.
@@ -16,7 +20,9 @@ import io.ecx.examples.directory.Directory;
  * The client requests a directory listing from a server.
  * </p>
  * <p>
- * All communication is done using JSON.
+ * All communication is done using JSON, encoded as UTF-8. Listings are read with the
+ * {@link io.ecx.examples.directory.DirectoryCodec} selected by the <code>io.ecx.examples.codec</code> system
+ * property.
  * </p>
  * <p>
  * The messages that may be received from the server are:
@@ -24,7 +30,15 @@ import io.ecx.examples.directory.Directory;
  * <ol>
  * <li>command: <i>&lt;cmd&gt;</i></li>
  * <li>dir <i>&lt;directory&gt;</i> the directory listing.</li>
+ * <li>delta <i>&lt;delta&gt;</i> the changes to a listing the client holds.</li>
+ * <li>notModified: true - the listing the client holds is current.</li>
  * <li>exception: <i>&lt;message&gt;</i></li>
+ * <li>exception: <i>&lt;message&gt;</i>, overloaded: true - the server was too busy, thrown as an
+ * {@link OverloadedException}.</li>
+ * <li>batch: <i>&lt;count&gt;</i>, failed: <i>&lt;failed&gt;</i> the end of a batch.</li>
+ * <li>stream: <i>&lt;path&gt;</i> the start of a streamed listing.</li>
+ * <li>entries: <i>&lt;entries&gt;</i> a batch of the entries of a streamed listing.</li>
+ * <li>streamed: <i>&lt;count&gt;</i>, batches: <i>&lt;batches&gt;</i> the end of a streamed listing.</li>
  * <ol>
  *
  * <p>
@@ -37,6 +51,8 @@ import io.ecx.examples.directory.Directory;
  * <li>hello - communication has been established and the server is ready to receive commands.</li>
  * <li>bye - the communication has ended and the socket will be closed. Received in response the a 'bye' command sent by
  * the client.</li>
+ * <li>stats - the server's stats, received in response to a 'stats' command.</li>
+ * <li>pong - received in response to a 'ping' command.</li>
  * </ol>
  * <p>
  * <i>&lt;directory&gt;</i> is the directory listing.
@@ -44,6 +60,10 @@ import io.ecx.examples.directory.Directory;
  * <p>
  * <i>&lt;message&gt;</i> is the error message.
  * </p>
+ * <p>
+ * The listings and exceptions for the directories of a batch carry path: <i>&lt;dir&gt;</i> as it was asked for, and
+ * come in the order the server finishes them. The batch ends with the number of directories and how many failed.
+ * </p>
  *
  * <p>
  * The client may send the following to the server:
@@ -51,7 +71,15 @@ import io.ecx.examples.directory.Directory;
  * <ol>
  * <li>command: <i>&lt;cmd&gt;</i></li>
  * <li>directory: <i>&lt;dir&gt;</i></li>
+ * <li>directory: <i>&lt;dir&gt;</i>, since: <i>&lt;version&gt;</i></li>
+ * <li>directory: <i>&lt;dir&gt;</i>, query: <i>&lt;query&gt;</i></li>
+ * <li>directory: <i>&lt;dir&gt;</i>, stream: <i>&lt;size&gt;</i></li>
+ * <li>directories: [<i>&lt;dir&gt;</i>, ...]</li>
  * <ol>
+ * <p>
+ * Any message may also carry an id: <i>&lt;id&gt;</i>, a positive integer sent back with its reply. Listings asked for
+ * with ids are answered together and may come back in any order.
+ * </p>
  *
  * <p>
  * Where:
@@ -63,24 +91,50 @@ import io.ecx.examples.directory.Directory;
  * <li>hello - sent in response to a connection being opened. Once the client receives the 'hello' command it knows it
  * can send messages to the server.</li>
  * <li>bye - sent in response to a 'bye' command from the client before the connection is closed.</li>
+ * <li>ping - sent to check a pooled connection is still good before it is used again.</li>
  * </ol>
  * <p>
  * <i>&lt;dir&gt;</i> is the directory to list.
  * </p>
+ * <p>
+ * <i>&lt;version&gt;</i> is the version of the listing the client holds, sent back with each listing or delta.
+ * </p>
+ * <p>
+ * <i>&lt;query&gt;</i> is the filter, sort and limit for the entries to send, see {@link DirectoryQuery}.
+ * </p>
+ * <p>
+ * <i>&lt;size&gt;</i> is the most entries in each batch of a streamed listing, the server sends each batch as soon as
+ * it has read it.
+ * </p>
  *
  * @author Paul Hounslow
  *
  */
 public class Client {
     public static final int PORT_NUM = 9999;
+    // The most listings asked for but not yet got on one connection, below the limit the server reads ahead.
+    private static final int MAX_PIPELINED = 32;
+    // The most directories asked for in one batch message, keeping it well under the longest message a server reads.
+    private static final int BATCH_SIZE = 1000;
     private final String path;
+    private final boolean binary;
+    // The connections to use for listings, or null to open one for each.
+    private final ConnectionPool pool;
+    // The listings already got, or null to fetch each one.
+    private final DirectoryCache cache;
+    // The listing last got by refreshDirectory() and its version.
+    private Directory lastDirectory;
+    private long version = Response.NO_VERSION;
 
     public static void main(String[] args) throws IOException, ResponseException {
         if(args.length == 1) {
             Client client = new Client(args[0]);
             client.getDirectory().printLong(System.out);
+        } else if(args.length == 2 && "-b".equals(args[0])) {
+            Client client = new Client(args[1], true);
+            client.getDirectory().printLong(System.out);
         } else {
-            System.err.println("Client\nUsage: Client <directory>");
+            System.err.println("Client\nUsage: Client [-b] <directory>");
         }
     }
 
@@ -90,38 +144,318 @@ public class Client {
      * @param path the path of the directory to be listed on the server.
      */
     public Client(String path) {
+        this(path, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param path the path of the directory to be listed on the server.
+     * @param binary true to ask the server for the compact binary format, servers that don't know it send JSON.
+     */
+    public Client(String path, boolean binary) {
+        this(path, binary, null, null);
+    }
+
+    /**
+     * Constructor for a client that keeps the listings it gets, and uses them again until they are due to be
+     * revalidated with the server.
+     *
+     * @param path the path of the directory to be listed on the server.
+     * @param binary true to ask the server for the compact binary format.
+     * @param cache the listings already got, may be shared with other clients.
+     */
+    public Client(String path, boolean binary, DirectoryCache cache) {
+        this(path, binary, null, cache);
+    }
+
+    /**
+     * Constructor for a client that gets listings over pooled connections, kept open between requests and shared
+     * with the other clients using the pool.
+     *
+     * @param path the path of the directory to be listed on the server.
+     * @param pool the connections to use.
+     */
+    public Client(String path, ConnectionPool pool) {
+        this(path, pool.isBinary(), pool, null);
+    }
+
+    /**
+     * Constructor for a client that gets listings over pooled connections, and keeps them until they are due to be
+     * revalidated with the server.
+     *
+     * @param path the path of the directory to be listed on the server.
+     * @param pool the connections to use.
+     * @param cache the listings already got, may be shared with other clients.
+     */
+    public Client(String path, ConnectionPool pool, DirectoryCache cache) {
+        this(path, pool.isBinary(), pool, cache);
+    }
+
+    private Client(String path, boolean binary, ConnectionPool pool, DirectoryCache cache) {
         this.path = path;
+        this.binary = binary;
+        this.pool = pool;
+        this.cache = cache;
     }
 
     /**
-     * Get the directory specified in the constructor from the server.
+     * Get the directory specified in the constructor from the server, or from the cache if the client has one and the
+     * listing there is still fresh or the server says it is current.
      * @return the directory
      * @throws ResponseException if there was a problem.
      */
     public Directory getDirectory() throws ResponseException {
-        Directory directory = null;
+        if (cache == null) {
+            return request("{\"directory\":\"" + JSONValue.escape(path) + "\"}").getDirectory();
+        }
+
+        DirectoryCache.Cached cached = cache.get(path);
+
+        if (cached != null && cached.isFresh()) {
+            return cached.getDirectory();
+        }
+
+        Response response = request("{\"directory\":\"" + JSONValue.escape(path) + "\",\"since\":"
+                + (cached != null ? cached.getVersion() : Response.NO_VERSION) + "}");
+        Directory directory;
+
+        switch (response.getType()) {
+        case NOT_MODIFIED:
+            if (cached == null) {
+                throw new ResponseException("No listing to keep!");
+            }
+            cache.revalidate(path, cached);
+            return cached.getDirectory();
+        case DELTA:
+            if (cached == null) {
+                throw new ResponseException("No listing to apply the delta to!");
+            }
+            directory = response.getDelta().apply(cached.getDirectory());
+            break;
+        default:
+            directory = response.getDirectory();
+            break;
+        }
+        cache.put(path, directory, response.getVersion());
+
+        return directory;
+    }
+
+    /**
+     * Get the entries of the directory specified in the constructor that match a query, the server filters, sorts and
+     * limits them so only those are sent.
+     * @param query the query.
+     * @return the matching entries.
+     * @throws ResponseException if there was a problem, or the server didn't accept the query.
+     */
+    public Directory getDirectory(DirectoryQuery query) throws ResponseException {
+        return request("{\"directory\":\"" + JSONValue.escape(path) + "\",\"query\":" + query.toJSONString() + "}")
+                .getDirectory();
+    }
+
+    /**
+     * Get the directory specified in the constructor from the server, fetching only the changes since it was last got
+     * by this method if the server still knows them.
+     * @return the directory, a new listing each time.
+     * @throws ResponseException if there was a problem.
+     */
+    public Directory refreshDirectory() throws ResponseException {
+        Response response = request("{\"directory\":\"" + JSONValue.escape(path) + "\",\"since\":" + version + "}");
+
+        if (response.getType() == Response.RESPONSE_TYPE.NOT_MODIFIED) {
+            if (lastDirectory == null) {
+                throw new ResponseException("No listing to keep!");
+            }
+        } else if (response.getType() == Response.RESPONSE_TYPE.DELTA) {
+            if (lastDirectory == null) {
+                throw new ResponseException("No listing to apply the delta to!");
+            }
+            lastDirectory = response.getDelta().apply(lastDirectory);
+        } else {
+            lastDirectory = response.getDirectory();
+        }
+        version = response.getVersion();
+
+        return lastDirectory;
+    }
+
+    /**
+     * Get the directory specified in the constructor from the server a page at a time, over one connection.
+     * @param limit the maximum number of entries on a page.
+     * @return the pages, in name order.
+     * @throws ResponseException if there was a problem getting the first page.
+     */
+    public PageIterator getPages(int limit) throws ResponseException {
+        return new PageIterator(path, limit, binary);
+    }
+
+    /**
+     * Get the directory specified in the constructor from the server in batches, sent as the server reads the
+     * directory, so the first entries arrive without waiting for the rest.
+     * @param batchSize the most entries in a batch.
+     * @return the batches, in the order the server read the entries.
+     * @throws ResponseException if there was a problem starting the stream.
+     */
+    public StreamIterator streamDirectory(int batchSize) throws ResponseException {
+        return new StreamIterator(path, batchSize, binary);
+    }
+
+    /**
+     * Get several directories from the server over one connection, the requests are sent without waiting for the
+     * replies and the server works on them together.
+     * @param paths the paths of the directories to be listed on the server.
+     * @param binary true to ask the server for the compact binary format.
+     * @return the directories by path, in the order given.
+     * @throws ResponseException if there was a problem, or any of the directories couldn't be listed.
+     */
+    public static Map<String, Directory> getDirectories(Collection<String> paths, boolean binary)
+            throws ResponseException {
+        List<String> requested = new ArrayList<>(paths);
+        Map<Long, String> waiting = new HashMap<>();
+        Map<String, Directory> directories = new HashMap<>();
         ResponseException exception = null;
 
-        try (
-                Socket socket = new Socket("localhost", PORT_NUM);
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                ) {
+        try (Connection connection = new Connection(binary)) {
+            int sent = 0;
+
+            while (sent < requested.size() || !waiting.isEmpty()) {
+                if (sent < requested.size() && waiting.size() < MAX_PIPELINED) {
+                    String path = requested.get(sent++);
+                    // Ids start at one, zero is no id.
+                    long id = sent;
+
+                    waiting.put(id, path);
+                    connection.send("{\"directory\":\"" + JSONValue.escape(path) + "\",\"id\":" + id + "}");
+                    continue;
+                }
+
+                Response response = connection.receive();
+                String path = waiting.remove(response.getId());
+
+                if (path == null) {
+                    throw new ResponseException("Unexpected reply!");
+                } else if (response.getType() == Response.RESPONSE_TYPE.EXCEPTION) {
+                    if (exception == null) {
+                        exception = new ResponseException(path + ": " + response.getException().getMessage());
+                    }
+                } else {
+                    directories.put(path, response.getDirectory());
+                }
+            }
+            connection.send("{\"command\":\"bye\"}");
+            connection.receive();
+        } catch (IOException e) {
+            throw new ResponseException(e);
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+        // In the order asked for, not the order answered.
+        Map<String, Directory> ordered = new LinkedHashMap<>();
+
+        for (String path : requested) {
+            ordered.put(path, directories.get(path));
+        }
+        return ordered;
+    }
+
+    /**
+     * Get the server's stats: request counts and rates, cache hit ratio, and the percentiles of the times taken to
+     * scan, serialize and write listings.
+     * @return the stats as sent by the server.
+     * @throws ResponseException if there was a problem.
+     */
+    public static JSONObject getStats() throws ResponseException {
+        try (Connection connection = new Connection(false)) {
+            connection.send("{\"command\":\"stats\"}");
+
+            Response response = connection.receive();
+
+            if (response.getType() != Response.RESPONSE_TYPE.COMMAND
+                    || response.getCommandType() != Response.COMMAND_TYPE.STATS) {
+                throw new ResponseException("Expected stats!");
+            }
+            connection.send("{\"command\":\"bye\"}");
+            connection.receive();
+            return ((CommandResponse) response).getStats();
+        } catch (IOException e) {
+            throw new ResponseException(e);
+        }
+    }
+
+    /**
+     * List many directories over one connection, the server lists those in each batch message at the same time and
+     * sends each back as soon as it is ready.
+     * @param paths the paths of the directories to be listed on the server.
+     * @param binary true to ask the server for the compact binary format.
+     * @param listener receives each directory, or the reason it couldn't be listed.
+     * @throws ResponseException if there was a problem with the connection.
+     */
+    public static void listDirectories(Collection<String> paths, boolean binary, BatchListener listener)
+            throws ResponseException {
+        List<String> requested = new ArrayList<>(paths);
+
+        try (Connection connection = new Connection(binary)) {
+            for (int start = 0; start < requested.size(); start += BATCH_SIZE) {
+                List<String> batch = requested.subList(start, Math.min(start + BATCH_SIZE, requested.size()));
+                StringBuilder request = new StringBuilder("{\"directories\":[");
+
+                for (int i = 0; i < batch.size(); i++) {
+                    request.append(i > 0 ? ",\"" : "\"").append(JSONValue.escape(batch.get(i))).append('"');
+                }
+                connection.send(request.append("]}").toString());
+
+                Response response;
+
+                while ((response = connection.receive()).getType() != Response.RESPONSE_TYPE.BATCH) {
+                    switch (response.getType()) {
+                    case DIRECTORY:
+                        listener.listed(response.getPath(), response.getDirectory());
+                        break;
+                    case EXCEPTION:
+                        if (response.getPath() == null) {
+                            // The batch itself was refused.
+                            throw response.getException();
+                        }
+                        listener.failed(response.getPath(), response.getException());
+                        break;
+                    default:
+                        throw new ResponseException("Unexpected reply!");
+                    }
+                }
+            }
+            connection.send("{\"command\":\"bye\"}");
+            connection.receive();
+        } catch (IOException e) {
+            throw new ResponseException(e);
+        }
+    }
+
+    /*
+     * Send a request once the server says hello and get the listing, delta or not modified sent back.
+     */
+    private Response request(String request) throws ResponseException {
+        if (pool != null) {
+            return pooledRequest(request);
+        }
+
+        Response result = null;
+        ResponseException exception = null;
+
+        try (Connection connection = new Connection(binary)) {
             boolean done = false;
             Response response;
 
+            // The server has said hello.
+            connection.send(request);
             do {
-                String inputStr = in.readLine();
-                System.out.println("Client received: " + inputStr);
-
-                response = ResponseFactory.getResponse(inputStr);
+                response = connection.receive();
 
                 switch (response.getType()) {
                 case COMMAND:
                     switch (response.getCommandType()) {
-                    case HELLO:
-                        out.println("{\"directory\":\"" + path + "\"}");
-                        break;
                     case BYE:
                         done = true;
                         break;
@@ -130,12 +464,14 @@ public class Client {
                     }
                     break;
                 case DIRECTORY:
-                    directory = response.getDirectory();
-                    out.println("{\"command\":\"bye\"}");
+                case DELTA:
+                case NOT_MODIFIED:
+                    result = response;
+                    connection.send("{\"command\":\"bye\"}");
                     break;
                 case EXCEPTION:
                     exception = response.getException();
-                    out.println("{\"command\":\"bye\"}");
+                    connection.send("{\"command\":\"bye\"}");
                     break;
                 default:
                     throw new ResponseException();
@@ -143,13 +479,45 @@ public class Client {
             } while (!done);
         } catch (IOException e) {
             throw new ResponseException(e);
-        } catch (ParseException e) {
-            throw new ResponseException(e);
         }
 
         if(exception != null) {
             throw exception;
+        } else if(result == null) {
+            throw new ResponseException("No listing!");
+        }
+        return result;
+    }
+
+    /*
+     * Send a request over a pooled connection and get the listing, delta or not modified sent back, the connection is
+     * given back without saying bye. If anything goes wrong it is closed, as a reply may still be on its way.
+     */
+    private Response pooledRequest(String request) throws ResponseException {
+        Connection connection = pool.acquire();
+        boolean reusable = false;
+
+        try {
+            connection.send(request);
+
+            Response response = connection.receive();
+
+            switch (response.getType()) {
+            case DIRECTORY:
+            case DELTA:
+            case NOT_MODIFIED:
+                reusable = true;
+                return response;
+            case EXCEPTION:
+                reusable = true;
+                throw response.getException();
+            default:
+                throw new ResponseException();
+            }
+        } catch (IOException e) {
+            throw new ResponseException(e);
+        } finally {
+            pool.release(connection, reusable);
         }
-        return directory;
     }
 }
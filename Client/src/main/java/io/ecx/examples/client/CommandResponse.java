@@ -3,19 +3,38 @@ package io.ecx.examples.client;
 import org.json.simple.JSONObject;
 
 import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryDelta;
 
 public class CommandResponse implements Response {
 
     private final COMMAND_TYPE type;
+    private final long id;
+    private final JSONObject stats;
 
     public CommandResponse(JSONObject input) throws ResponseException {
-        String cmd = (String)input.get("command");
+        this((String)input.get("command"), input.containsKey("id") ? (Long)input.get("id") : NO_ID,
+                (JSONObject)input.get("stats"));
+    }
+
+    public CommandResponse(String cmd) throws ResponseException {
+        this(cmd, NO_ID);
+    }
 
+    public CommandResponse(String cmd, long id) throws ResponseException {
+        this(cmd, id, null);
+    }
 
+    public CommandResponse(String cmd, long id, JSONObject stats) throws ResponseException {
+        this.id = id;
+        this.stats = stats;
         if("bye".equalsIgnoreCase(cmd)) {
             type = COMMAND_TYPE.BYE;
         } else if("hello".equalsIgnoreCase(cmd)) {
             type = COMMAND_TYPE.HELLO;
+        } else if("stats".equalsIgnoreCase(cmd)) {
+            type = COMMAND_TYPE.STATS;
+        } else if("pong".equalsIgnoreCase(cmd)) {
+            type = COMMAND_TYPE.PONG;
         } else {
             throw new ResponseException("Unknown command: " + cmd);
         }
@@ -26,16 +45,49 @@ public class CommandResponse implements Response {
         return Response.RESPONSE_TYPE.COMMAND;
     }
 
+    @Override
+    public long getId() {
+        return id;
+    }
+
     @Override
     public COMMAND_TYPE getCommandType() {
         return type;
     }
 
+    /**
+     * Get the server's stats sent with a stats command.
+     * @return the stats, or null for other commands.
+     */
+    public JSONObject getStats() {
+        return stats;
+    }
+
     @Override
     public Directory getDirectory() throws ResponseException {
         throw new ResponseException("Not appropriate for command!");
     }
 
+    @Override
+    public DirectoryDelta getDelta() throws ResponseException {
+        throw new ResponseException("Not appropriate for command!");
+    }
+
+    @Override
+    public long getVersion() throws ResponseException {
+        throw new ResponseException("Not appropriate for command!");
+    }
+
+    @Override
+    public String getCursor() throws ResponseException {
+        throw new ResponseException("Not appropriate for command!");
+    }
+
+    @Override
+    public String getPath() throws ResponseException {
+        throw new ResponseException("Not appropriate for command!");
+    }
+
     @Override
     public ResponseException getException() throws ResponseException {
         throw new ResponseException("Not appropriate for command!");
@@ -0,0 +1,307 @@
+package io.ecx.examples.client;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import io.ecx.examples.directory.AsyncLogger;
+import io.ecx.examples.directory.BinaryCodec;
+import io.ecx.examples.directory.Directory;
+
+/**
+ * A connection to the server, once it has said hello.
+ *
+ * <p>
+ * Messages are lines of JSON unless the binary format is asked for. Then the client replies to the server's hello with
+ * its own, naming the format, and if the server agrees every message after that in either direction is a
+ * {@link BinaryCodec} frame. A server that doesn't know the format sends back an empty line and the connection keeps
+ * to lines of JSON.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+class Connection implements Closeable {
+    private static final BinaryCodec BINARY_CODEC = new BinaryCodec();
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final LineInputStream in;
+    private final boolean binary;
+
+    /**
+     * Constructor, connects and waits for the server to say hello.
+     *
+     * @param binary
+     *            true to ask for the binary format.
+     * @throws ResponseException
+     *             if there was a problem.
+     */
+    Connection(boolean binary) throws ResponseException {
+        try {
+            socket = new Socket("localhost", Client.PORT_NUM);
+        } catch (IOException e) {
+            throw new ResponseException(e);
+        }
+
+        try {
+            out = new BufferedOutputStream(socket.getOutputStream());
+            // Lines and frames are read from the same buffer, so nothing is lost when the format changes.
+            in = new LineInputStream(socket.getInputStream());
+
+            Response hello = ResponseFactory.getResponse(readLine());
+            if (hello.getType() != Response.RESPONSE_TYPE.COMMAND
+                    || hello.getCommandType() != Response.COMMAND_TYPE.HELLO) {
+                throw new ResponseException("Expected hello!");
+            }
+
+            if (binary) {
+                sendLine("{\"command\":\"hello\",\"format\":\"" + BinaryCodec.NAME + "\"}");
+
+                String ack = readLine();
+                this.binary = !ack.isEmpty()
+                        && BinaryCodec.NAME.equals(((JSONObject) new JSONParser().parse(ack)).get("format"));
+            } else {
+                this.binary = false;
+            }
+        } catch (IOException | ParseException e) {
+            close();
+            throw new ResponseException(e);
+        } catch (ResponseException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Check if the server agreed to the binary format.
+     *
+     * @return true if messages are sent as frames.
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Send a JSON message.
+     *
+     * @param message
+     *            the message.
+     * @throws IOException
+     *             if the message can't be sent.
+     */
+    void send(String message) throws IOException {
+        if (binary) {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+
+            BinaryCodec.writeFrame(out, BinaryCodec.FRAME_JSON, bytes, 0, bytes.length);
+            out.flush();
+        } else {
+            sendLine(message);
+        }
+    }
+
+    /**
+     * Wait for the next message from the server.
+     *
+     * @return the message.
+     * @throws ResponseException
+     *             if the message can't be read or isn't understood.
+     */
+    Response receive() throws ResponseException {
+        try {
+            if (!binary) {
+                return ResponseFactory.getResponse(readLine());
+            }
+
+            BinaryCodec.Frame frame = BinaryCodec.readFrame(in);
+            if (frame == null) {
+                throw new ResponseException("Connection closed!");
+            } else if (frame.getType() == BinaryCodec.FRAME_LISTING || frame.getType() == BinaryCodec.FRAME_LISTING_ID
+                    || frame.getType() == BinaryCodec.FRAME_BATCH_LISTING) {
+                LOG.info("Client received", "listing of " + frame.getPayload().length + " bytes");
+                return readListing(frame.getPayload(), frame.getType());
+            } else if (frame.getType() == BinaryCodec.FRAME_ENTRIES) {
+                LOG.info("Client received", "entries of " + frame.getPayload().length + " bytes");
+                return readEntries(frame.getPayload());
+            } else if (frame.getType() == BinaryCodec.FRAME_JSON) {
+                String inputStr = new String(frame.getPayload(), StandardCharsets.UTF_8);
+
+                LOG.info("Client received", inputStr);
+                return ResponseFactory.getResponse(inputStr);
+            }
+            throw new ResponseException("Unknown frame: " + frame.getType());
+        } catch (IOException | ParseException e) {
+            throw new ResponseException(e);
+        }
+    }
+
+    /**
+     * Check that the connection is still good, the server answers a ping with a pong.
+     *
+     * @param timeout
+     *            the longest to wait for the pong, in milliseconds.
+     * @return true if the pong came back in time, if not the connection shouldn't be used again.
+     */
+    boolean ping(int timeout) {
+        try {
+            socket.setSoTimeout(timeout);
+            try {
+                send("{\"command\":\"ping\"}");
+
+                Response response = receive();
+
+                return response.getType() == Response.RESPONSE_TYPE.COMMAND
+                        && response.getCommandType() == Response.COMMAND_TYPE.PONG;
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        } catch (IOException | ResponseException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /*
+     * Read a listing frame, the id and path if it has them, the version, the cursor and the listing.
+     */
+    private static Response readListing(byte[] payload, int frameType) throws IOException {
+        ByteArrayInputStream input = new ByteArrayInputStream(payload);
+        long id = frameType != BinaryCodec.FRAME_LISTING ? BinaryCodec.readVarint(input) : Response.NO_ID;
+        String path = frameType == BinaryCodec.FRAME_BATCH_LISTING ? BinaryCodec.readString(input) : null;
+        long version = BinaryCodec.readVarint(input);
+        String cursor = BinaryCodec.readString(input);
+        int offset = payload.length - input.available();
+        Directory directory = BINARY_CODEC.read(payload, offset, payload.length - offset);
+
+        return new DirectoryResponse(directory, version, cursor, id, path);
+    }
+
+    /*
+     * Read a frame of the entries of a streamed listing, the id and the entries.
+     */
+    private static Response readEntries(byte[] payload) throws IOException {
+        ByteArrayInputStream input = new ByteArrayInputStream(payload);
+        long id = BinaryCodec.readVarint(input);
+        int offset = payload.length - input.available();
+
+        return new EntriesResponse(BINARY_CODEC.read(payload, offset, payload.length - offset), id);
+    }
+
+    private void sendLine(String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+        out.flush();
+    }
+
+    private String readLine() throws IOException {
+        String inputStr = in.readLine();
+
+        if (inputStr == null) {
+            throw new IOException("Connection closed!");
+        }
+        LOG.info("Client received", inputStr);
+        return inputStr;
+    }
+
+    /*
+     * A buffered stream that can also read lines of UTF-8 text, unsynchronized as it has one reader.
+     */
+    private static class LineInputStream extends InputStream {
+        private final InputStream in;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        private int limit;
+        private byte[] line = new byte[256];
+
+        LineInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? buffer[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            } else if (position == limit && len >= buffer.length) {
+                // Big reads skip the buffer.
+                return in.read(b, off, len);
+            } else if (!fill()) {
+                return -1;
+            }
+
+            int count = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return limit - position + in.available();
+        }
+
+        /*
+         * Read a line without its terminator, or null at the end of the stream.
+         */
+        String readLine() throws IOException {
+            int length = 0;
+
+            while (fill()) {
+                int end = position;
+
+                while (end < limit && buffer[end] != '\n') {
+                    end++;
+                }
+                if (length + end - position > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, length + end - position));
+                }
+                System.arraycopy(buffer, position, line, length, end - position);
+                length += end - position;
+
+                if (end < limit) {
+                    position = end + 1;
+                    return decode(length);
+                }
+                position = limit;
+            }
+            return length > 0 ? decode(length) : null;
+        }
+
+        private String decode(int length) {
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            return new String(line, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private boolean fill() throws IOException {
+            if (position == limit) {
+                position = 0;
+                limit = Math.max(in.read(buffer), 0);
+            }
+            return position < limit;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package io.ecx.examples.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps connections to the server open between requests, so a request only costs its own round trip rather than a
+ * new connection, the hello and the bye as well. One pool can be shared by any number of threads and clients.
+ *
+ * <p>
+ * A connection is used by one request at a time. A request takes an idle connection if there is one, the most
+ * recently used first, otherwise opens a new one while there are fewer than the maximum. Once the maximum are open a
+ * request waits for one to come back, up to the acquire timeout. A connection that has been idle for more than
+ * {@link #VALIDATE_AFTER} milliseconds is pinged before it is handed out, and dropped if the server doesn't answer.
+ * Connections idle for longer than the idle timeout are closed, as is any connection a request had a problem with.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class ConnectionPool implements Closeable {
+    /** The default most connections open at once. */
+    public static final int DEFAULT_MAX_SIZE = 8;
+    /** The default time a connection may be idle before it is closed, in milliseconds. */
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+    /** The default longest wait for a connection, in milliseconds. */
+    public static final long DEFAULT_ACQUIRE_TIMEOUT = 10000L;
+    /** A connection idle for longer than this is pinged before it is used, in milliseconds. */
+    public static final long VALIDATE_AFTER = 1000L;
+    // The longest wait for a pong, in milliseconds.
+    private static final int PING_TIMEOUT = 5000;
+
+    private final boolean binary;
+    private final int maxSize;
+    private final long idleTimeout;
+    private final long acquireTimeout;
+    // The idle connections, the most recently used first.
+    private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor;
+    // The connections open, idle and in use, and those being opened.
+    private int open;
+    private boolean closed;
+
+    /**
+     * Constructor with the default limits.
+     *
+     * @param binary
+     *            true to ask the server for the compact binary format.
+     */
+    public ConnectionPool(boolean binary) {
+        this(binary, DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT, DEFAULT_ACQUIRE_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param binary
+     *            true to ask the server for the compact binary format.
+     * @param maxSize
+     *            the most connections open at once.
+     * @param idleTimeout
+     *            the time a connection may be idle before it is closed, in milliseconds.
+     * @param acquireTimeout
+     *            the longest a request waits for a connection, in milliseconds.
+     */
+    public ConnectionPool(boolean binary, int maxSize, long idleTimeout, long acquireTimeout) {
+        this.binary = binary;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.acquireTimeout = acquireTimeout;
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ConnectionPool evictor");
+
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evict, idleTimeout / 2 + 1, idleTimeout / 2 + 1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Check if the pool's connections use the binary format.
+     *
+     * @return true if they ask for it.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Get the number of connections open, idle and in use.
+     *
+     * @return the number open.
+     */
+    public synchronized int getOpen() {
+        return open;
+    }
+
+    /**
+     * Get the number of idle connections.
+     *
+     * @return the number idle.
+     */
+    public synchronized int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * Close the idle connections, and the others as they are given back. Requests waiting for a connection fail.
+     */
+    @Override
+    public void close() {
+        ArrayDeque<Idle> closing;
+
+        synchronized (this) {
+            closed = true;
+            closing = new ArrayDeque<>(idle);
+            open -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        evictor.shutdownNow();
+        for (Idle entry : closing) {
+            sayBye(entry.connection);
+        }
+    }
+
+    /**
+     * Take a connection, an idle one or a new one, waiting for one to be given back if the maximum are open. It must
+     * be given back with {@link #release(Connection, boolean)}.
+     *
+     * @return the connection, the server has said hello.
+     * @throws ResponseException
+     *             if no connection could be had in time, or a new one couldn't be opened.
+     */
+    Connection acquire() throws ResponseException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(acquireTimeout);
+
+        for (;;) {
+            Idle entry = null;
+
+            synchronized (this) {
+                for (;;) {
+                    if (closed) {
+                        throw new ResponseException("Connection pool closed!");
+                    } else if (!idle.isEmpty()) {
+                        entry = idle.pop();
+                        break;
+                    } else if (open < maxSize) {
+                        open++;
+                        break;
+                    }
+
+                    long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+                    if (wait <= 0) {
+                        throw new ResponseException("Timed out waiting for a connection!");
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new ResponseException(e);
+                    }
+                }
+            }
+
+            if (entry == null) {
+                try {
+                    return new Connection(binary);
+                } catch (ResponseException | RuntimeException e) {
+                    drop();
+                    throw e;
+                }
+            } else if (System.nanoTime() - entry.since < TimeUnit.MILLISECONDS.toNanos(VALIDATE_AFTER)
+                    || entry.connection.ping(PING_TIMEOUT)) {
+                return entry.connection;
+            }
+            // The server has gone or closed it, try the next.
+            entry.connection.close();
+            drop();
+        }
+    }
+
+    /**
+     * Give back a connection taken by {@link #acquire()}.
+     *
+     * @param connection
+     *            the connection.
+     * @param reusable
+     *            true if the request finished cleanly, so nothing more is waiting to be read and the connection can
+     *            be used again, otherwise it is closed.
+     */
+    void release(Connection connection, boolean reusable) {
+        synchronized (this) {
+            if (reusable && !closed) {
+                idle.push(new Idle(connection));
+                notifyAll();
+                return;
+            }
+        }
+        if (reusable) {
+            sayBye(connection);
+        } else {
+            connection.close();
+        }
+        drop();
+    }
+
+    private synchronized void drop() {
+        open--;
+        notifyAll();
+    }
+
+    /*
+     * Close the connections idle for longer than the timeout, they are the least recently used so at the end.
+     */
+    private void evict() {
+        ArrayDeque<Idle> expired = new ArrayDeque<>();
+
+        synchronized (this) {
+            long oldest = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+            Iterator<Idle> entries = idle.descendingIterator();
+
+            while (entries.hasNext()) {
+                Idle entry = entries.next();
+
+                if (entry.since - oldest > 0) {
+                    break;
+                }
+                entries.remove();
+                expired.add(entry);
+                open--;
+            }
+            if (!expired.isEmpty()) {
+                notifyAll();
+            }
+        }
+        for (Idle entry : expired) {
+            sayBye(entry.connection);
+        }
+    }
+
+    /*
+     * Close a connection politely, the server isn't waited for.
+     */
+    private static void sayBye(Connection connection) {
+        try {
+            connection.send("{\"command\":\"bye\"}");
+        } catch (IOException e) {
+        }
+        connection.close();
+    }
+
+    /*
+     * An idle connection and when it was given back.
+     */
+    private static class Idle {
+        private final Connection connection;
+        private final long since = System.nanoTime();
+
+        Idle(Connection connection) {
+            this.connection = connection;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package io.ecx.examples.client;
+
+import org.json.simple.JSONObject;
+
+import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryDelta;
+
+public class DeltaResponse implements Response {
+
+    private final DirectoryDelta delta;
+    private final long version;
+    private final long id;
+
+    public DeltaResponse(JSONObject input) {
+        this(new DirectoryDelta((JSONObject)input.get("delta")), (Long)input.get("version"),
+                input.containsKey("id") ? (Long)input.get("id") : NO_ID);
+    }
+
+    public DeltaResponse(DirectoryDelta delta, long version) {
+        this(delta, version, NO_ID);
+    }
+
+    public DeltaResponse(DirectoryDelta delta, long version, long id) {
+        this.delta = delta;
+        this.version = version;
+        this.id = id;
+    }
+
+    @Override
+    public RESPONSE_TYPE getType() {
+        return Response.RESPONSE_TYPE.DELTA;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public COMMAND_TYPE getCommandType() throws ResponseException {
+        throw new ResponseException("Not appropriate for delta!");
+    }
+
+    @Override
+    public Directory getDirectory() throws ResponseException {
+        throw new ResponseException("Not appropriate for delta!");
+    }
+
+    @Override
+    public DirectoryDelta getDelta() {
+        return delta;
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String getCursor() throws ResponseException {
+        throw new ResponseException("Not appropriate for delta!");
+    }
+
+    @Override
+    public String getPath() throws ResponseException {
+        throw new ResponseException("Not appropriate for delta!");
+    }
+
+    @Override
+    public ResponseException getException() throws ResponseException {
+        throw new ResponseException("Not appropriate for delta!");
+    }
+
+}
@@ -0,0 +1,219 @@
+package io.ecx.examples.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.ecx.examples.directory.Directory;
+
+/**
+ * Listings a client has already got, so that asking for the same directory again doesn't mean fetching it again.
+ *
+ * <p>
+ * A listing is used as it is for the time to live after it was fetched. After that it is revalidated: the request
+ * carries the listing's version, and the server answers with just a not modified if it is still current, or with the
+ * changes or the new listing if not. A not modified starts the time to live again. Listings are evicted least
+ * recently used first to keep to the maximum number of listings and the maximum number of entries across them.
+ * </p>
+ * <p>
+ * One cache can be shared by any number of threads and clients, the listings are keyed by path as asked for.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class DirectoryCache {
+    /** The default maximum number of listings. */
+    public static final int DEFAULT_MAX_LISTINGS = 1000;
+    /** The default maximum number of entries across the listings. */
+    public static final long DEFAULT_MAX_ENTRIES = 1000000L;
+    /** The default time a listing is used before it is revalidated, in milliseconds. */
+    public static final long DEFAULT_TTL = 5000L;
+
+    private final int maxListings;
+    private final long maxEntries;
+    private final long ttlNanos;
+    // Access ordered, so the eldest is the least recently used.
+    private final LinkedHashMap<String, Cached> listings = new LinkedHashMap<>(16, 0.75f, true);
+    private long entries;
+    private long hits;
+    private long revalidated;
+    private long misses;
+
+    /**
+     * Constructor with the default limits.
+     */
+    public DirectoryCache() {
+        this(DEFAULT_MAX_LISTINGS, DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxListings
+     *            the maximum number of listings to keep.
+     * @param maxEntries
+     *            the maximum number of entries across the listings kept.
+     * @param ttl
+     *            the time a listing is used before it is revalidated, in milliseconds.
+     */
+    public DirectoryCache(int maxListings, long maxEntries, long ttl) {
+        this.maxListings = maxListings;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * Get the number of listings used without asking the server.
+     *
+     * @return the number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of listings the server said were still current.
+     *
+     * @return the number revalidated.
+     */
+    public synchronized long getRevalidated() {
+        return revalidated;
+    }
+
+    /**
+     * Get the number of listings that had to be sent, in full or as changes.
+     *
+     * @return the number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of listings kept.
+     *
+     * @return the number of listings.
+     */
+    public synchronized int size() {
+        return listings.size();
+    }
+
+    /**
+     * Forget a listing, the next request for it fetches it in full.
+     *
+     * @param path
+     *            the path as asked for.
+     */
+    public synchronized void invalidate(String path) {
+        Cached cached = listings.remove(path);
+
+        if (cached != null) {
+            entries -= cached.directory.size();
+        }
+    }
+
+    /**
+     * Forget all the listings.
+     */
+    public synchronized void clear() {
+        listings.clear();
+        entries = 0;
+    }
+
+    /**
+     * Get a listing, counting a hit if it is still within its time to live.
+     *
+     * @param path
+     *            the path as asked for.
+     * @return the listing, fresh or due to be revalidated, or null if there isn't one.
+     */
+    synchronized Cached get(String path) {
+        Cached cached = listings.get(path);
+
+        if (cached != null && cached.isFresh()) {
+            hits++;
+        }
+        return cached;
+    }
+
+    /**
+     * Keep a listing sent by the server, in full or as changes to the one kept.
+     *
+     * @param path
+     *            the path as asked for.
+     * @param directory
+     *            the listing.
+     * @param version
+     *            its version, listings without one aren't kept.
+     */
+    synchronized void put(String path, Directory directory, long version) {
+        misses++;
+        if (version == Response.NO_VERSION || directory.size() > maxEntries) {
+            return;
+        }
+
+        Cached previous = listings.put(path, new Cached(directory, version, System.nanoTime() + ttlNanos));
+
+        if (previous != null) {
+            entries -= previous.directory.size();
+        }
+        entries += directory.size();
+        evict();
+    }
+
+    /**
+     * Start the time to live of a listing again, once the server has said it is still current.
+     *
+     * @param path
+     *            the path as asked for.
+     * @param cached
+     *            the listing revalidated.
+     */
+    synchronized void revalidate(String path, Cached cached) {
+        revalidated++;
+        // Unless it has been replaced or forgotten meanwhile.
+        if (listings.get(path) == cached) {
+            listings.put(path, new Cached(cached.directory, cached.version, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    /*
+     * Drop the least recently used listings until within the limits.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Cached>> eldest = listings.entrySet().iterator();
+
+        while ((listings.size() > maxListings || entries > maxEntries) && eldest.hasNext()) {
+            entries -= eldest.next().getValue().directory.size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * A listing kept, its version and when it is due to be revalidated.
+     */
+    static class Cached {
+        private final Directory directory;
+        private final long version;
+        private final long expires;
+
+        Cached(Directory directory, long version, long expires) {
+            this.directory = directory;
+            this.version = version;
+            this.expires = expires;
+        }
+
+        Directory getDirectory() {
+            return directory;
+        }
+
+        long getVersion() {
+            return version;
+        }
+
+        boolean isFresh() {
+            return System.nanoTime() - expires < 0;
+        }
+    }
+}
@@ -3,13 +3,40 @@ package io.ecx.examples.client;
 import org.json.simple.JSONObject;
 
 import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryDelta;
 
 public class DirectoryResponse implements Response {
 
     private final Directory directory;
+    private final long version;
+    private final String cursor;
+    private final long id;
+    private final String path;
 
     public DirectoryResponse(JSONObject input) {
-        directory = new Directory((JSONObject)input.get("directory"));
+        this(new Directory((JSONObject)input.get("directory")),
+                input.containsKey("version") ? (Long)input.get("version") : NO_VERSION, (String)input.get("cursor"),
+                input.containsKey("id") ? (Long)input.get("id") : NO_ID, (String)input.get("path"));
+    }
+
+    public DirectoryResponse(Directory directory) {
+        this(directory, NO_VERSION, null);
+    }
+
+    public DirectoryResponse(Directory directory, long version, String cursor) {
+        this(directory, version, cursor, NO_ID);
+    }
+
+    public DirectoryResponse(Directory directory, long version, String cursor, long id) {
+        this(directory, version, cursor, id, null);
+    }
+
+    public DirectoryResponse(Directory directory, long version, String cursor, long id, String path) {
+        this.directory = directory;
+        this.version = version;
+        this.cursor = cursor;
+        this.id = id;
+        this.path = path;
     }
 
     @Override
@@ -17,6 +44,11 @@ public class DirectoryResponse implements Response {
         return Response.RESPONSE_TYPE.DIRECTORY;
     }
 
+    @Override
+    public long getId() {
+        return id;
+    }
+
     @Override
     public COMMAND_TYPE getCommandType() throws ResponseException {
         throw new ResponseException("Not appropriate for directory!");
@@ -27,6 +59,26 @@ public class DirectoryResponse implements Response {
         return directory;
     }
 
+    @Override
+    public DirectoryDelta getDelta() throws ResponseException {
+        throw new ResponseException("Not appropriate for directory!");
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
     @Override
     public ResponseException getException() throws ResponseException {
         throw new ResponseException("Not appropriate for directory!");
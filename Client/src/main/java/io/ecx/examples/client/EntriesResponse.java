@@ -0,0 +1,71 @@
+package io.ecx.examples.client;
+
+import org.json.simple.JSONObject;
+
+import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryDelta;
+
+public class EntriesResponse implements Response {
+
+    private final Directory entries;
+    private final long id;
+
+    public EntriesResponse(JSONObject input) {
+        this(new Directory((JSONObject)input.get("entries")), input.containsKey("id") ? (Long)input.get("id") : NO_ID);
+    }
+
+    public EntriesResponse(Directory entries, long id) {
+        this.entries = entries;
+        this.id = id;
+    }
+
+    @Override
+    public RESPONSE_TYPE getType() {
+        return Response.RESPONSE_TYPE.ENTRIES;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public COMMAND_TYPE getCommandType() throws ResponseException {
+        throw new ResponseException("Not appropriate for entries!");
+    }
+
+    /**
+     * Get a batch of the entries of a streamed listing.
+     * @return the entries, as a listing of the directory.
+     */
+    @Override
+    public Directory getDirectory() {
+        return entries;
+    }
+
+    @Override
+    public DirectoryDelta getDelta() throws ResponseException {
+        throw new ResponseException("Not appropriate for entries!");
+    }
+
+    @Override
+    public long getVersion() throws ResponseException {
+        throw new ResponseException("Not appropriate for entries!");
+    }
+
+    @Override
+    public String getCursor() throws ResponseException {
+        throw new ResponseException("Not appropriate for entries!");
+    }
+
+    @Override
+    public String getPath() {
+        return entries.getPath();
+    }
+
+    @Override
+    public ResponseException getException() throws ResponseException {
+        throw new ResponseException("Not appropriate for entries!");
+    }
+
+}
@@ -3,13 +3,35 @@ package io.ecx.examples.client;
 import org.json.simple.JSONObject;
 
 import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryDelta;
 
 public class ExceptionResponse implements Response {
 
     private final ResponseException exception;
+    private final long id;
+    private final String path;
 
     public ExceptionResponse(JSONObject input) {
-        exception = new ResponseException((String)input.get("exception"));
+        this((String)input.get("exception"), input.containsKey("id") ? (Long)input.get("id") : NO_ID,
+                (String)input.get("path"), Boolean.TRUE.equals(input.get("overloaded")));
+    }
+
+    public ExceptionResponse(String message) {
+        this(message, NO_ID);
+    }
+
+    public ExceptionResponse(String message, long id) {
+        this(message, id, null);
+    }
+
+    public ExceptionResponse(String message, long id, String path) {
+        this(message, id, path, false);
+    }
+
+    public ExceptionResponse(String message, long id, String path, boolean overloaded) {
+        exception = overloaded ? new OverloadedException(message) : new ResponseException(message);
+        this.id = id;
+        this.path = path;
     }
 
     @Override
@@ -17,6 +39,11 @@ public class ExceptionResponse implements Response {
         return Response.RESPONSE_TYPE.EXCEPTION;
     }
 
+    @Override
+    public long getId() {
+        return id;
+    }
+
     @Override
     public COMMAND_TYPE getCommandType() throws ResponseException {
         throw new ResponseException("Not appropriate for exception!");
@@ -27,6 +54,26 @@ public class ExceptionResponse implements Response {
         throw new ResponseException("Not appropriate for exception!");
     }
 
+    @Override
+    public DirectoryDelta getDelta() throws ResponseException {
+        throw new ResponseException("Not appropriate for exception!");
+    }
+
+    @Override
+    public long getVersion() throws ResponseException {
+        throw new ResponseException("Not appropriate for exception!");
+    }
+
+    @Override
+    public String getCursor() throws ResponseException {
+        throw new ResponseException("Not appropriate for exception!");
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
     @Override
     public ResponseException getException() {
         return exception;
@@ -0,0 +1,71 @@
+package io.ecx.examples.client;
+
+import org.json.simple.JSONObject;
+
+import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryDelta;
+
+public class NotModifiedResponse implements Response {
+
+    private final long version;
+    private final long id;
+
+    public NotModifiedResponse(JSONObject input) {
+        this((Long)input.get("version"), input.containsKey("id") ? (Long)input.get("id") : NO_ID);
+    }
+
+    public NotModifiedResponse(long version) {
+        this(version, NO_ID);
+    }
+
+    public NotModifiedResponse(long version, long id) {
+        this.version = version;
+        this.id = id;
+    }
+
+    @Override
+    public RESPONSE_TYPE getType() {
+        return Response.RESPONSE_TYPE.NOT_MODIFIED;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public COMMAND_TYPE getCommandType() throws ResponseException {
+        throw new ResponseException("Not appropriate for not modified!");
+    }
+
+    @Override
+    public Directory getDirectory() throws ResponseException {
+        throw new ResponseException("Not appropriate for not modified!");
+    }
+
+    @Override
+    public DirectoryDelta getDelta() throws ResponseException {
+        throw new ResponseException("Not appropriate for not modified!");
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String getCursor() throws ResponseException {
+        throw new ResponseException("Not appropriate for not modified!");
+    }
+
+    @Override
+    public String getPath() throws ResponseException {
+        throw new ResponseException("Not appropriate for not modified!");
+    }
+
+    @Override
+    public ResponseException getException() throws ResponseException {
+        throw new ResponseException("Not appropriate for not modified!");
+    }
+
+}
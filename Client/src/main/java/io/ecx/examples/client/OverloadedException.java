@@ -0,0 +1,13 @@
+package io.ecx.examples.client;
+
+/**
+ * Thrown when the server was too busy to answer a request, it may be tried again later.
+ */
+public class OverloadedException extends ResponseException {
+
+    private static final long serialVersionUID = -6371298514772902150L;
+
+    public OverloadedException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,129 @@
+package io.ecx.examples.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.json.simple.JSONValue;
+
+import io.ecx.examples.directory.Directory;
+
+/**
+ * The pages of a directory listing, fetched from the server one at a time over a single connection.
+ *
+ * <p>
+ * Only one page is held at a time, so a directory of any size can be read with a fixed amount of memory. A page is
+ * fetched when {@link #hasNext()} needs it. Problems fetching a page after the first are thrown as an
+ * {@link IllegalStateException} with the {@link ResponseException} as its cause. The connection is closed after the
+ * last page, close the iterator if it isn't read to the end.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class PageIterator implements Iterator<Directory>, Closeable {
+    private final String path;
+    private final int limit;
+    private final Connection connection;
+    // The page fetched but not yet returned, and where the page after it starts.
+    private Directory page;
+    private String cursor;
+    private boolean closed;
+
+    /**
+     * Constructor, connects to the server and fetches the first page.
+     *
+     * @param path
+     *            the path of the directory to be listed on the server.
+     * @param limit
+     *            the maximum number of entries on a page.
+     * @param binary
+     *            true to ask for the compact binary format.
+     * @throws ResponseException
+     *             if there was a problem.
+     */
+    public PageIterator(String path, int limit, boolean binary) throws ResponseException {
+        this.path = path;
+        this.limit = limit;
+        connection = new Connection(binary);
+
+        try {
+            page = fetch(null);
+        } catch (ResponseException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (page == null && cursor != null) {
+            try {
+                page = fetch(cursor);
+            } catch (ResponseException e) {
+                close();
+                throw new IllegalStateException(e);
+            }
+        }
+        return page != null;
+    }
+
+    @Override
+    public Directory next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Directory result = page;
+        page = null;
+        return result;
+    }
+
+    /**
+     * Say goodbye to the server and close the connection.
+     */
+    @Override
+    public void close() {
+        cursor = null;
+        if (!closed) {
+            closed = true;
+            try {
+                connection.send("{\"command\":\"bye\"}");
+            } catch (IOException e) {
+            }
+            connection.close();
+        }
+    }
+
+    /*
+     * Ask for the page that starts at a cursor, closing the connection after the last page.
+     */
+    private Directory fetch(String start) throws ResponseException {
+        StringBuilder request = new StringBuilder("{\"directory\":\"").append(JSONValue.escape(path))
+                .append("\",\"limit\":").append(limit);
+
+        if (start != null) {
+            request.append(",\"cursor\":\"").append(start).append('"');
+        }
+        Response response;
+        try {
+            connection.send(request.append('}').toString());
+            response = connection.receive();
+        } catch (IOException e) {
+            throw new ResponseException(e);
+        }
+
+        switch (response.getType()) {
+        case DIRECTORY:
+            cursor = response.getCursor();
+            if (cursor == null) {
+                close();
+            }
+            return response.getDirectory();
+        case EXCEPTION:
+            throw response.getException();
+        default:
+            throw new ResponseException("Expected a page!");
+        }
+    }
+}
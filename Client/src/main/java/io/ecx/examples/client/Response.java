@@ -1,19 +1,36 @@
 package io.ecx.examples.client;
 
 import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryDelta;
 
 public interface Response {
 
-    enum RESPONSE_TYPE {COMMAND, DIRECTORY, EXCEPTION};
+    /** The version of a listing sent without one. */
+    long NO_VERSION = 0L;
 
-    enum COMMAND_TYPE {HELLO, BYE};
+    /** The id of a response to a message sent without one. */
+    long NO_ID = 0L;
+
+    enum RESPONSE_TYPE {COMMAND, DIRECTORY, DELTA, EXCEPTION, BATCH, STREAM, ENTRIES, STREAMED, NOT_MODIFIED};
+
+    enum COMMAND_TYPE {HELLO, BYE, STATS, PONG};
 
     RESPONSE_TYPE getType();
 
+    long getId();
+
     COMMAND_TYPE getCommandType() throws ResponseException;
 
     Directory getDirectory() throws ResponseException;
 
+    DirectoryDelta getDelta() throws ResponseException;
+
+    long getVersion() throws ResponseException;
+
+    String getCursor() throws ResponseException;
+
+    String getPath() throws ResponseException;
+
     ResponseException getException() throws ResponseException;
 
 }
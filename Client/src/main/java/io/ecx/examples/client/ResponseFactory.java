@@ -1,12 +1,28 @@
 package io.ecx.examples.client;
 
+import java.io.IOException;
+
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryCodec;
+import io.ecx.examples.directory.DirectoryDelta;
+import io.ecx.examples.directory.JacksonCodec;
+
 public class ResponseFactory {
 
     public static Response getResponse(String inputStr) throws ParseException, ResponseException {
+        DirectoryCodec codec = DirectoryCodec.getDefault();
+
+        if (codec instanceof JacksonCodec) {
+            return getResponse(inputStr, (JacksonCodec) codec);
+        }
+
         Response response;
         JSONObject input;
         JSONParser parser = new JSONParser();
@@ -16,8 +32,18 @@ public class ResponseFactory {
             response = new CommandResponse(input);
         } else if(input.containsKey("directory")) {
             response = new DirectoryResponse(input);
+        } else if(input.containsKey("delta")) {
+            response = new DeltaResponse(input);
+        } else if(input.containsKey("notModified")) {
+            response = new NotModifiedResponse(input);
         } else if(input.containsKey("exception")) {
             response = new ExceptionResponse(input);
+        } else if(input.containsKey("batch")) {
+            response = new BatchResponse(input);
+        } else if(input.containsKey("entries")) {
+            response = new EntriesResponse(input);
+        } else if(input.containsKey("stream") || input.containsKey("streamed")) {
+            response = new StreamResponse(input);
         } else {
             throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, input);
         }
@@ -25,4 +51,103 @@ public class ResponseFactory {
         return response;
     }
 
+    /*
+     * Read the message a token at a time, the listing goes straight into a Directory.
+     */
+    private static Response getResponse(String inputStr, JacksonCodec codec) throws ParseException, ResponseException {
+        String command = null;
+        Directory directory = null;
+        DirectoryDelta delta = null;
+        long version = Response.NO_VERSION;
+        String cursor = null;
+        String path = null;
+        long batch = -1;
+        long failed = 0;
+        Directory entries = null;
+        String stream = null;
+        long streamed = -1;
+        long batches = 0;
+        long id = Response.NO_ID;
+        String exception = null;
+        boolean hasException = false;
+        boolean overloaded = false;
+        boolean notModified = false;
+        JSONObject stats = null;
+
+        try (JsonParser parser = codec.getFactory().createParser(inputStr)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+
+                parser.nextToken();
+                if ("command".equals(field)) {
+                    command = parser.getValueAsString();
+                } else if ("directory".equals(field)) {
+                    directory = codec.read(parser);
+                } else if ("entries".equals(field)) {
+                    entries = codec.read(parser);
+                } else if ("delta".equals(field)) {
+                    delta = codec.readDelta(parser);
+                } else if ("notModified".equals(field)) {
+                    notModified = parser.getValueAsBoolean();
+                } else if ("version".equals(field)) {
+                    version = parser.getValueAsLong();
+                } else if ("id".equals(field)) {
+                    id = parser.getValueAsLong();
+                } else if ("stats".equals(field)) {
+                    // Rarely asked for, so read with the simple parser rather than token by token.
+                    int start = (int) parser.getTokenLocation().getCharOffset();
+
+                    parser.skipChildren();
+                    stats = (JSONObject) new JSONParser().parse(
+                            inputStr.substring(start, (int) parser.getCurrentLocation().getCharOffset()));
+                } else if ("overloaded".equals(field)) {
+                    overloaded = parser.getValueAsBoolean();
+                } else if ("path".equals(field)) {
+                    path = parser.getValueAsString();
+                } else if ("batch".equals(field)) {
+                    batch = parser.getValueAsLong();
+                } else if ("failed".equals(field)) {
+                    failed = parser.getValueAsLong();
+                } else if ("stream".equals(field)) {
+                    stream = parser.getValueAsString();
+                } else if ("streamed".equals(field)) {
+                    streamed = parser.getValueAsLong();
+                } else if ("batches".equals(field)) {
+                    batches = parser.getValueAsLong();
+                } else if ("cursor".equals(field)) {
+                    cursor = parser.getValueAsString();
+                } else if ("exception".equals(field)) {
+                    exception = parser.getValueAsString();
+                    hasException = true;
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new ResponseException(e);
+        }
+
+        if (command != null) {
+            return new CommandResponse(command, id, stats);
+        } else if (directory != null) {
+            return new DirectoryResponse(directory, version, cursor, id, path);
+        } else if (delta != null) {
+            return new DeltaResponse(delta, version, id);
+        } else if (notModified) {
+            return new NotModifiedResponse(version, id);
+        } else if (hasException) {
+            return new ExceptionResponse(exception, id, path, overloaded);
+        } else if (batch >= 0) {
+            return new BatchResponse((int) batch, (int) failed, id);
+        } else if (entries != null) {
+            return new EntriesResponse(entries, id);
+        } else if (stream != null || streamed >= 0) {
+            return new StreamResponse(stream, (int) streamed, (int) batches, id);
+        }
+        throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+    }
+
 }
@@ -0,0 +1,156 @@
+package io.ecx.examples.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.json.simple.JSONValue;
+
+import io.ecx.examples.directory.Directory;
+
+/**
+ * The entries of a directory listing, streamed from the server in batches as it reads the directory.
+ *
+ * <p>
+ * The first batch can be used as soon as the server has read it, rather than once it has read and sent the whole
+ * directory. The batches come in the order the server reads the entries, not in name order, and only one is held at
+ * a time. A batch is read when {@link #hasNext()} needs it. Problems after the start of the stream are thrown as an
+ * {@link IllegalStateException} with the {@link ResponseException} as its cause. The connection is closed after the
+ * last batch, close the iterator if it isn't read to the end.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class StreamIterator implements Iterator<Directory>, Closeable {
+    private final Connection connection;
+    private final String path;
+    // The batch read but not yet returned.
+    private Directory batch;
+    private int count;
+    private int received;
+    private boolean ended;
+    private boolean closed;
+
+    /**
+     * Constructor, connects to the server, asks for the directory and waits for the stream to start.
+     *
+     * @param path
+     *            the path of the directory to be listed on the server.
+     * @param batchSize
+     *            the most entries in a batch.
+     * @param binary
+     *            true to ask for the compact binary format.
+     * @throws ResponseException
+     *             if there was a problem, or the directory can't be listed.
+     */
+    public StreamIterator(String path, int batchSize, boolean binary) throws ResponseException {
+        connection = new Connection(binary);
+
+        try {
+            connection.send("{\"directory\":\"" + JSONValue.escape(path) + "\",\"stream\":" + batchSize + "}");
+
+            Response response = connection.receive();
+
+            if (response.getType() == Response.RESPONSE_TYPE.EXCEPTION) {
+                throw response.getException();
+            } else if (response.getType() != Response.RESPONSE_TYPE.STREAM) {
+                throw new ResponseException("Expected a stream!");
+            }
+            this.path = response.getPath();
+        } catch (IOException e) {
+            close();
+            throw new ResponseException(e);
+        } catch (ResponseException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the absolute path of the directory, as the server gave it.
+     *
+     * @return the path.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Get the number of entries the server sent, once the last batch has been read.
+     *
+     * @return the number of entries.
+     * @throws IllegalStateException
+     *             if the stream hasn't ended.
+     */
+    public int getCount() {
+        if (!ended) {
+            throw new IllegalStateException("The stream hasn't ended");
+        }
+        return count;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (batch == null && !ended && !closed) {
+            try {
+                batch = receive();
+            } catch (ResponseException e) {
+                close();
+                throw new IllegalStateException(e);
+            }
+        }
+        return batch != null;
+    }
+
+    @Override
+    public Directory next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Directory result = batch;
+        batch = null;
+        return result;
+    }
+
+    /**
+     * Say goodbye to the server and close the connection.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            try {
+                connection.send("{\"command\":\"bye\"}");
+            } catch (IOException e) {
+            }
+            connection.close();
+        }
+    }
+
+    /*
+     * Read the next batch, or null at the end of the stream, closing the connection after the last.
+     */
+    private Directory receive() throws ResponseException {
+        Response response = connection.receive();
+
+        switch (response.getType()) {
+        case ENTRIES:
+            received += response.getDirectory().size();
+            return response.getDirectory();
+        case STREAMED:
+            ended = true;
+            count = ((StreamResponse) response).getCount();
+            close();
+            if (count != received) {
+                throw new ResponseException("Expected " + count + " entries, got " + received + "!");
+            }
+            return null;
+        case EXCEPTION:
+            throw response.getException();
+        default:
+            throw new ResponseException("Expected entries!");
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.ecx.examples.client;
+
+import org.json.simple.JSONObject;
+
+import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryDelta;
+
+public class StreamResponse implements Response {
+
+    // The start of a stream carries the path, the end the counts.
+    private final boolean end;
+    private final String path;
+    private final int count;
+    private final int batches;
+    private final long id;
+
+    public StreamResponse(JSONObject input) {
+        this((String)input.get("stream"), input.containsKey("streamed") ? ((Long)input.get("streamed")).intValue() : -1,
+                input.containsKey("batches") ? ((Long)input.get("batches")).intValue() : 0,
+                input.containsKey("id") ? (Long)input.get("id") : NO_ID);
+    }
+
+    /**
+     * Constructor.
+     * @param path the path of the directory for the start, null for the end.
+     * @param count the number of entries for the end.
+     * @param batches the number of batches for the end.
+     * @param id the id of the request.
+     */
+    public StreamResponse(String path, int count, int batches, long id) {
+        this.end = path == null;
+        this.path = path;
+        this.count = count;
+        this.batches = batches;
+        this.id = id;
+    }
+
+    @Override
+    public RESPONSE_TYPE getType() {
+        return end ? Response.RESPONSE_TYPE.STREAMED : Response.RESPONSE_TYPE.STREAM;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Get the number of entries sent, at the end of the stream.
+     * @return the number of entries.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the number of batches the entries were sent in, at the end of the stream.
+     * @return the number of batches.
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    @Override
+    public COMMAND_TYPE getCommandType() throws ResponseException {
+        throw new ResponseException("Not appropriate for stream!");
+    }
+
+    @Override
+    public Directory getDirectory() throws ResponseException {
+        throw new ResponseException("Not appropriate for stream!");
+    }
+
+    @Override
+    public DirectoryDelta getDelta() throws ResponseException {
+        throw new ResponseException("Not appropriate for stream!");
+    }
+
+    @Override
+    public long getVersion() throws ResponseException {
+        throw new ResponseException("Not appropriate for stream!");
+    }
+
+    @Override
+    public String getCursor() throws ResponseException {
+        throw new ResponseException("Not appropriate for stream!");
+    }
+
+    /**
+     * Get the absolute path of the directory, at the start of the stream.
+     * @return the path, or null at the end.
+     */
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public ResponseException getException() throws ResponseException {
+        throw new ResponseException("Not appropriate for stream!");
+    }
+
+}
@@ -0,0 +1,126 @@
+package io.ecx.examples.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.ecx.examples.server.Server;
+
+/**
+ * Measures the throughput of a {@link Server} as the number of concurrent clients grows.
+ *
+ * <p>
+ * Usage: java ClientLoadBenchmark [<i>clients</i>] [<i>requests</i>] [<i>directory</i>]
+ * </p>
+ * <p>
+ * Where:
+ * </p>
+ * <ul>
+ * <li><i>clients</i> is the largest number of concurrent clients (default 4096), the run starts at one and doubles up
+ * to it.</li>
+ * <li><i>requests</i> is the number of listings each client asks for (default 20), each on a new connection.</li>
+ * <li><i>directory</i> is the directory to list, by default a temporary directory of 1,000 empty files is
+ * created.</li>
+ * </ul>
+ * <p>
+ * The server runs in the same JVM on the default port. Listings come from its cache, so throughput should grow with
+ * the clients until the CPUs are busy; point it at a directory that keeps changing to see where the disk takes over.
+ * The messages the client and server print are thrown away while the clients run.
+ * </p>
+ */
+public class ClientLoadBenchmark {
+    private static final int DEFAULT_CLIENTS = 4096;
+    private static final int DEFAULT_REQUESTS = 20;
+    private static final int DEFAULT_FILES = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int maxClients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_REQUESTS;
+        String dir = args.length > 2 ? args[2] : createTempDir(DEFAULT_FILES);
+        PrintStream console = System.out;
+        Server server = new Server();
+
+        server.start();
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        try {
+            // Warm up, and fill the cache.
+            run(dir, 16, requests);
+            for (int clients = 1; clients <= maxClients; clients *= 2) {
+                long start = System.nanoTime();
+                int failures = run(dir, clients, requests);
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                console.printf("%5d clients %9.0f listings/s %5d failures%n", clients, clients * requests / seconds,
+                        failures);
+            }
+        } finally {
+            System.setOut(console);
+            server.shutdown();
+            server.join();
+        }
+    }
+
+    /*
+     * Start the clients together and wait for them all to finish, returns the number of failed requests.
+     */
+    private static int run(String dir, int clients, int requests) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>(clients);
+
+        for (int i = 0; i < clients; i++) {
+            Thread thread = new Thread(() -> {
+                Client client = new Client(dir);
+
+                try {
+                    ready.await();
+                    for (int j = 0; j < requests; j++) {
+                        try {
+                            client.getDirectory();
+                        } catch (ResponseException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "Client " + i);
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        ready.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return failures.get();
+    }
+
+    private static String createTempDir(int numFiles) throws IOException {
+        Path dir = Files.createTempDirectory("load");
+
+        dir.toFile().deleteOnExit();
+        for (int i = 0; i < numFiles; i++) {
+            File file = dir.resolve("file_" + i).toFile();
+            file.createNewFile();
+            file.deleteOnExit();
+        }
+        return dir.toString();
+    }
+}
@@ -1,16 +1,32 @@
 package io.ecx.examples.client;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import org.json.simple.JSONObject;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryQuery;
 import io.ecx.examples.server.Server;
 
 public class ClientTest {
@@ -58,9 +74,8 @@ public class ClientTest {
 
     @After
     public void tearDown() throws Exception {
-        if(server.isAlive()) {
-            server.join();
-        }
+        server.shutdown();
+        server.join();
     }
 
     @Test (expected = ResponseException.class)
@@ -77,4 +92,450 @@ public class ClientTest {
         assertNotNull(client.getDirectory());
     }
 
+    @Test
+    public void testBinary() throws Exception {
+        Client client = new Client("temp", true);
+        Directory directory = client.getDirectory();
+
+        assertEquals(new Directory("temp").toJSONString(), directory.toJSONString());
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        Client client = new Client("temp");
+        String last = "";
+        int pages = 0;
+        int count = 0;
+
+        try (PageIterator iterator = client.getPages(3)) {
+            while (iterator.hasNext()) {
+                Directory page = iterator.next();
+
+                assertTrue(page.size() <= 3);
+                for (int i = 0; i < page.size(); i++) {
+                    assertTrue(last.compareTo(page.getName(i)) < 0);
+                    last = page.getName(i);
+                }
+                count += page.size();
+                pages++;
+            }
+        }
+        assertEquals(NUM_FILES + NUM_DIRS, count);
+        assertEquals((NUM_FILES + NUM_DIRS + 2) / 3, pages);
+    }
+
+    @Test
+    public void testStreamDirectory() throws Exception {
+        for (boolean binary : new boolean[] { false, true }) {
+            Client client = new Client("temp", binary);
+            int batches = 0;
+            int count = 0;
+
+            try (StreamIterator iterator = client.streamDirectory(6)) {
+                assertEquals(new File("temp").getAbsolutePath(), iterator.getPath());
+                while (iterator.hasNext()) {
+                    Directory batch = iterator.next();
+
+                    assertTrue(batch.size() <= 6);
+                    count += batch.size();
+                    batches++;
+                }
+                assertEquals(NUM_FILES + NUM_DIRS, iterator.getCount());
+            }
+            assertEquals(NUM_FILES + NUM_DIRS, count);
+            assertEquals((NUM_FILES + NUM_DIRS + 5) / 6, batches);
+        }
+        try {
+            new Client("test").streamDirectory(6);
+            fail("Streamed an unknown directory");
+        } catch (ResponseException e) {
+        }
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    public void testConcurrentConnections() throws Exception {
+        // A connection left open doesn't hold up the others.
+        try (Connection idle = new Connection(false)) {
+            Client client = new Client("temp");
+
+            assertEquals(NUM_FILES + NUM_DIRS, client.getDirectory().size());
+            assertEquals(NUM_FILES + NUM_DIRS, client.getDirectory().size());
+        }
+    }
+
+    @Test
+    public void testBadTypes() throws Exception {
+        try (Connection connection = new Connection(false)) {
+            // Answered on the executor, the reply still comes back with its id.
+            connection.send("{\"directory\":\"temp\",\"limit\":\"2\",\"id\":3}");
+
+            Response response = connection.receive();
+
+            assertEquals(Response.RESPONSE_TYPE.EXCEPTION, response.getType());
+            assertEquals(3L, response.getId());
+            assertEquals("Bad limit: 2", response.getException().getMessage());
+
+            connection.send("{\"directory\":5}");
+            assertEquals("Bad directory: 5", connection.receive().getException().getMessage());
+        }
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        Client client = new Client("temp");
+        DirectoryQuery query = new DirectoryQuery();
+
+        query.setGlob(DIR_PREFIX + "*");
+        query.setSort(DirectoryQuery.Sort.NAME);
+        query.setDescending(true);
+        query.setLimit(2);
+
+        Directory directory = client.getDirectory(query);
+
+        assertEquals(2, directory.size());
+        assertEquals(DIR_PREFIX + (NUM_DIRS - 1), directory.getName(0));
+        assertEquals(DIR_PREFIX + (NUM_DIRS - 2), directory.getName(1));
+        assertTrue(directory.isDirectory(0));
+    }
+
+    @Test
+    public void testEscapedPath() throws Exception {
+        String path = "te\"mp\\";
+        Client client = new Client(path, false, new DirectoryCache());
+
+        // The path reaches the server whole, rather than breaking the request.
+        for (Callable<Directory> call : Arrays.<Callable<Directory>>asList(client::getDirectory,
+                client::refreshDirectory, () -> client.getDirectory(new DirectoryQuery()),
+                () -> new Client(path).getDirectory())) {
+            try {
+                call.call();
+                fail("Listed an unknown directory");
+            } catch (ResponseException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(path));
+            }
+        }
+    }
+
+    @Test
+    public void testGetDirectories() throws Exception {
+        List<String> paths = new ArrayList<>();
+
+        // More than are sent at once.
+        for (int i = 0; i < 50; i++) {
+            paths.add(i % 2 == 0 ? "temp" : "temp/" + DIR_PREFIX + (i / 2 % NUM_DIRS));
+        }
+
+        for (boolean binary : new boolean[] { false, true }) {
+            Map<String, Directory> directories = Client.getDirectories(paths, binary);
+
+            assertEquals(1 + NUM_DIRS, directories.size());
+            assertEquals("temp", directories.keySet().iterator().next());
+            assertEquals(new Directory("temp").toJSONString(), directories.get("temp").toJSONString());
+            assertEquals(0, directories.get("temp/" + DIR_PREFIX + 0).size());
+        }
+
+        try {
+            Client.getDirectories(Arrays.asList("temp", "test", "temp"), false);
+            fail("Listed an unknown directory");
+        } catch (ResponseException e) {
+            assertTrue(e.getMessage().startsWith("test: "));
+        }
+    }
+
+    @Test
+    public void testListDirectories() throws Exception {
+        List<String> paths = new ArrayList<>();
+
+        for (int i = 0; i < NUM_DIRS; i++) {
+            paths.add("temp/" + DIR_PREFIX + i);
+        }
+        paths.add("temp");
+        paths.add("test");
+
+        for (boolean binary : new boolean[] { false, true }) {
+            Map<String, Directory> listed = new HashMap<>();
+            Map<String, ResponseException> failed = new HashMap<>();
+
+            Client.listDirectories(paths, binary, new BatchListener() {
+                @Override
+                public void listed(String path, Directory directory) {
+                    listed.put(path, directory);
+                }
+
+                @Override
+                public void failed(String path, ResponseException exception) {
+                    failed.put(path, exception);
+                }
+            });
+
+            assertEquals(NUM_DIRS + 1, listed.size());
+            assertEquals(new Directory("temp").toJSONString(), listed.get("temp").toJSONString());
+            assertEquals(0, listed.get("temp/" + DIR_PREFIX + 0).size());
+            assertEquals(1, failed.size());
+            assertTrue(failed.get("test").getMessage().startsWith("No such directory"));
+        }
+    }
+
+    @Test
+    public void testPool() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(false)) {
+            Client client = new Client("temp", pool);
+
+            assertEquals(NUM_FILES + NUM_DIRS, client.getDirectory().size());
+            assertEquals(NUM_FILES + NUM_DIRS, client.getDirectory().size());
+            try {
+                new Client("test", pool).getDirectory();
+                fail("Expected an exception");
+            } catch (ResponseException e) {
+            }
+            // The exception was a reply, so the connection is still good.
+            assertEquals(NUM_FILES + NUM_DIRS, client.refreshDirectory().size());
+            assertEquals(1, pool.getOpen());
+            assertEquals(1, pool.getIdle());
+
+            // Pinged before it is used after being idle.
+            Thread.sleep(ConnectionPool.VALIDATE_AFTER + 100);
+            assertEquals(NUM_FILES + NUM_DIRS, client.getDirectory().size());
+            assertEquals(1, pool.getOpen());
+        }
+    }
+
+    @Test
+    public void testPoolBinary() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(true)) {
+            Client client = new Client("temp", pool);
+
+            assertEquals(new Directory("temp").toJSONString(), client.getDirectory().toJSONString());
+            assertEquals(new Directory("temp").toJSONString(), client.getDirectory().toJSONString());
+            assertEquals(1, pool.getOpen());
+        }
+    }
+
+    @Test
+    public void testPoolConcurrent() throws Exception {
+        int threads = 8;
+        int requests = 20;
+
+        try (ConnectionPool pool = new ConnectionPool(false, 3, ConnectionPool.DEFAULT_IDLE_TIMEOUT, 30000L)) {
+            List<Thread> running = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+
+            for (int i = 0; i < threads; i++) {
+                Thread thread = new Thread(() -> {
+                    Client client = new Client("temp", pool);
+
+                    try {
+                        for (int j = 0; j < requests; j++) {
+                            assertEquals(NUM_FILES + NUM_DIRS, client.getDirectory().size());
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                });
+
+                thread.start();
+                running.add(thread);
+            }
+            for (Thread thread : running) {
+                thread.join();
+            }
+
+            assertTrue(failures.toString(), failures.isEmpty());
+            assertTrue(pool.getOpen() <= 3);
+            assertEquals(pool.getOpen(), pool.getIdle());
+        }
+    }
+
+    @Test
+    public void testPoolTimeout() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(false, 1, ConnectionPool.DEFAULT_IDLE_TIMEOUT, 100L)) {
+            Connection connection = pool.acquire();
+
+            try {
+                new Client("temp", pool).getDirectory();
+                fail("Expected a timeout");
+            } catch (ResponseException e) {
+                assertEquals("Timed out waiting for a connection!", e.getMessage());
+            }
+            pool.release(connection, true);
+            assertEquals(NUM_FILES + NUM_DIRS, new Client("temp", pool).getDirectory().size());
+        }
+    }
+
+    @Test
+    public void testPoolEviction() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(false, 2, 200L, 1000L)) {
+            new Client("temp", pool).getDirectory();
+            assertEquals(1, pool.getIdle());
+
+            Thread.sleep(600);
+            assertEquals(0, pool.getIdle());
+            assertEquals(0, pool.getOpen());
+            assertEquals(NUM_FILES + NUM_DIRS, new Client("temp", pool).getDirectory().size());
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        int requests = 300;
+
+        for (boolean binary : new boolean[] { false, true }) {
+            try (AsyncClient client = new AsyncClient(binary)) {
+                List<CompletableFuture<Directory>> futures = new ArrayList<>();
+
+                // All in flight from one thread, more than the server works on for a connection.
+                for (int i = 0; i < requests; i++) {
+                    futures.add(client.getDirectoryAsync(i % 10 == 9 ? "test" : "temp"));
+                }
+                for (int i = 0; i < requests; i++) {
+                    if (i % 10 == 9) {
+                        try {
+                            futures.get(i).get();
+                            fail("Expected an exception");
+                        } catch (ExecutionException e) {
+                            assertTrue(e.getCause() instanceof ResponseException);
+                        }
+                    } else {
+                        assertEquals(NUM_FILES + NUM_DIRS, futures.get(i).get().size());
+                    }
+                }
+                assertEquals(0, client.getInFlight());
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncClose() throws Exception {
+        AsyncClient client = new AsyncClient(false, 1);
+        CompletableFuture<Directory> future = client.getDirectoryAsync("temp");
+
+        client.close();
+        // Answered before the connection closes.
+        assertEquals(NUM_FILES + NUM_DIRS, future.get(10, TimeUnit.SECONDS).size());
+        assertTrue(client.getDirectoryAsync("temp").isCompletedExceptionally());
+    }
+
+    @Test
+    public void testAsyncTimeout() throws Exception {
+        try (AsyncClient client = new AsyncClient(false, 1)) {
+            List<CompletableFuture<Directory>> futures = new ArrayList<>();
+
+            for (int i = 0; i < 20; i++) {
+                futures.add(client.getDirectoryAsync("temp", 1));
+            }
+            for (CompletableFuture<Directory> future : futures) {
+                try {
+                    assertEquals(NUM_FILES + NUM_DIRS, future.get(10, TimeUnit.SECONDS).size());
+                } catch (ExecutionException e) {
+                    assertEquals("Timed out!", e.getCause().getMessage());
+                }
+            }
+            // The replies to those that timed out are ignored, the connection is still used.
+            assertEquals(NUM_FILES + NUM_DIRS, client.getDirectoryAsync("temp").get(10, TimeUnit.SECONDS).size());
+            assertEquals(0, client.getInFlight());
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        for (boolean binary : new boolean[] { false, true }) {
+            DirectoryCache cache = new DirectoryCache(10, DirectoryCache.DEFAULT_MAX_ENTRIES, 200L);
+            Client client = new Client("temp", binary, cache);
+            Directory first = client.getDirectory();
+
+            assertEquals(new Directory("temp").toJSONString(), first.toJSONString());
+            assertEquals(1L, cache.getMisses());
+            // Fresh, so not asked for again.
+            assertTrue(first == new Client("temp", binary, cache).getDirectory());
+            assertEquals(1L, cache.getHits());
+
+            // Stale, the server says it is still current.
+            Thread.sleep(300);
+            assertTrue(first == client.getDirectory());
+            assertEquals(1L, cache.getRevalidated());
+            assertEquals(1L, cache.getMisses());
+            assertTrue(first == client.getDirectory());
+            assertEquals(2L, cache.getHits());
+
+            try {
+                new Client("test", binary, cache).getDirectory();
+                fail("Listed an unknown directory");
+            } catch (ResponseException e) {
+            }
+            assertEquals(1, cache.size());
+            cache.invalidate("temp");
+            assertEquals(first.toJSONString(), client.getDirectory().toJSONString());
+            assertEquals(2L, cache.getMisses());
+        }
+    }
+
+    @Test
+    public void testCacheEviction() throws Exception {
+        DirectoryCache cache = new DirectoryCache(2, NUM_FILES + NUM_DIRS - 1, DirectoryCache.DEFAULT_TTL);
+
+        new Client("temp/" + DIR_PREFIX + 0, false, cache).getDirectory();
+        new Client("temp/" + DIR_PREFIX + 1, false, cache).getDirectory();
+        assertEquals(2, cache.size());
+        // Too many entries to keep.
+        new Client("temp", false, cache).getDirectory();
+        new Client("temp", false, cache).getDirectory();
+        assertEquals(2, cache.size());
+        assertEquals(4L, cache.getMisses());
+
+        // The least recently used goes.
+        new Client("temp/" + DIR_PREFIX + 0, false, cache).getDirectory();
+        new Client("temp/" + DIR_PREFIX + 2, false, cache).getDirectory();
+        new Client("temp/" + DIR_PREFIX + 0, false, cache).getDirectory();
+        assertEquals(2L, cache.getHits());
+        new Client("temp/" + DIR_PREFIX + 1, false, cache).getDirectory();
+        assertEquals(6L, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        Response response = ResponseFactory.getResponse("{\"notModified\":true,\"version\":42,\"id\":3}");
+
+        assertEquals(Response.RESPONSE_TYPE.NOT_MODIFIED, response.getType());
+        assertEquals(42L, response.getVersion());
+        assertEquals(3L, response.getId());
+    }
+
+    @Test
+    public void testOverloaded() throws Exception {
+        Response response = ResponseFactory.getResponse("{\"exception\":\"Server overloaded\",\"overloaded\":true}");
+
+        assertTrue(response.getException() instanceof OverloadedException);
+        response = ResponseFactory.getResponse("{\"exception\":\"No such directory: test\"}");
+        assertFalse(response.getException() instanceof OverloadedException);
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        Client client = new Client("temp");
+
+        client.getDirectory();
+        client.getDirectory();
+        try {
+            new Client("test").getDirectory();
+        } catch (ResponseException e) {
+        }
+
+        JSONObject stats = Client.getStats();
+        JSONObject cache = (JSONObject) stats.get("cache");
+
+        // Each listing and its bye, the stats message itself is counted once answered.
+        assertEquals(6L, stats.get("requests"));
+        assertEquals(1L, stats.get("exceptions"));
+        assertEquals(1L, cache.get("hits"));
+        // The unknown directory was a miss too.
+        assertEquals(1.0 / 3, (Double) cache.get("hitRatio"), 1e-9);
+        assertEquals(1L, ((JSONObject) stats.get("scanNanos")).get("count"));
+        assertEquals((long) (NUM_FILES + NUM_DIRS), ((JSONObject) stats.get("entries")).get("max"));
+        assertTrue((Long) ((JSONObject) stats.get("writeNanos")).get("p99") > 0);
+    }
+
 }
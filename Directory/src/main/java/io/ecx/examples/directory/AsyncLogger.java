@@ -0,0 +1,349 @@
+package io.ecx.examples.directory;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A logger that never makes the caller wait on the console, for the messages the client and server log as they run.
+ *
+ * <p>
+ * A record is put in a ring buffer of slots allocated up front and a background thread prints it. Putting one takes
+ * a compare and set to claim a slot and a few field writes, the payload is cut down to at most the maximum length
+ * first, so a listing several megabytes long costs no more to log than a short one. If the printing thread falls so
+ * far behind that the buffer is full the record is dropped and counted rather than waited for.
+ * </p>
+ * <p>
+ * Records below the level are skipped before anything is done. Records below {@link Level#WARN} can also be
+ * sampled, so that only one in so many is kept. The default logger is configured by system properties, read once:
+ * </p>
+ * <ul>
+ * <li><code>io.ecx.examples.log.level</code> - DEBUG, INFO (the default), WARN, ERROR or OFF, anything else is taken
+ * as INFO.</li>
+ * <li><code>io.ecx.examples.log.payload</code> - the most characters of a payload printed, default 256, at least
+ * zero.</li>
+ * <li><code>io.ecx.examples.log.sample</code> - keep one in this many records below WARN, default 1, all of
+ * them.</li>
+ * </ul>
+ * <p>
+ * The printing thread sleeps while there is nothing to print and is woken by the next record.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class AsyncLogger implements Closeable {
+    /** The system property that sets the default logger's level. */
+    public static final String LEVEL_PROPERTY = "io.ecx.examples.log.level";
+    /** The system property that sets the default logger's maximum payload length. */
+    public static final String PAYLOAD_PROPERTY = "io.ecx.examples.log.payload";
+    /** The system property that sets the default logger's sample rate. */
+    public static final String SAMPLE_PROPERTY = "io.ecx.examples.log.sample";
+    /** The default maximum payload length. */
+    public static final int DEFAULT_MAX_PAYLOAD = 256;
+    /** The default number of records the buffer holds. */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /** The levels, in increasing severity. */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private final Level level;
+    private final int maxPayload;
+    private final int sampleRate;
+    // Where the records are printed, or null for whatever System.out is when they are.
+    private final PrintStream out;
+    private final Slot[] slots;
+    private final int mask;
+    // The sequence each slot was last filled for, a slot is ready to print when it holds the one wanted.
+    private final AtomicLongArray published;
+    // The next sequence to be claimed and the next to be printed.
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong printed = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread printer;
+    // The printing thread is parked, or about to be, and has to be woken for the next record.
+    private volatile boolean idle;
+    private volatile boolean closed;
+
+    /**
+     * Get the logger configured by the system properties.
+     *
+     * @return the logger.
+     */
+    public static AsyncLogger getDefault() {
+        return Holder.DEFAULT;
+    }
+
+    /**
+     * Constructor, starts the printing thread.
+     *
+     * @param level
+     *            the lowest level logged.
+     * @param maxPayload
+     *            the most characters of a payload printed, less than zero is taken as zero.
+     * @param sampleRate
+     *            keep one in this many records below {@link Level#WARN}.
+     * @param capacity
+     *            the number of records the buffer holds, rounded up to a power of two.
+     * @param out
+     *            where the records are printed, or null for System.out.
+     */
+    public AsyncLogger(Level level, int maxPayload, int sampleRate, int capacity, PrintStream out) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        this.level = level;
+        this.maxPayload = Math.max(maxPayload, 0);
+        this.sampleRate = Math.max(sampleRate, 1);
+        this.out = out;
+        slots = new Slot[size];
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            published.set(i, -1L);
+        }
+        printer = new Thread(this::print, "AsyncLogger");
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    /**
+     * Check if records at a level are logged, to skip building a payload that would be thrown away.
+     *
+     * @param recordLevel
+     *            the level.
+     * @return true if records at the level are logged, though they may still be sampled out.
+     */
+    public boolean isEnabled(Level recordLevel) {
+        return recordLevel.compareTo(level) >= 0 && recordLevel != Level.OFF;
+    }
+
+    /**
+     * Log a record, printed as the message, a colon and the payload.
+     *
+     * @param recordLevel
+     *            the level.
+     * @param message
+     *            the message.
+     * @param payload
+     *            the payload, cut down to the maximum length, or null for none.
+     */
+    public void log(Level recordLevel, String message, String payload) {
+        if (closed) {
+            dropped.increment();
+            return;
+        } else if (!isEnabled(recordLevel)) {
+            return;
+        } else if (sampleRate > 1 && recordLevel.compareTo(Level.WARN) < 0
+                && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+
+        long sequence;
+
+        do {
+            sequence = claimed.get();
+            if (sequence - printed.get() >= slots.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = slots[(int) sequence & mask];
+
+        slot.level = recordLevel;
+        slot.message = message;
+        slot.payloadLength = payload != null ? payload.length() : -1;
+        slot.payload = payload != null && payload.length() > maxPayload ? payload.substring(0, maxPayload) : payload;
+        // Published before idle is read, so either the printing thread sees the record or it is woken.
+        published.set((int) sequence & mask, sequence);
+        if (idle) {
+            LockSupport.unpark(printer);
+        }
+    }
+
+    /**
+     * Log a record at {@link Level#DEBUG}.
+     *
+     * @param message
+     *            the message.
+     * @param payload
+     *            the payload, cut down to the maximum length, or null for none.
+     */
+    public void debug(String message, String payload) {
+        log(Level.DEBUG, message, payload);
+    }
+
+    /**
+     * Log a record at {@link Level#INFO}.
+     *
+     * @param message
+     *            the message.
+     * @param payload
+     *            the payload, cut down to the maximum length, or null for none.
+     */
+    public void info(String message, String payload) {
+        log(Level.INFO, message, payload);
+    }
+
+    /**
+     * Log a record at {@link Level#WARN}.
+     *
+     * @param message
+     *            the message.
+     * @param payload
+     *            the payload, cut down to the maximum length, or null for none.
+     */
+    public void warn(String message, String payload) {
+        log(Level.WARN, message, payload);
+    }
+
+    /**
+     * Log a record at {@link Level#ERROR}.
+     *
+     * @param message
+     *            the message.
+     * @param payload
+     *            the payload, cut down to the maximum length, or null for none.
+     */
+    public void error(String message, String payload) {
+        log(Level.ERROR, message, payload);
+    }
+
+    /**
+     * Get the number of records dropped as the buffer was full.
+     *
+     * @return the number dropped.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Wait for the records logged so far to be printed.
+     *
+     * @param timeout
+     *            the longest to wait, in milliseconds.
+     * @return true if they were all printed in time.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public boolean flush(long timeout) throws InterruptedException {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        while (printed.get() < target) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Stop the printing thread once it has printed the records already logged, any logged from now on are dropped.
+     * The records aren't waited for, see {@link #flush(long)}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(printer);
+    }
+
+    /*
+     * The printing thread, takes the records in order as each is published, until closed.
+     */
+    private void print() {
+        long next = 0;
+        StringBuilder line = new StringBuilder(maxPayload + 64);
+
+        while (true) {
+            int index = (int) next & mask;
+
+            if (published.get(index) != next) {
+                if (closed) {
+                    return;
+                }
+                idle = true;
+                // Checked again now idle is set, in case the record was published before.
+                if (published.get(index) != next && !closed) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                continue;
+            }
+
+            Slot slot = slots[index];
+            PrintStream target = out != null ? out : System.out;
+
+            line.setLength(0);
+            if (slot.level != Level.INFO) {
+                line.append(slot.level).append(' ');
+            }
+            line.append(slot.message);
+            if (slot.payload != null) {
+                line.append(": ").append(slot.payload);
+                if (slot.payloadLength > slot.payload.length()) {
+                    line.append("... (").append(slot.payloadLength).append(" chars)");
+                }
+            }
+            // Let the payload go before the slot is reused.
+            slot.message = null;
+            slot.payload = null;
+            target.println(line);
+            printed.lazySet(++next);
+        }
+    }
+
+    /**
+     * Get a level by name, for the level property.
+     *
+     * @param name
+     *            the name, in any case, or null.
+     * @return the level, or {@link Level#INFO} if the name isn't one.
+     */
+    static Level toLevel(String name) {
+        try {
+            return name != null ? Level.valueOf(name.trim().toUpperCase()) : Level.INFO;
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    /*
+     * A record, the fields are written by the thread that claimed the slot before it is published and read by the
+     * printing thread after.
+     */
+    private static class Slot {
+        private Level level;
+        private String message;
+        private String payload;
+        private int payloadLength;
+    }
+
+    /*
+     * Creates the default logger when it is first used.
+     */
+    private static class Holder {
+        private static final AsyncLogger DEFAULT = new AsyncLogger(toLevel(System.getProperty(LEVEL_PROPERTY)),
+                Integer.getInteger(PAYLOAD_PROPERTY, DEFAULT_MAX_PAYLOAD), Integer.getInteger(SAMPLE_PROPERTY, 1),
+                DEFAULT_CAPACITY, null);
+
+        static {
+            // Print what is left when the JVM exits normally.
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    DEFAULT.flush(1000);
+                } catch (InterruptedException e) {
+                }
+            }));
+        }
+    }
+}
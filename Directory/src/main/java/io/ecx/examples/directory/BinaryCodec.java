@@ -0,0 +1,457 @@
+package io.ecx.examples.directory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact binary codec, for connections that ask for it in the hello exchange.
+ *
+ * <p>
+ * Where the JSON codecs repeat the keys and write the sizes as decimal text for every entry, a listing here is:
+ * </p>
+ *
+ * <pre>
+ * listing = string path, varint count, entry * count
+ * entry   = byte flags, varint shared, varint suffix length, byte * suffix length, [varint size]
+ * flags   = 1 if a directory, + 2 if hidden
+ * string  = varint (length + 1), byte * length, 0 for null
+ * </pre>
+ *
+ * <p>
+ * The names are a front coded table, each name is the first <i>shared</i> bytes of the name before it followed by the
+ * suffix. Names in a listing are all different so an indexed string table would save nothing, but they often share a
+ * prefix with their neighbours. The size is only written for files. Varints are unsigned LEB128, seven bits a byte
+ * with the top bit set on all but the last.
+ * </p>
+ * <p>
+ * The codec isn't one of those chosen by {@link DirectoryCodec#CODEC_PROPERTY} as its output can't be embedded in a
+ * JSON message. On a binary connection each message is a frame, a type byte, a varint length and the payload, see
+ * {@link #writeFrame(OutputStream, int, byte[], int, int)}.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class BinaryCodec implements DirectoryCodec {
+    /** The name of this codec, and of the format asked for in the hello exchange. */
+    public static final String NAME = "binary";
+    /** A frame holding a UTF-8 JSON message, as it would be sent as a line of text. */
+    public static final int FRAME_JSON = 1;
+    /** A frame holding a listing reply, a varint version, the string cursor and then the listing. */
+    public static final int FRAME_LISTING = 2;
+    /** A listing reply to a message with an id, the varint id and then as {@link #FRAME_LISTING}. */
+    public static final int FRAME_LISTING_ID = 3;
+    /** A listing in a batch reply, the varint id, the string path asked for and then as {@link #FRAME_LISTING}. */
+    public static final int FRAME_BATCH_LISTING = 4;
+    /** A batch of the entries of a streamed listing, the varint id, 0 for none, and then the listing. */
+    public static final int FRAME_ENTRIES = 5;
+    /** The largest frame that will be read. */
+    public static final int MAX_FRAME_LENGTH = Integer.MAX_VALUE - 8;
+
+    private static final int DIRECTORY_FLAG = 1;
+    private static final int HIDDEN_FLAG = 2;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void write(Directory directory, OutputStream out) throws IOException {
+        byte[] names = directory.getNameBytes();
+        int[] offsets = directory.getNameOffsets();
+        Buffer buffer = new Buffer(offsets[directory.size()] + directory.size() * 4 + 16);
+        int previous = 0;
+        int previousLength = 0;
+
+        buffer.writeString(directory.getPath());
+        buffer.writeVarint(directory.size());
+        for (int i = 0; i < directory.size(); i++) {
+            int offset = offsets[i];
+            int length = offsets[i + 1] - offset;
+            int shared = 0;
+            int maxShared = Math.min(length, previousLength);
+
+            while (shared < maxShared && names[offset + shared] == names[previous + shared]) {
+                shared++;
+            }
+
+            boolean isDirectory = directory.isDirectory(i);
+
+            buffer.writeByte((isDirectory ? DIRECTORY_FLAG : 0) | (directory.isHidden(i) ? HIDDEN_FLAG : 0));
+            buffer.writeVarint(shared);
+            buffer.writeVarint(length - shared);
+            buffer.write(names, offset + shared, length - shared);
+            if (!isDirectory) {
+                buffer.writeVarint(directory.length(i));
+            }
+            previous = offset;
+            previousLength = length;
+        }
+
+        out.write(buffer.bytes, 0, buffer.length);
+        out.flush();
+    }
+
+    /**
+     * Read a listing, the rest of the stream is read.
+     */
+    @Override
+    public Directory read(InputStream in) throws IOException {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+
+        for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+            all.write(chunk, 0, n);
+        }
+        return read(all.toByteArray(), 0, all.size());
+    }
+
+    /**
+     * Read a listing from part of an array.
+     *
+     * @param bytes
+     *            the array holding the listing.
+     * @param offset
+     *            the start of the listing.
+     * @param length
+     *            the number of bytes to read.
+     * @return the listing.
+     * @throws IOException
+     *             if the bytes aren't a listing.
+     */
+    public Directory read(byte[] bytes, int offset, int length) throws IOException {
+        Input input = new Input(bytes, offset, offset + length);
+        String path = input.readString();
+        int count = input.readLength();
+
+        // Each entry takes at least three bytes, don't let a bad count size the listing.
+        if (count > length) {
+            throw new IOException("Bad count: " + count);
+        }
+        Directory directory = new Directory(path, count);
+        byte[] name = new byte[64];
+        int nameLength = 0;
+
+        for (int i = 0; i < count; i++) {
+            int flags = input.readByte();
+            int shared = input.readLength();
+            int suffix = input.readLength();
+
+            if (shared > nameLength) {
+                throw new IOException("Bad name at entry " + i);
+            }
+            if (shared + suffix > name.length) {
+                name = Arrays.copyOf(name, Math.max(name.length * 2, shared + suffix));
+            }
+            input.read(name, shared, suffix);
+            nameLength = shared + suffix;
+
+            boolean isDirectory = (flags & DIRECTORY_FLAG) != 0;
+            long size = isDirectory ? 0L : input.readVarint();
+            directory.addEntry(name, 0, nameLength, isDirectory, (flags & HIDDEN_FLAG) != 0, size);
+        }
+        return directory;
+    }
+
+    /**
+     * Write a frame, the stream isn't flushed.
+     *
+     * @param out
+     *            the destination for the frame.
+     * @param type
+     *            the type of the frame.
+     * @param payload
+     *            the array holding the payload.
+     * @param offset
+     *            the start of the payload.
+     * @param length
+     *            the length of the payload.
+     * @throws IOException
+     *             if the frame can't be written.
+     */
+    public static void writeFrame(OutputStream out, int type, byte[] payload, int offset, int length)
+            throws IOException {
+        out.write(type);
+        writeVarint(out, length);
+        out.write(payload, offset, length);
+    }
+
+    /**
+     * Read a frame.
+     *
+     * @param in
+     *            the source of the frame.
+     * @return the frame, or null if the stream ended before it.
+     * @throws IOException
+     *             if the frame can't be read.
+     */
+    public static Frame readFrame(InputStream in) throws IOException {
+        int type = in.read();
+
+        if (type < 0) {
+            return null;
+        }
+
+        long length = readVarint(in);
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame too long: " + length);
+        }
+
+        byte[] payload = new byte[(int) length];
+        readFully(in, payload);
+        return new Frame(type, payload);
+    }
+
+    /**
+     * Write an unsigned varint.
+     *
+     * @param out
+     *            the destination for the varint.
+     * @param value
+     *            the value, treated as unsigned.
+     * @throws IOException
+     *             if the varint can't be written.
+     */
+    public static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Read an unsigned varint.
+     *
+     * @param in
+     *            the source of the varint.
+     * @return the value.
+     * @throws IOException
+     *             if the varint can't be read.
+     */
+    public static long readVarint(InputStream in) throws IOException {
+        long value = 0L;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * Write a string, which may be null.
+     *
+     * @param out
+     *            the destination for the string.
+     * @param str
+     *            the string.
+     * @throws IOException
+     *             if the string can't be written.
+     */
+    public static void writeString(OutputStream out, String str) throws IOException {
+        if (str == null) {
+            writeVarint(out, 0);
+        } else {
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+
+            writeVarint(out, bytes.length + 1L);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read a string.
+     *
+     * @param in
+     *            the source of the string.
+     * @return the string, or null.
+     * @throws IOException
+     *             if the string can't be read.
+     */
+    public static String readString(InputStream in) throws IOException {
+        long length = readVarint(in);
+
+        if (length == 0) {
+            return null;
+        } else if (length - 1 > MAX_FRAME_LENGTH) {
+            throw new IOException("String too long: " + (length - 1));
+        }
+
+        byte[] bytes = new byte[(int) length - 1];
+        readFully(in, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        for (int n = 0; n < bytes.length;) {
+            int read = in.read(bytes, n, bytes.length - n);
+
+            if (read < 0) {
+                throw new EOFException();
+            }
+            n += read;
+        }
+    }
+
+    /**
+     * A frame read from a binary connection.
+     */
+    public static class Frame {
+        private final int type;
+        private final byte[] payload;
+
+        Frame(int type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        /**
+         * Get the type of the frame.
+         *
+         * @return {@link BinaryCodec#FRAME_JSON}, {@link BinaryCodec#FRAME_LISTING},
+         *         {@link BinaryCodec#FRAME_LISTING_ID} or {@link BinaryCodec#FRAME_BATCH_LISTING}, or another type from
+         *         a newer peer.
+         */
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * Get the payload.
+         *
+         * @return the payload.
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    /*
+     * A growable byte array, unsynchronized where ByteArrayOutputStream isn't.
+     */
+    private static class Buffer {
+        private byte[] bytes;
+        private int length;
+
+        Buffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void write(byte[] src, int offset, int count) {
+            ensure(count);
+            System.arraycopy(src, offset, bytes, length, count);
+            length += count;
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeString(String str) {
+            if (str == null) {
+                writeVarint(0);
+            } else {
+                byte[] utf8 = str.getBytes(StandardCharsets.UTF_8);
+
+                writeVarint(utf8.length + 1L);
+                write(utf8, 0, utf8.length);
+            }
+        }
+
+        private void ensure(int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+        }
+    }
+
+    /*
+     * A cursor over an array, checking each read against the end.
+     */
+    private static class Input {
+        private final byte[] bytes;
+        private final int end;
+        private int position;
+
+        Input(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        int readByte() throws EOFException {
+            if (position >= end) {
+                throw new EOFException();
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0L;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Varint too long");
+        }
+
+        int readLength() throws IOException {
+            long value = readVarint();
+
+            if (value > Integer.MAX_VALUE) {
+                throw new IOException("Bad length: " + value);
+            }
+            return (int) value;
+        }
+
+        void read(byte[] dst, int offset, int count) throws EOFException {
+            if (count > end - position) {
+                throw new EOFException();
+            }
+            System.arraycopy(bytes, position, dst, offset, count);
+            position += count;
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+
+            if (length == 0) {
+                return null;
+            } else if (length - 1 > end - position) {
+                throw new EOFException();
+            }
+
+            String str = new String(bytes, position, length - 1, StandardCharsets.UTF_8);
+            position += length - 1;
+            return str;
+        }
+    }
+}
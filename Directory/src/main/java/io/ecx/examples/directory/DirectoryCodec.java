@@ -0,0 +1,80 @@
+package io.ecx.examples.directory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads and writes the wire form of a {@link Directory} listing.
+ *
+ * <p>
+ * The codec used by the client and server is chosen with the <code>io.ecx.examples.codec</code> system property,
+ * <i>json-simple</i> (the default) or <i>jackson</i>, anything else is taken as json-simple. The property is read
+ * each time {@link #getDefault()} is called, so it can be changed while the server is running. Both codecs read what
+ * the other writes. The {@link BinaryCodec} is only used on connections that ask for it.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public interface DirectoryCodec {
+    /** The system property that selects the codec. */
+    String CODEC_PROPERTY = "io.ecx.examples.codec";
+
+    /**
+     * Get the codec selected by the system property.
+     *
+     * @return the codec, json-simple if the property doesn't name one.
+     */
+    static DirectoryCodec getDefault() {
+        return JacksonCodec.NAME.equalsIgnoreCase(System.getProperty(CODEC_PROPERTY)) ? new JacksonCodec()
+                : new JsonSimpleCodec();
+    }
+
+    /**
+     * Get a codec by name.
+     *
+     * @param name
+     *            <i>json-simple</i> or <i>jackson</i>.
+     * @return the codec.
+     * @throws IllegalArgumentException
+     *             if the name isn't known.
+     */
+    static DirectoryCodec forName(String name) {
+        if (JsonSimpleCodec.NAME.equalsIgnoreCase(name)) {
+            return new JsonSimpleCodec();
+        } else if (JacksonCodec.NAME.equalsIgnoreCase(name)) {
+            return new JacksonCodec();
+        }
+        throw new IllegalArgumentException("Unknown codec: " + name);
+    }
+
+    /**
+     * Get the name of this codec.
+     *
+     * @return the name.
+     */
+    String getName();
+
+    /**
+     * Write a listing, as UTF-8 JSON text for the JSON codecs, the stream is flushed but not closed.
+     *
+     * @param directory
+     *            the listing to write.
+     * @param out
+     *            the destination for the text.
+     * @throws IOException
+     *             if the text can't be written.
+     */
+    void write(Directory directory, OutputStream out) throws IOException;
+
+    /**
+     * Read a listing, from UTF-8 JSON text for the JSON codecs, the stream is not closed.
+     *
+     * @param in
+     *            the source of the text.
+     * @return the listing.
+     * @throws IOException
+     *             if the text can't be read or isn't a listing.
+     */
+    Directory read(InputStream in) throws IOException;
+}
@@ -0,0 +1,188 @@
+package io.ecx.examples.directory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONAware;
+import org.json.simple.JSONObject;
+
+/**
+ * The changes between two listings of a directory, as made by {@link Directory#diff(Directory)}.
+ *
+ * <p>
+ * The added and modified entries are held as listings of their own, so they are sent the same way as a full
+ * listing. The JSON form is:
+ * </p>
+ *
+ * <pre>
+ * {"added":<i>&lt;directory&gt;</i>,"modified":<i>&lt;directory&gt;</i>,"removed":[<i>&lt;name&gt;</i>, ...]}
+ * </pre>
+ *
+ * @author Paul Hounslow
+ */
+public class DirectoryDelta implements JSONAware {
+    private final Directory added;
+    private final Directory modified;
+    private final List<String> removed;
+
+    /**
+     * Constructor.
+     *
+     * @param added
+     *            the entries that are new.
+     * @param modified
+     *            the new state of the entries that have changed.
+     * @param removed
+     *            the names of the entries that have gone.
+     */
+    public DirectoryDelta(Directory added, Directory modified, List<String> removed) {
+        this.added = added;
+        this.modified = modified;
+        this.removed = Collections.unmodifiableList(new ArrayList<>(removed));
+    }
+
+    /**
+     * Constructor for no changes.
+     *
+     * @param path
+     *            the path of the directory.
+     */
+    public DirectoryDelta(String path) {
+        this(new Directory(path, 0), new Directory(path, 0), Collections.<String> emptyList());
+    }
+
+    /**
+     * Constructor to load a delta from a JSON object.
+     *
+     * @param obj
+     *            the JSON Object to load.
+     */
+    public DirectoryDelta(JSONObject obj) {
+        List<String> tempRemoved = new ArrayList<>();
+
+        for (Object o : (JSONArray) obj.get("removed")) {
+            tempRemoved.add((String) o);
+        }
+
+        added = new Directory((JSONObject) obj.get("added"));
+        modified = new Directory((JSONObject) obj.get("modified"));
+        removed = Collections.unmodifiableList(tempRemoved);
+    }
+
+    /**
+     * Get the entries that are new.
+     *
+     * @return the added entries.
+     */
+    public Directory getAdded() {
+        return added;
+    }
+
+    /**
+     * Get the new state of the entries that have changed.
+     *
+     * @return the modified entries.
+     */
+    public Directory getModified() {
+        return modified;
+    }
+
+    /**
+     * Get the names of the entries that have gone.
+     *
+     * @return the removed names, in the order they were listed.
+     */
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Check if nothing has changed.
+     *
+     * @return true if there are no changes.
+     */
+    public boolean isEmpty() {
+        return added.size() == 0 && modified.size() == 0 && removed.isEmpty();
+    }
+
+    /**
+     * Apply the changes to a listing.
+     *
+     * <p>
+     * The listing isn't changed. Entries keep their place in the new listing, with the added ones at the end. An added
+     * entry that is already in the listing replaces it, as a modified entry does.
+     * </p>
+     *
+     * @param base
+     *            the listing the delta was made from.
+     * @return the new listing.
+     */
+    public Directory apply(Directory base) {
+        Directory result = new Directory(base.getPath(), base.size() + added.size());
+        Set<String> gone = new HashSet<>(removed);
+        // The changed entries by name, an index into modified or, offset by its size, into added.
+        Map<String, Integer> changes = new LinkedHashMap<>();
+
+        for (int i = 0; i < modified.size(); i++) {
+            changes.put(modified.getName(i), i);
+        }
+        for (int i = 0; i < added.size(); i++) {
+            changes.put(added.getName(i), modified.size() + i);
+        }
+
+        for (int i = 0; i < base.size(); i++) {
+            String name = base.getName(i);
+            Integer change = changes.remove(name);
+
+            if (change != null) {
+                addEntry(result, name, change);
+            } else if (!gone.contains(name)) {
+                result.addEntry(name, base.isDirectory(i), base.isHidden(i), base.length(i));
+            }
+        }
+        for (Map.Entry<String, Integer> change : changes.entrySet()) {
+            addEntry(result, change.getKey(), change.getValue());
+        }
+
+        return result;
+    }
+
+    /**
+     * Create the JSON object for this delta.
+     *
+     * @return a JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject getJSON() {
+        JSONObject obj = new JSONObject();
+        JSONArray list = new JSONArray();
+
+        list.addAll(removed);
+        obj.put("added", added);
+        obj.put("modified", modified);
+        obj.put("removed", list);
+
+        return obj;
+    }
+
+    @Override
+    public String toJSONString() {
+        return getJSON().toJSONString();
+    }
+
+    /*
+     * Add a changed entry to a listing.
+     */
+    private void addEntry(Directory result, String name, int change) {
+        Directory from = change < modified.size() ? modified : added;
+        int index = change < modified.size() ? change : change - modified.size();
+
+        result.addEntry(name, from.isDirectory(index), from.isHidden(index), from.length(index));
+    }
+}
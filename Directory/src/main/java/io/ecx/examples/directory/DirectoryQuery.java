@@ -0,0 +1,535 @@
+package io.ecx.examples.directory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+
+import org.json.simple.JSONAware;
+import org.json.simple.JSONObject;
+
+/**
+ * A query on a directory listing, which entries to keep, what order to put them in and how many to return.
+ *
+ * <p>
+ * Every part is optional, an empty query keeps all the entries in the order they were listed. The JSON form is:
+ * </p>
+ *
+ * <pre>
+ * {"glob":"*.log","regex":"^a.*","hidden":false,"type":"file","sort":"size","order":"desc","limit":10}
+ * </pre>
+ *
+ * <p>
+ * A name must match both the glob and the regex when both are given. Names sort in the order of their code points, the
+ * same order as {@link Directory#getPage(String, int)}, and sizes sort with ties in name order. A limit with a sort
+ * keeps only the best entries so far in a heap of that size, so the whole directory is never sorted for the top few.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class DirectoryQuery implements JSONAware {
+    /**
+     * The types of entry.
+     */
+    public enum Type {
+        /** Only files. */
+        FILE,
+        /** Only directories. */
+        DIRECTORY
+    }
+
+    /**
+     * The keys a listing can be sorted on.
+     */
+    public enum Sort {
+        /** By name. */
+        NAME,
+        /** By size, then name. */
+        SIZE
+    }
+
+    // The most room made up front for the entries kept, the limit may come from a client and be far larger than any
+    // directory.
+    private static final int MAX_INITIAL_CAPACITY = 1024;
+
+    private String glob;
+    private Pattern globPattern;
+    private Pattern regex;
+    private Boolean hidden;
+    private Type type;
+    private Sort sort;
+    private boolean descending;
+    private int limit;
+
+    /**
+     * Constructor for a query that keeps everything.
+     */
+    public DirectoryQuery() {
+    }
+
+    /**
+     * Constructor to load a query from a JSON object.
+     *
+     * @param obj
+     *            the JSON Object to load.
+     * @throws IllegalArgumentException
+     *             if a field isn't understood.
+     */
+    public DirectoryQuery(JSONObject obj) {
+        try {
+            setGlob((String) obj.get("glob"));
+            setRegex((String) obj.get("regex"));
+            setHidden((Boolean) obj.get("hidden"));
+            setType(obj.get("type") == null ? null : Type.valueOf(upperCase(obj.get("type"))));
+            setSort(obj.get("sort") == null ? null : Sort.valueOf(upperCase(obj.get("sort"))));
+            if (obj.get("order") != null) {
+                if (!"asc".equals(obj.get("order")) && !"desc".equals(obj.get("order"))) {
+                    throw new IllegalArgumentException("Unknown order: " + obj.get("order"));
+                }
+                setDescending("desc".equals(obj.get("order")));
+            }
+            if (obj.get("limit") != null) {
+                long value = (Long) obj.get("limit");
+
+                if (value > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Bad limit: " + value);
+                }
+                setLimit((int) value);
+            }
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Bad query: " + obj, e);
+        }
+    }
+
+    /**
+     * Get the glob names must match.
+     *
+     * @return the glob, or null for any name.
+     */
+    public String getGlob() {
+        return glob;
+    }
+
+    /**
+     * Set the glob names must match. A glob has <code>*</code> for any run of characters, <code>?</code> for any one
+     * character, <code>[...]</code> for a class of characters, <code>[!...]</code> for its complement and
+     * <code>{a,b}</code> for alternatives. A backslash quotes the next character.
+     *
+     * @param glob
+     *            the glob, or null for any name.
+     * @throws IllegalArgumentException
+     *             if the glob isn't valid.
+     */
+    public void setGlob(String glob) {
+        this.globPattern = glob == null ? null : Pattern.compile(globToRegex(glob));
+        this.glob = glob;
+    }
+
+    /**
+     * Get the regular expression names must match.
+     *
+     * @return the regular expression, or null for any name.
+     */
+    public String getRegex() {
+        return regex == null ? null : regex.pattern();
+    }
+
+    /**
+     * Set the regular expression names must match, it may match anywhere in the name.
+     *
+     * @param regex
+     *            the regular expression, or null for any name.
+     * @throws IllegalArgumentException
+     *             if the regular expression isn't valid.
+     */
+    public void setRegex(String regex) {
+        this.regex = regex == null ? null : Pattern.compile(regex);
+    }
+
+    /**
+     * Get the hidden flag entries must have.
+     *
+     * @return true for only hidden entries, false for only visible ones, or null for both.
+     */
+    public Boolean getHidden() {
+        return hidden;
+    }
+
+    /**
+     * Set the hidden flag entries must have.
+     *
+     * @param hidden
+     *            true for only hidden entries, false for only visible ones, or null for both.
+     */
+    public void setHidden(Boolean hidden) {
+        this.hidden = hidden;
+    }
+
+    /**
+     * Get the type entries must have.
+     *
+     * @return the type, or null for both.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Set the type entries must have.
+     *
+     * @param type
+     *            the type, or null for both.
+     */
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    /**
+     * Get the sort key.
+     *
+     * @return the sort key, or null to keep the entries in the order they were listed.
+     */
+    public Sort getSort() {
+        return sort;
+    }
+
+    /**
+     * Set the sort key.
+     *
+     * @param sort
+     *            the sort key, or null to keep the entries in the order they were listed.
+     */
+    public void setSort(Sort sort) {
+        this.sort = sort;
+    }
+
+    /**
+     * Check if the sort is descending.
+     *
+     * @return true if the sort is descending.
+     */
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * Set the direction of the sort.
+     *
+     * @param descending
+     *            true for a descending sort.
+     */
+    public void setDescending(boolean descending) {
+        this.descending = descending;
+    }
+
+    /**
+     * Get the maximum number of entries.
+     *
+     * @return the limit, or 0 for no limit.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Set the maximum number of entries, the first in the sort order or the first listed if there is no sort.
+     *
+     * @param limit
+     *            the limit, or 0 for no limit.
+     * @throws IllegalArgumentException
+     *             if the limit is negative.
+     */
+    public void setLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Bad limit: " + limit);
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Check if a name matches the glob and regular expression, before anything else about the entry is known.
+     *
+     * @param name
+     *            the name of the entry.
+     * @return true if the name matches.
+     */
+    public boolean acceptsName(String name) {
+        return (globPattern == null || globPattern.matcher(name).matches())
+                && (regex == null || regex.matcher(name).find());
+    }
+
+    /**
+     * Check if an entry matches the query.
+     *
+     * @param name
+     *            the name of the entry.
+     * @param isDirectory
+     *            true if the entry is a directory.
+     * @param isHidden
+     *            true if the entry is hidden.
+     * @return true if the entry matches.
+     */
+    public boolean accepts(String name, boolean isDirectory, boolean isHidden) {
+        return acceptsAttributes(isDirectory, isHidden) && acceptsName(name);
+    }
+
+    /**
+     * Apply the query to a listing already in memory.
+     *
+     * @param directory
+     *            the listing, which isn't changed.
+     * @return the matching entries, as a listing of the same directory.
+     */
+    public Directory apply(Directory directory) {
+        Selection selection = select(directory.getPath());
+
+        for (int i = 0; i < directory.size() && !selection.isFull(); i++) {
+            // The flags are cheaper to check than the name is to decode.
+            if (acceptsAttributes(directory.isDirectory(i), directory.isHidden(i))) {
+                String name = directory.getName(i);
+
+                if (acceptsName(name)) {
+                    selection.offer(name, directory.isDirectory(i), directory.isHidden(i), directory.length(i));
+                }
+            }
+        }
+        return selection.getResult();
+    }
+
+    /**
+     * Create the JSON object for this query, leaving out the parts that aren't set.
+     *
+     * @return a JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject getJSON() {
+        JSONObject obj = new JSONObject();
+
+        if (glob != null) {
+            obj.put("glob", glob);
+        }
+        if (regex != null) {
+            obj.put("regex", regex.pattern());
+        }
+        if (hidden != null) {
+            obj.put("hidden", hidden);
+        }
+        if (type != null) {
+            obj.put("type", type.name().toLowerCase(Locale.ROOT));
+        }
+        if (sort != null) {
+            obj.put("sort", sort.name().toLowerCase(Locale.ROOT));
+        }
+        if (descending) {
+            obj.put("order", "desc");
+        }
+        if (limit > 0) {
+            obj.put("limit", (long) limit);
+        }
+
+        return obj;
+    }
+
+    @Override
+    public String toJSONString() {
+        return getJSON().toJSONString();
+    }
+
+    /*
+     * Start a selection of the entries of a directory.
+     */
+    Selection select(String path) {
+        return new Selection(path);
+    }
+
+    private boolean acceptsAttributes(boolean isDirectory, boolean isHidden) {
+        return (hidden == null || hidden == isHidden)
+                && (type == null || (type == Type.DIRECTORY) == isDirectory);
+    }
+
+    private static String upperCase(Object value) {
+        return ((String) value).toUpperCase(Locale.ROOT);
+    }
+
+    /*
+     * Turn a glob into a regular expression matching the whole name.
+     */
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder(glob.length() * 2);
+        int braces = 0;
+
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+
+            switch (c) {
+            case '*':
+                regex.append(".*");
+                break;
+            case '?':
+                regex.append('.');
+                break;
+            case '[':
+                int end = glob.indexOf(']', i + 2);
+
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed [ in glob: " + glob);
+                }
+                regex.append('[');
+                if (glob.charAt(i + 1) == '!') {
+                    regex.append('^');
+                    i++;
+                }
+                for (i++; i < end; i++) {
+                    char member = glob.charAt(i);
+
+                    // Only a range is special inside a class.
+                    if (member == '-' && i + 1 < end && regex.charAt(regex.length() - 1) != '[') {
+                        regex.append('-');
+                    } else {
+                        appendQuoted(regex, member);
+                    }
+                }
+                regex.append(']');
+                break;
+            case '{':
+                regex.append("(?:");
+                braces++;
+                break;
+            case '}':
+                if (braces > 0) {
+                    regex.append(')');
+                    braces--;
+                } else {
+                    regex.append("\\}");
+                }
+                break;
+            case ',':
+                regex.append(braces > 0 ? "|" : ",");
+                break;
+            case '\\':
+                if (++i == glob.length()) {
+                    throw new IllegalArgumentException("Trailing \\ in glob: " + glob);
+                }
+                appendQuoted(regex, glob.charAt(i));
+                break;
+            default:
+                appendQuoted(regex, c);
+            }
+        }
+        if (braces > 0) {
+            throw new IllegalArgumentException("Unclosed { in glob: " + glob);
+        }
+        return regex.toString();
+    }
+
+    /*
+     * A backslash before any character but a letter or digit makes it literal, in a class or out of one.
+     */
+    private static void appendQuoted(StringBuilder regex, char c) {
+        if (!Character.isLetterOrDigit(c)) {
+            regex.append('\\');
+        }
+        regex.append(c);
+    }
+
+    /*
+     * The entries of one directory as they are selected. Without a sort they go straight into the result, with a sort
+     * and a limit into a heap with the worst of the best so far at the top, and with a sort and no limit into a
+     * listing that is sorted at the end.
+     */
+    class Selection {
+        private final Directory result;
+        private final PriorityQueue<Entry> heap;
+        private final Comparator<Entry> order;
+        private Directory unsorted;
+
+        Selection(String path) {
+            result = new Directory(path, sort == null ? Math.min(limit, MAX_INITIAL_CAPACITY) : 0);
+            if (sort != null && limit > 0) {
+                Comparator<Entry> ascending = sort == Sort.SIZE ? Entry.BY_SIZE : Entry.BY_NAME;
+
+                order = descending ? ascending.reversed() : ascending;
+                heap = new PriorityQueue<>(Math.min(limit, MAX_INITIAL_CAPACITY) + 1, order.reversed());
+            } else {
+                order = null;
+                heap = null;
+                unsorted = sort != null ? new Directory(path, 0) : null;
+            }
+        }
+
+        boolean acceptsName(String name) {
+            return DirectoryQuery.this.acceptsName(name);
+        }
+
+        /*
+         * Offer an entry whose name has been accepted.
+         */
+        void offer(String name, boolean isDirectory, boolean isHidden, long size) {
+            if (!acceptsAttributes(isDirectory, isHidden)) {
+                return;
+            } else if (heap != null) {
+                Entry entry = new Entry(name, isDirectory, isHidden, size);
+
+                if (heap.size() < limit) {
+                    heap.add(entry);
+                } else if (order.compare(entry, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(entry);
+                }
+            } else if (unsorted != null) {
+                unsorted.addEntry(name, isDirectory, isHidden, size);
+            } else if (!isFull()) {
+                result.addEntry(name, isDirectory, isHidden, size);
+            }
+        }
+
+        /*
+         * Check if no more entries can change the result.
+         */
+        boolean isFull() {
+            return sort == null && limit > 0 && result.size() >= limit;
+        }
+
+        Directory getResult() {
+            if (heap != null) {
+                Entry[] best = new Entry[heap.size()];
+
+                for (int i = best.length - 1; i >= 0; i--) {
+                    best[i] = heap.poll();
+                }
+                for (Entry entry : best) {
+                    result.addEntry(entry.name, 0, entry.name.length, entry.isDirectory, entry.isHidden, entry.size);
+                }
+            } else if (unsorted != null) {
+                return unsorted.sort(sort == Sort.SIZE, descending);
+            }
+            return result;
+        }
+    }
+
+    /*
+     * An entry held in the heap, the name kept as UTF-8 to compare it in code point order.
+     */
+    private static class Entry {
+        static final Comparator<Entry> BY_NAME = (first, second) -> Directory.compareBytes(first.name, 0,
+                first.name.length, second.name, 0, second.name.length);
+        static final Comparator<Entry> BY_SIZE = (first, second) -> {
+            int diff = Long.compare(first.size, second.size);
+
+            return diff != 0 ? diff : BY_NAME.compare(first, second);
+        };
+
+        final byte[] name;
+        final boolean isDirectory;
+        final boolean isHidden;
+        final long size;
+
+        Entry(String name, boolean isDirectory, boolean isHidden, long size) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.isDirectory = isDirectory;
+            this.isHidden = isHidden;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package io.ecx.examples.directory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Recursive directory listing example.
+ *
+ * <p>
+ * The tree is walked with fork/join tasks, one task per subdirectory, so idle threads steal the subdirectories that
+ * are waiting to be listed. Each node of the tree holds the {@link Directory} listing for that directory and the
+ * totals for the whole subtree below it.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class DirectoryTree {
+    /** Use as the maximum depth to walk the whole tree. */
+    public static final int UNLIMITED_DEPTH = Integer.MAX_VALUE;
+
+    private final Directory directory;
+    private final List<DirectoryTree> children;
+    private final long totalSize;
+    private final long fileCount;
+    private final long directoryCount;
+
+    /**
+     * Command line utility to summarise a directory tree.
+     *
+     * <p>
+     * Usage: java DirectoryTree [<i>directory</i>] [<i>depth</i>]
+     * </p>
+     *
+     * @param args
+     *            command line arguments.
+     */
+    public static void main(String[] args) {
+        String name = args.length > 0 ? args[0] : ".";
+        int maxDepth = args.length > 1 ? Integer.parseInt(args[1]) : UNLIMITED_DEPTH;
+
+        try {
+            DirectoryTree tree = new DirectoryTree(name, Runtime.getRuntime().availableProcessors(), maxDepth, false);
+
+            tree.printSummary(System.out);
+        } catch (NullPointerException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Constructor to walk the whole tree, one thread per processor, without following links.
+     *
+     * @param name
+     *            the name of the root directory.
+     */
+    public DirectoryTree(String name) {
+        this(name, Runtime.getRuntime().availableProcessors(), UNLIMITED_DEPTH, false);
+    }
+
+    /**
+     * Constructor to walk a tree.
+     *
+     * <p>
+     * Subdirectories that can't be listed are counted in their parent but have no node of their own.
+     * </p>
+     *
+     * @param name
+     *            the name of the root directory.
+     * @param parallelism
+     *            the number of threads to walk the tree with.
+     * @param maxDepth
+     *            the number of levels below the root to walk, 0 lists only the root.
+     * @param followLinks
+     *            true to walk into linked directories, a link back to a directory already being walked is not
+     *            followed.
+     */
+    public DirectoryTree(String name, int parallelism, int maxDepth, boolean followLinks) {
+        Directory root = new Directory(name);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        DirectoryTree tree;
+
+        try {
+            Ancestor ancestor = followLinks ? new Ancestor(fileKey(Paths.get(root.getPath())), null) : null;
+            tree = pool.invoke(new WalkTask(root, 0, maxDepth, followLinks, ancestor));
+        } finally {
+            pool.shutdown();
+        }
+        directory = tree.directory;
+        children = tree.children;
+        totalSize = tree.totalSize;
+        fileCount = tree.fileCount;
+        directoryCount = tree.directoryCount;
+    }
+
+    /*
+     * Constructor for a node once its subdirectories have been walked.
+     */
+    private DirectoryTree(Directory directory, List<DirectoryTree> children) {
+        long tempSize = 0L;
+        long tempFiles = 0L;
+        long tempDirectories = 0L;
+
+        for (int i = 0; i < directory.size(); i++) {
+            if (directory.isDirectory(i)) {
+                tempDirectories++;
+            } else {
+                tempFiles++;
+                tempSize += directory.length(i);
+            }
+        }
+        for (DirectoryTree child : children) {
+            tempSize += child.totalSize;
+            tempFiles += child.fileCount;
+            tempDirectories += child.directoryCount;
+        }
+
+        this.directory = directory;
+        this.children = Collections.unmodifiableList(children);
+        totalSize = tempSize;
+        fileCount = tempFiles;
+        directoryCount = tempDirectories;
+    }
+
+    /**
+     * Get the listing of this directory.
+     *
+     * @return the directory listing.
+     */
+    public Directory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the subdirectories that were walked.
+     *
+     * @return the subtrees, in listing order.
+     */
+    public List<DirectoryTree> getChildren() {
+        return children;
+    }
+
+    /**
+     * Get the total size of the files in this subtree.
+     *
+     * @return the size in bytes.
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Get the number of files in this subtree.
+     *
+     * @return the number of files.
+     */
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Get the number of directories in this subtree, not counting this one.
+     *
+     * @return the number of directories.
+     */
+    public long getDirectoryCount() {
+        return directoryCount;
+    }
+
+    /**
+     * Print the totals for each directory in the tree.
+     *
+     * @param out
+     *            the destination for the summary.
+     */
+    public void printSummary(PrintStream out) {
+        out.println(directory.getPath() + ": " + fileCount + " files, " + directoryCount + " directories, " + totalSize
+                + " bytes");
+        for (DirectoryTree child : children) {
+            child.printSummary(out);
+        }
+    }
+
+    /*
+     * Get the key that identifies a directory, following links.
+     */
+    private static Object fileKey(Path path) {
+        try {
+            Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+
+            // Not all file systems have keys, the real path will do instead.
+            return key != null ? key : path.toRealPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*
+     * The chain of directories from the root to the one being walked, used to spot link loops.
+     */
+    private static class Ancestor {
+        private final Object key;
+        private final Ancestor parent;
+
+        Ancestor(Object key, Ancestor parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+
+        boolean contains(Object other) {
+            for (Ancestor ancestor = this; ancestor != null; ancestor = ancestor.parent) {
+                if (other.equals(ancestor.key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /*
+     * List a directory and walk its subdirectories, one subtask for each.
+     */
+    private static class WalkTask extends RecursiveTask<DirectoryTree> {
+        private static final long serialVersionUID = -3253387442014532452L;
+
+        private final Path path;
+        private final Directory listing;
+        private final int depth;
+        private final int maxDepth;
+        private final boolean followLinks;
+        private final Ancestor ancestor;
+
+        WalkTask(Directory listing, int depth, int maxDepth, boolean followLinks, Ancestor ancestor) {
+            this(null, listing, depth, maxDepth, followLinks, ancestor);
+        }
+
+        /*
+         * Constructor for a subdirectory, the listing is left to compute() so it runs on the thread that takes the
+         * task.
+         */
+        private WalkTask(Path path, Directory listing, int depth, int maxDepth, boolean followLinks,
+                Ancestor ancestor) {
+            this.path = path;
+            this.listing = listing;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.followLinks = followLinks;
+            this.ancestor = ancestor;
+        }
+
+        @Override
+        protected DirectoryTree compute() {
+            Directory directory = listing;
+            List<WalkTask> tasks = new ArrayList<>();
+            List<DirectoryTree> children = new ArrayList<>();
+
+            if (directory == null) {
+                try {
+                    directory = new Directory(path.toString());
+                } catch (NullPointerException e) {
+                    return null;
+                }
+            }
+
+            if (depth < maxDepth) {
+                for (int i = 0; i < directory.size(); i++) {
+                    if (directory.isDirectory(i)) {
+                        WalkTask task = createTask(Paths.get(directory.getPath(), directory.getName(i)));
+
+                        if (task != null) {
+                            task.fork();
+                            tasks.add(task);
+                        }
+                    }
+                }
+                for (WalkTask task : tasks) {
+                    DirectoryTree child = task.join();
+
+                    if (child != null) {
+                        children.add(child);
+                    }
+                }
+            }
+
+            return new DirectoryTree(directory, children);
+        }
+
+        /*
+         * Create the task for a subdirectory, or null if it shouldn't be walked.
+         */
+        private WalkTask createTask(Path child) {
+            Ancestor childAncestor = null;
+
+            if (followLinks) {
+                Object key = fileKey(child);
+
+                if (key == null || ancestor.contains(key)) {
+                    return null;
+                }
+                childAncestor = new Ancestor(key, ancestor);
+            } else if (Files.isSymbolicLink(child)) {
+                return null;
+            }
+
+            return new WalkTask(child, null, depth + 1, maxDepth, followLinks, childAncestor);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package io.ecx.examples.directory;
+
+import java.io.IOException;
+
+/**
+ * Receives the entries of a directory a batch at a time as they are read, see
+ * {@link Directory#stream(String, int, EntryListener)}, so they can be used or sent on before the whole directory has
+ * been read.
+ *
+ * @author Paul Hounslow
+ */
+public interface EntryListener {
+
+    /**
+     * The directory has been opened, called once before any entries.
+     *
+     * @param path
+     *            the absolute path of the directory.
+     * @throws IOException
+     *             to stop reading the directory.
+     */
+    void start(String path) throws IOException;
+
+    /**
+     * A batch of entries has been read.
+     *
+     * @param batch
+     *            the entries, as a listing of the directory, that is the listener's to keep.
+     * @throws IOException
+     *             to stop reading the directory.
+     */
+    void entries(Directory batch) throws IOException;
+}
@@ -0,0 +1,207 @@
+package io.ecx.examples.directory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The Jackson streaming codec, listings are read and written a token at a time with no intermediate objects.
+ *
+ * <p>
+ * The keys are written in the same order as json-simple writes them. The escaping differs (Jackson doesn't escape
+ * '/' for example) but both read the same strings back.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class JacksonCodec implements DirectoryCodec {
+    /** The name of this codec. */
+    public static final String NAME = "jackson";
+
+    // Factories are thread safe once configured.
+    private static final JsonFactory FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    /**
+     * Get the factory used by this codec, for reading and writing the messages a listing is sent in.
+     *
+     * @return the factory.
+     */
+    public JsonFactory getFactory() {
+        return FACTORY;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void write(Directory directory, OutputStream out) throws IOException {
+        try (JsonGenerator generator = FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            write(directory, generator);
+        }
+    }
+
+    /**
+     * Write a listing as a JSON object.
+     *
+     * @param directory
+     *            the listing to write.
+     * @param generator
+     *            the destination for the object.
+     * @throws IOException
+     *             if the object can't be written.
+     */
+    public void write(Directory directory, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("files");
+        for (int i = 0; i < directory.size(); i++) {
+            generator.writeStartObject();
+            generator.writeBooleanField("hidden", directory.isHidden(i));
+            if (!directory.isDirectory(i)) {
+                generator.writeNumberField("size", directory.length(i));
+            }
+            generator.writeStringField("name", directory.getName(i));
+            generator.writeStringField("type", directory.isDirectory(i) ? "directory" : "file");
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeStringField("dir", directory.getPath());
+        generator.writeEndObject();
+    }
+
+    @Override
+    public Directory read(InputStream in) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            parser.nextToken();
+            return read(parser);
+        }
+    }
+
+    /**
+     * Read a listing from a JSON object. Entries with an unknown type are skipped, as they are by
+     * {@link Directory#Directory(org.json.simple.JSONObject)}.
+     *
+     * @param parser
+     *            the source of the object, at the start of the object. It is left at the end of the object.
+     * @return the listing.
+     * @throws IOException
+     *             if the object can't be read or isn't a listing.
+     */
+    public Directory read(JsonParser parser) throws IOException {
+        // json-simple puts the path after the entries, so they are read into a listing without one first.
+        Directory entries = new Directory(null, 0);
+        String path = null;
+
+        expect(parser, JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+
+            parser.nextToken();
+            if ("dir".equals(field)) {
+                path = parser.getValueAsString();
+            } else if ("files".equals(field)) {
+                expect(parser, JsonToken.START_ARRAY);
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    readEntry(parser, entries);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        expect(parser, JsonToken.END_OBJECT);
+
+        return new Directory(path, entries);
+    }
+
+    /**
+     * Read a delta from a JSON object, in the form written by {@link DirectoryDelta#toJSONString()}.
+     *
+     * @param parser
+     *            the source of the object, at the start of the object. It is left at the end of the object.
+     * @return the delta.
+     * @throws IOException
+     *             if the object can't be read or isn't a delta.
+     */
+    public DirectoryDelta readDelta(JsonParser parser) throws IOException {
+        Directory added = null;
+        Directory modified = null;
+        List<String> removed = new ArrayList<>();
+
+        expect(parser, JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+
+            parser.nextToken();
+            if ("added".equals(field)) {
+                added = read(parser);
+            } else if ("modified".equals(field)) {
+                modified = read(parser);
+            } else if ("removed".equals(field)) {
+                expect(parser, JsonToken.START_ARRAY);
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    removed.add(parser.getValueAsString());
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        expect(parser, JsonToken.END_OBJECT);
+
+        if (added == null || modified == null) {
+            throw new JsonParseException(parser, "Expected a delta");
+        }
+        return new DirectoryDelta(added, modified, removed);
+    }
+
+    /*
+     * Read an entry object and add it to the listing.
+     */
+    private void readEntry(JsonParser parser, Directory directory) throws IOException {
+        String name = null;
+        String type = null;
+        boolean hidden = false;
+        long size = 0L;
+
+        expect(parser, JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+
+            parser.nextToken();
+            if ("name".equals(field)) {
+                name = parser.getValueAsString();
+            } else if ("type".equals(field)) {
+                type = parser.getValueAsString();
+            } else if ("hidden".equals(field)) {
+                hidden = parser.getValueAsBoolean();
+            } else if ("size".equals(field)) {
+                size = parser.getValueAsLong();
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (name != null && "directory".equals(type)) {
+            directory.addEntry(name, true, hidden, 0L);
+        } else if (name != null && "file".equals(type)) {
+            directory.addEntry(name, false, hidden, size);
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken token) throws JsonParseException {
+        if (parser.getCurrentToken() != token) {
+            throw new JsonParseException(parser, "Expected " + token + ", got " + parser.getCurrentToken());
+        }
+    }
+}
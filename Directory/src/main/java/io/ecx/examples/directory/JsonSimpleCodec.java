@@ -0,0 +1,41 @@
+package io.ecx.examples.directory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * The json-simple codec, listings are read through a {@link JSONObject} tree and written by
+ * {@link Directory#writeJSON(OutputStream)}.
+ *
+ * @author Paul Hounslow
+ */
+public class JsonSimpleCodec implements DirectoryCodec {
+    /** The name of this codec. */
+    public static final String NAME = "json-simple";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void write(Directory directory, OutputStream out) throws IOException {
+        directory.writeJSON(out);
+    }
+
+    @Override
+    public Directory read(InputStream in) throws IOException {
+        try {
+            return new Directory((JSONObject) new JSONParser().parse(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        } catch (ParseException | ClassCastException e) {
+            throw new IOException("Not a directory listing", e);
+        }
+    }
+}
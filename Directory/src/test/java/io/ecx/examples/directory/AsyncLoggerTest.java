@@ -0,0 +1,175 @@
+package io.ecx.examples.directory;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class AsyncLoggerTest {
+	private static final long TIMEOUT = 5000;
+
+	@Test
+	public void testLevels() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		AsyncLogger logger = new AsyncLogger(AsyncLogger.Level.INFO, 100, 1, 16, print(bytes));
+
+		assertFalse(logger.isEnabled(AsyncLogger.Level.DEBUG));
+		assertTrue(logger.isEnabled(AsyncLogger.Level.ERROR));
+		logger.debug("Skipped", "debug");
+		logger.info("Server received", "{\"command\":\"bye\"}");
+		logger.warn("Slow", null);
+		assertTrue(logger.flush(TIMEOUT));
+		assertEquals(Arrays.asList("Server received: {\"command\":\"bye\"}", "WARN Slow"), lines(bytes));
+	}
+
+	@Test
+	public void testTruncation() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		AsyncLogger logger = new AsyncLogger(AsyncLogger.Level.DEBUG, 5, 1, 16, print(bytes));
+
+		logger.info("Received", "0123456789");
+		logger.info("Received", "01234");
+		assertTrue(logger.flush(TIMEOUT));
+		assertEquals(Arrays.asList("Received: 01234... (10 chars)", "Received: 01234"), lines(bytes));
+	}
+
+	@Test
+	public void testSampling() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		AsyncLogger logger = new AsyncLogger(AsyncLogger.Level.INFO, 100, 10, 4096, print(bytes));
+
+		for (int i = 0; i < 2000; i++) {
+			logger.info("Sampled", null);
+		}
+		logger.error("Kept", null);
+		assertTrue(logger.flush(TIMEOUT));
+
+		List<String> lines = lines(bytes);
+
+		// About one in ten, with a wide margin as they are picked at random.
+		assertTrue(lines.size() > 100 && lines.size() < 400);
+		assertEquals("ERROR Kept", lines.get(lines.size() - 1));
+	}
+
+	@Test
+	public void testFullBuffer() throws Exception {
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		// Holds up the printing thread on the first record.
+		PrintStream slow = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		AsyncLogger logger = new AsyncLogger(AsyncLogger.Level.INFO, 100, 1, 4, slow);
+
+		logger.info("First", null);
+		blocked.await();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < 10; i++) {
+			logger.info("More", null);
+		}
+		// The caller never waits.
+		assertTrue(System.nanoTime() - start < 1000000000L);
+		assertEquals(7, logger.getDropped());
+		release.countDown();
+		assertTrue(logger.flush(TIMEOUT));
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		AsyncLogger logger = new AsyncLogger(AsyncLogger.Level.INFO, 100, 1, 1 << 16, print(bytes));
+		List<Thread> threads = new ArrayList<>();
+
+		for (int t = 0; t < 4; t++) {
+			String name = "Thread " + t;
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					logger.info(name, Integer.toString(i));
+				}
+			});
+
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(logger.flush(TIMEOUT));
+		assertEquals(0, logger.getDropped());
+		assertEquals(4000, lines(bytes).size());
+	}
+
+	@Test
+	public void testWakeUp() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		AsyncLogger logger = new AsyncLogger(AsyncLogger.Level.INFO, 100, 1, 16, print(bytes));
+
+		// Each record after the printing thread has gone to sleep.
+		for (int i = 0; i < 3; i++) {
+			Thread.sleep(50);
+			logger.info("Woken", Integer.toString(i));
+			assertTrue(logger.flush(TIMEOUT));
+		}
+		assertEquals(Arrays.asList("Woken: 0", "Woken: 1", "Woken: 2"), lines(bytes));
+		logger.close();
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		AsyncLogger logger = new AsyncLogger(AsyncLogger.Level.INFO, 100, 1, 16, print(bytes));
+
+		logger.info("Before", null);
+		logger.close();
+		logger.info("After", null);
+		assertTrue(logger.flush(TIMEOUT));
+		assertEquals(Arrays.asList("Before"), lines(bytes));
+		assertEquals(1, logger.getDropped());
+	}
+
+	@Test
+	public void testLevelProperty() {
+		assertEquals(AsyncLogger.Level.WARN, AsyncLogger.toLevel(" warn"));
+		assertEquals(AsyncLogger.Level.INFO, AsyncLogger.toLevel(null));
+		// A bad value doesn't stop the logger being used.
+		assertEquals(AsyncLogger.Level.INFO, AsyncLogger.toLevel("loud"));
+	}
+
+	@Test
+	public void testNegativePayload() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		AsyncLogger logger = new AsyncLogger(AsyncLogger.Level.INFO, -1, 1, 16, print(bytes));
+
+		// Logging doesn't throw on the caller's thread, the payload is cut down to nothing.
+		logger.info("Received", "0123456789");
+		assertTrue(logger.flush(TIMEOUT));
+		assertEquals(Arrays.asList("Received: ... (10 chars)"), lines(bytes));
+		logger.close();
+	}
+
+	private static PrintStream print(ByteArrayOutputStream bytes) throws Exception {
+		return new PrintStream(bytes, true, StandardCharsets.UTF_8.name());
+	}
+
+	private static List<String> lines(ByteArrayOutputStream bytes) throws Exception {
+		String text = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+
+		return text.isEmpty() ? new ArrayList<>() : Arrays.asList(text.split(System.lineSeparator()));
+	}
+}
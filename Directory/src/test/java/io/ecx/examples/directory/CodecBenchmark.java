@@ -0,0 +1,48 @@
+package io.ecx.examples.directory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Compares the size and the time to write and read a listing with each {@link DirectoryCodec}, including the
+ * {@link BinaryCodec} used on binary connections.
+ *
+ * <p>
+ * Usage: java CodecBenchmark [<i>entries</i>] [<i>iterations</i>]
+ * </p>
+ */
+public class CodecBenchmark {
+	private static final int DEFAULT_ENTRIES = 1000000;
+	private static final int DEFAULT_ITERATIONS = 5;
+
+	public static void main(String[] args) throws IOException {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ENTRIES;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+		Directory directory = new Directory("/benchmark", entries);
+
+		for (int i = 0; i < entries; i++) {
+			directory.addEntry("file_" + i, i % 10 == 0, i % 7 == 0, i * 31L);
+		}
+
+		for (int i = 0; i < iterations; i++) {
+			time(new JsonSimpleCodec(), directory);
+			time(new JacksonCodec(), directory);
+			time(new BinaryCodec(), directory);
+		}
+	}
+
+	private static void time(DirectoryCodec codec, Directory directory) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+
+		codec.write(directory, out);
+
+		long written = System.nanoTime();
+		Directory copy = codec.read(new ByteArrayInputStream(out.toByteArray()));
+		long read = System.nanoTime();
+
+		System.out.printf("%-12s %d bytes, write %.0f ms, read %d entries %.0f ms%n", codec.getName(), out.size(),
+				(written - start) / 1e6, copy.size(), (read - written) / 1e6);
+	}
+}
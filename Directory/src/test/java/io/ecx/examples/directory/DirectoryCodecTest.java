@@ -0,0 +1,150 @@
+package io.ecx.examples.directory;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DirectoryCodecTest {
+	private static final String[] NAMES = { "plain", "quote\"back\\slash/", "tab\tnew\nline\u0001",
+			"\u00e9\u0080\u2028\u20ac\u4e2d\ud83d\ude00" };
+
+	private static Directory directory;
+
+	@SuppressWarnings("unchecked")
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		JSONObject obj = new JSONObject();
+		JSONArray list = new JSONArray();
+
+		for (int i = 0; i < NAMES.length; i++) {
+			JSONObject file = new JSONObject();
+			file.put("name", NAMES[i]);
+			file.put("hidden", i % 2 == 0);
+			if (i % 3 == 0) {
+				file.put("type", "directory");
+			} else {
+				file.put("type", "file");
+				file.put("size", (long) i * Integer.MAX_VALUE);
+			}
+			list.add(file);
+		}
+		obj.put("dir", "/a/\"b\"");
+		obj.put("files", list);
+
+		directory = new Directory(obj);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		System.clearProperty(DirectoryCodec.CODEC_PROPERTY);
+	}
+
+	@Test
+	public void testDefault() {
+		assertEquals(JsonSimpleCodec.NAME, DirectoryCodec.getDefault().getName());
+
+		System.setProperty(DirectoryCodec.CODEC_PROPERTY, JacksonCodec.NAME);
+		assertEquals(JacksonCodec.NAME, DirectoryCodec.getDefault().getName());
+
+		// A bad name doesn't stop listings being read and written.
+		System.setProperty(DirectoryCodec.CODEC_PROPERTY, "unknown");
+		assertEquals(JsonSimpleCodec.NAME, DirectoryCodec.getDefault().getName());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknown() {
+		DirectoryCodec.forName("unknown");
+	}
+
+	@Test
+	public void testJsonSimple() throws Exception {
+		DirectoryCodec codec = new JsonSimpleCodec();
+
+		assertEquals(directory.toJSONString(), codec.read(write(codec, directory)).toJSONString());
+	}
+
+	@Test
+	public void testJackson() throws Exception {
+		DirectoryCodec codec = new JacksonCodec();
+
+		assertEquals(directory.toJSONString(), codec.read(write(codec, directory)).toJSONString());
+	}
+
+	@Test
+	public void testCrossRead() throws Exception {
+		DirectoryCodec simple = new JsonSimpleCodec();
+		DirectoryCodec jackson = new JacksonCodec();
+
+		assertEquals(directory.toJSONString(), simple.read(write(jackson, directory)).toJSONString());
+		assertEquals(directory.toJSONString(), jackson.read(write(simple, directory)).toJSONString());
+	}
+
+	@Test
+	public void testBinary() throws Exception {
+		DirectoryCodec codec = new BinaryCodec();
+		ByteArrayOutputStream json = new ByteArrayOutputStream();
+		ByteArrayOutputStream binary = new ByteArrayOutputStream();
+		Directory many = new Directory("/many", 0);
+
+		assertEquals(directory.toJSONString(), codec.read(write(codec, directory)).toJSONString());
+
+		// Names that share a prefix, a large size and an empty listing.
+		for (int i = 0; i < 1000; i++) {
+			many.addEntry("file_" + i, i % 10 == 0, i % 7 == 0, i == 999 ? Long.MAX_VALUE : i * 31L);
+		}
+		assertEquals(many.toJSONString(), codec.read(write(codec, many)).toJSONString());
+		assertEquals(0, codec.read(write(codec, new Directory("/empty", 0))).size());
+
+		new JsonSimpleCodec().write(many, json);
+		codec.write(many, binary);
+		assertTrue(json.size() > 3 * binary.size());
+	}
+
+	@Test(expected = IOException.class)
+	public void testBinaryTruncated() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		new BinaryCodec().write(directory, out);
+		new BinaryCodec().read(out.toByteArray(), 0, out.size() - 1);
+	}
+
+	@Test
+	public void testFrame() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] payload = new byte[300];
+
+		payload[299] = 42;
+		BinaryCodec.writeFrame(out, BinaryCodec.FRAME_LISTING, payload, 0, payload.length);
+		BinaryCodec.writeString(out, "\u20ac");
+		BinaryCodec.writeString(out, null);
+
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		BinaryCodec.Frame frame = BinaryCodec.readFrame(in);
+
+		assertEquals(BinaryCodec.FRAME_LISTING, frame.getType());
+		assertArrayEquals(payload, frame.getPayload());
+		assertEquals("\u20ac", BinaryCodec.readString(in));
+		assertNull(BinaryCodec.readString(in));
+		assertNull(BinaryCodec.readFrame(in));
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotListing() throws Exception {
+		new JacksonCodec().read(new ByteArrayInputStream("[1,2]".getBytes("UTF-8")));
+	}
+
+	private static ByteArrayInputStream write(DirectoryCodec codec, Directory directory) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		codec.write(directory, out);
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+}
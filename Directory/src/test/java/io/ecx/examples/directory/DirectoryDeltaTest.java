@@ -0,0 +1,120 @@
+package io.ecx.examples.directory;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+public class DirectoryDeltaTest {
+	private static final String PATH = "/delta";
+
+	private Directory older;
+	private Directory newer;
+
+	@Before
+	public void setUp() throws Exception {
+		older = new Directory(PATH, 0);
+		older.addEntry("same", false, false, 10L);
+		older.addEntry("gone", false, false, 20L);
+		older.addEntry("grown", false, false, 30L);
+		older.addEntry("hidden", false, false, 40L);
+		older.addEntry("sub", true, false, 0L);
+
+		// The same directory listed in another order.
+		newer = new Directory(PATH, 0);
+		newer.addEntry("sub", true, false, 0L);
+		newer.addEntry("new", false, true, 50L);
+		newer.addEntry("hidden", false, true, 40L);
+		newer.addEntry("grown", false, false, 31L);
+		newer.addEntry("same", false, false, 10L);
+	}
+
+	@Test
+	public void testDiff() {
+		DirectoryDelta delta = older.diff(newer);
+
+		assertFalse(delta.isEmpty());
+		assertEquals(1, delta.getAdded().size());
+		assertEquals("new", delta.getAdded().getName(0));
+		assertTrue(delta.getAdded().isHidden(0));
+		assertEquals(2, delta.getModified().size());
+		assertEquals("hidden", delta.getModified().getName(0));
+		assertEquals("grown", delta.getModified().getName(1));
+		assertEquals(31L, delta.getModified().length(1));
+		assertEquals(Collections.singletonList("gone"), delta.getRemoved());
+	}
+
+	@Test
+	public void testNoChanges() {
+		assertTrue(older.diff(older).isEmpty());
+		assertTrue(new DirectoryDelta(PATH).isEmpty());
+		assertEquals(older.toJSONString(), new DirectoryDelta(PATH).apply(older).toJSONString());
+	}
+
+	@Test
+	public void testApply() {
+		Directory result = older.diff(newer).apply(older);
+
+		// The entries keep their places, the new one goes on the end.
+		assertEquals(PATH, result.getPath());
+		assertEquals(newer.size(), result.size());
+		assertEquals(Arrays.asList("same", "grown", "hidden", "sub", "new"), names(result));
+		assertEquals(31L, result.length(1));
+		assertTrue(result.isHidden(2));
+		assertTrue(result.isDirectory(3));
+		assertEquals(newer.toJSONString(), sorted(result).toJSONString());
+	}
+
+	@Test
+	public void testJSON() throws Exception {
+		DirectoryDelta delta = older.diff(newer);
+		DirectoryDelta read = new DirectoryDelta((JSONObject) new JSONParser().parse(delta.toJSONString()));
+
+		assertEquals(delta.toJSONString(), read.toJSONString());
+		assertEquals(newer.toJSONString(), sorted(read.apply(older)).toJSONString());
+	}
+
+	@Test
+	public void testJackson() throws Exception {
+		DirectoryDelta delta = older.diff(newer);
+		JacksonCodec codec = new JacksonCodec();
+
+		try (JsonParser parser = codec.getFactory().createParser(new StringReader(delta.toJSONString()))) {
+			parser.nextToken();
+			assertEquals(delta.toJSONString(), codec.readDelta(parser).toJSONString());
+		}
+	}
+
+	private static List<String> names(Directory directory) {
+		String[] names = new String[directory.size()];
+
+		for (int i = 0; i < names.length; i++) {
+			names[i] = directory.getName(i);
+		}
+		return Arrays.asList(names);
+	}
+
+	/*
+	 * Put a listing in the same order as the newer one, to compare the two.
+	 */
+	private Directory sorted(Directory directory) {
+		Directory result = new Directory(directory.getPath(), 0);
+
+		for (int i = 0; i < newer.size(); i++) {
+			int index = names(directory).indexOf(newer.getName(i));
+
+			result.addEntry(directory.getName(index), directory.isDirectory(index), directory.isHidden(index),
+					directory.length(index));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,201 @@
+package io.ecx.examples.directory;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectoryQueryTest {
+	private static final String PATH = "/query";
+
+	private Directory directory;
+	private File temp;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = new Directory(PATH, 0);
+		directory.addEntry("b.log", false, false, 30L);
+		directory.addEntry("a.txt", false, false, 10L);
+		directory.addEntry(".hidden.log", false, true, 50L);
+		directory.addEntry("logs", true, false, 0L);
+		directory.addEntry("c.log", false, false, 20L);
+		directory.addEntry("d.log", false, false, 30L);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (temp != null) {
+			FileUtils.deleteDirectory(temp);
+		}
+	}
+
+	@Test
+	public void testEmpty() {
+		assertEquals(directory.toJSONString(), new DirectoryQuery().apply(directory).toJSONString());
+		assertEquals("{}", new DirectoryQuery().toJSONString());
+	}
+
+	@Test
+	public void testFilter() {
+		DirectoryQuery query = new DirectoryQuery();
+
+		query.setGlob("*.log");
+		assertEquals(Arrays.asList("b.log", ".hidden.log", "c.log", "d.log"), names(query.apply(directory)));
+
+		query.setHidden(false);
+		query.setRegex("^[bd]");
+		assertEquals(Arrays.asList("b.log", "d.log"), names(query.apply(directory)));
+
+		query = new DirectoryQuery();
+		query.setType(DirectoryQuery.Type.DIRECTORY);
+		assertEquals(Arrays.asList("logs"), names(query.apply(directory)));
+		assertEquals(PATH, query.apply(directory).getPath());
+	}
+
+	@Test
+	public void testGlob() {
+		DirectoryQuery query = new DirectoryQuery();
+
+		query.setGlob("{a,c}.*");
+		assertEquals(Arrays.asList("a.txt", "c.log"), names(query.apply(directory)));
+		query.setGlob("[!a-c]?log");
+		assertEquals(Arrays.asList("d.log"), names(query.apply(directory)));
+		query.setGlob("?.log");
+		assertTrue(query.acceptsName("x.log"));
+		assertFalse(query.acceptsName("xy.log"));
+		assertFalse(query.acceptsName("x_log"));
+		query.setGlob("a\\*");
+		assertTrue(query.acceptsName("a*"));
+		assertFalse(query.acceptsName("ab"));
+	}
+
+	@Test
+	public void testSort() {
+		DirectoryQuery query = new DirectoryQuery();
+
+		query.setSort(DirectoryQuery.Sort.NAME);
+		assertEquals(Arrays.asList(".hidden.log", "a.txt", "b.log", "c.log", "d.log", "logs"),
+				names(query.apply(directory)));
+
+		query.setSort(DirectoryQuery.Sort.SIZE);
+		query.setDescending(true);
+		assertEquals(Arrays.asList(".hidden.log", "d.log", "b.log", "c.log", "a.txt", "logs"),
+				names(query.apply(directory)));
+	}
+
+	@Test
+	public void testTopN() {
+		DirectoryQuery query = new DirectoryQuery();
+
+		query.setType(DirectoryQuery.Type.FILE);
+		query.setSort(DirectoryQuery.Sort.SIZE);
+		query.setDescending(true);
+		query.setLimit(3);
+		assertEquals(Arrays.asList(".hidden.log", "d.log", "b.log"), names(query.apply(directory)));
+
+		query.setDescending(false);
+		assertEquals(Arrays.asList("a.txt", "c.log", "b.log"), names(query.apply(directory)));
+
+		query.setLimit(100);
+		assertEquals(5, query.apply(directory).size());
+
+		// Without a sort the first entries listed are kept.
+		query = new DirectoryQuery();
+		query.setLimit(2);
+		assertEquals(Arrays.asList("b.log", "a.txt"), names(query.apply(directory)));
+		// A limit far larger than any directory takes no more room than the entries.
+		query.setLimit(Integer.MAX_VALUE);
+		assertEquals(6, query.apply(directory).size());
+		query.setSort(DirectoryQuery.Sort.SIZE);
+		assertEquals(6, query.apply(directory).size());
+	}
+
+	@Test
+	public void testJSON() throws Exception {
+		DirectoryQuery query = new DirectoryQuery();
+
+		query.setGlob("*.log");
+		query.setRegex("b");
+		query.setHidden(false);
+		query.setType(DirectoryQuery.Type.FILE);
+		query.setSort(DirectoryQuery.Sort.SIZE);
+		query.setDescending(true);
+		query.setLimit(10);
+
+		DirectoryQuery read = new DirectoryQuery((JSONObject) new JSONParser().parse(query.toJSONString()));
+
+		assertEquals(query.getJSON(), read.getJSON());
+		assertEquals(query.apply(directory).toJSONString(), read.apply(directory).toJSONString());
+	}
+
+	@Test
+	public void testBadQuery() throws Exception {
+		String[] bad = { "{\"glob\":\"[a\"}", "{\"regex\":\"(\"}", "{\"type\":\"link\"}", "{\"sort\":\"date\"}",
+				"{\"order\":\"up\"}", "{\"limit\":-1}", "{\"limit\":\"ten\"}", "{\"hidden\":\"yes\"}" };
+
+		for (String json : bad) {
+			try {
+				new DirectoryQuery((JSONObject) new JSONParser().parse(json));
+				fail("Accepted " + json);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public void testList() throws Exception {
+		temp = Files.createTempDirectory("query").toFile();
+		for (int i = 0; i < 20; i++) {
+			File file = new File(temp, "file_" + i + (i % 2 == 0 ? ".log" : ".txt"));
+
+			try (FileOutputStream out = new FileOutputStream(file)) {
+				out.write(new byte[i]);
+			}
+		}
+		new File(temp, "dir.log").mkdir();
+
+		DirectoryQuery query = new DirectoryQuery();
+
+		query.setGlob("*.log");
+		query.setType(DirectoryQuery.Type.FILE);
+		query.setSort(DirectoryQuery.Sort.SIZE);
+		query.setDescending(true);
+		query.setLimit(3);
+
+		Directory listed = Directory.list(temp.getPath(), query);
+
+		assertEquals(new Directory(temp.getPath()).getPath(), listed.getPath());
+		assertEquals(Arrays.asList("file_18.log", "file_16.log", "file_14.log"), names(listed));
+		assertEquals(18L, listed.length(0));
+		assertEquals(query.apply(new Directory(temp.getPath())).toJSONString(), listed.toJSONString());
+
+		// Without a sort the scan stops at the limit.
+		query = new DirectoryQuery();
+		query.setLimit(4);
+		assertEquals(4, Directory.list(temp.getPath(), query).size());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testListUnknownDirectory() {
+		Directory.list("no such directory", new DirectoryQuery());
+	}
+
+	private static List<String> names(Directory directory) {
+		String[] names = new String[directory.size()];
+
+		for (int i = 0; i < names.length; i++) {
+			names[i] = directory.getName(i);
+		}
+		return Arrays.asList(names);
+	}
+}
@@ -0,0 +1,94 @@
+package io.ecx.examples.directory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares the single pass {@link Directory#Directory(String)} scan with the old <code>File.listFiles()</code> scan.
+ *
+ * <p>
+ * Usage: java DirectoryScanBenchmark [<i>mode</i>] [<i>directory</i>] [<i>iterations</i>]
+ * </p>
+ * <p>
+ * Where:
+ * </p>
+ * <ul>
+ * <li><i>mode</i> is <i>both</i> (the default), <i>legacy</i> or <i>stream</i>.</li>
+ * <li><i>directory</i> is the directory to list, by default a temporary directory of 200,000 empty files is
+ * created.</li>
+ * <li><i>iterations</i> is the number of timed listings (default 10).</li>
+ * </ul>
+ * <p>
+ * The JVM can't count its own system calls, so run a single mode under strace to compare them, e.g.
+ * </p>
+ *
+ * <pre>
+ * strace -f -c -e trace=%stat,getdents64 java DirectoryScanBenchmark legacy /spool 1
+ * strace -f -c -e trace=%stat,getdents64 java DirectoryScanBenchmark stream /spool 1
+ * </pre>
+ * <p>
+ * The legacy scan makes a stat call for each of <code>isDirectory()</code>, <code>isHidden()</code> and
+ * <code>length()</code>, the stream scan makes one per entry.
+ * </p>
+ */
+public class DirectoryScanBenchmark {
+	private static final int DEFAULT_FILES = 200000;
+	private static final int DEFAULT_ITERATIONS = 10;
+
+	public static void main(String[] args) throws IOException {
+		String mode = args.length > 0 ? args[0] : "both";
+		File dir = args.length > 1 ? new File(args[1]) : createTempDir(DEFAULT_FILES);
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ITERATIONS;
+
+		if (!"stream".equals(mode)) {
+			time("legacy", dir, iterations, true);
+		}
+		if (!"legacy".equals(mode)) {
+			time("stream", dir, iterations, false);
+		}
+	}
+
+	/*
+	 * Time the given number of listings, after one untimed warm up pass.
+	 */
+	private static void time(String label, File dir, int iterations, boolean legacy) {
+		long count = legacy ? legacyScan(dir) : new Directory(dir.getPath()).size();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++) {
+			count = legacy ? legacyScan(dir) : new Directory(dir.getPath()).size();
+		}
+
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("%-8s %d entries, %.2f ms per listing%n", label, count, elapsed / 1e6 / iterations);
+	}
+
+	/*
+	 * The scan as Directory(String) used to do it.
+	 */
+	private static int legacyScan(File dir) {
+		File[] list = dir.listFiles();
+		long sink = 0;
+
+		for (File file : list) {
+			sink += file.isDirectory() ? 1 : 0;
+			sink += file.isHidden() ? 1 : 0;
+			sink += file.length();
+		}
+		return sink < 0 ? -1 : list.length;
+	}
+
+	private static File createTempDir(int numFiles) throws IOException {
+		Path dir = Files.createTempDirectory("scan");
+
+		dir.toFile().deleteOnExit();
+		for (int i = 0; i < numFiles; i++) {
+			File file = dir.resolve("file_" + i).toFile();
+			file.createNewFile();
+			file.deleteOnExit();
+		}
+		return dir.toFile();
+	}
+}
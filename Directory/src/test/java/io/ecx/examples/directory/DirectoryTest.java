@@ -2,18 +2,25 @@ package io.ecx.examples.directory;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.output.WriterOutputStream;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.junit.After;
@@ -188,6 +195,33 @@ public class DirectoryTest {
 		assertEquals(wanted, strW.toString());
 	}
 
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testXMLRoundTrip() throws Exception {
+		JSONObject obj = new JSONObject();
+		JSONArray list = new JSONArray();
+		String[] names = { "tab\tnew\nline\rreturn", "q\"'<>&", "\u00e9\u4e2d\ud83d\ude00", "]]>" };
+
+		for (int i = 0; i < names.length; i++) {
+			JSONObject file = new JSONObject();
+			file.put("name", names[i]);
+			file.put("hidden", i % 2 == 0);
+			file.put("type", "file");
+			file.put("size", (long) i);
+			list.add(file);
+		}
+		obj.put("dir", "/a&b");
+		obj.put("files", list);
+
+		Directory directory = new Directory(obj);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		directory.printXML(out);
+
+		DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		Directory copy = new Directory(db.parse(new ByteArrayInputStream(out.toByteArray())));
+		assertEquals(directory.toJSONString(), copy.toJSONString());
+	}
+
 	@Test
 	public void testCreateFromXML() throws Exception {
 		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
@@ -260,6 +294,21 @@ public class DirectoryTest {
 		}
 	}
 
+	@Test
+	public void testFromXML() throws Exception {
+		DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		File xml = new File(getClass().getClassLoader().getResource(RESULT_XML).getFile());
+		Directory wanted = new Directory(db.parse(xml));
+		Directory directory;
+
+		try (FileInputStream in = new FileInputStream(xml)) {
+			directory = Directory.fromXML(in);
+		}
+
+		assertEquals(NUM_FILES + NUM_DIRS, directory.size());
+		assertEquals(wanted.toJSONString(), directory.toJSONString());
+	}
+
 	@Test
 	public void testPrintJSON() throws Exception {
 		Directory directory = new Directory(dir.getAbsolutePath());
@@ -274,6 +323,148 @@ public class DirectoryTest {
 		assertEquals(wanted, strW.toString());
 	}
 
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testWriteJSON() throws Exception {
+		JSONObject obj = new JSONObject();
+		JSONArray list = new JSONArray();
+		String[] names = { "plain", "quote\"back\\slash/", "tab\tnew\nline\u0001", "\u00e9\u0080\u2028\u20ac\u4e2d" };
+
+		for (int i = 0; i < names.length; i++) {
+			JSONObject file = new JSONObject();
+			file.put("name", names[i]);
+			file.put("hidden", i % 2 == 0);
+			if (i % 3 == 0) {
+				file.put("type", "directory");
+			} else {
+				file.put("type", "file");
+				file.put("size", (long) i * Integer.MAX_VALUE);
+			}
+			list.add(file);
+		}
+		obj.put("dir", "/a/\"b\"");
+		obj.put("files", list);
+
+		Directory directory = new Directory(obj);
+		StringWriter strW = new StringWriter();
+		directory.writeJSON(strW);
+
+		assertEquals(directory.getJSON().toJSONString(), strW.toString());
+		assertEquals(obj.toJSONString(), strW.toString());
+	}
+
+	@Test
+	public void testGetPage() throws Exception {
+		Directory directory = new Directory(TEMP_DIR);
+		// Code point order, where String.compareTo() would put the supplementary character before U+FFFD.
+		String[] names = { "a", "b", "\u00e9", "\ufffd", "\ud83d\ude00" };
+		Directory unsorted = new Directory("/pages", 0);
+		String after = null;
+		int count = 0;
+
+		for (int i = names.length - 1; i >= 0; i--) {
+			unsorted.addEntry(names[i], false, false, i);
+		}
+		for (int i = 0; i < names.length; i++) {
+			Directory page = unsorted.getPage(i == 0 ? null : names[i - 1], 1);
+
+			assertEquals(1, page.size());
+			assertEquals(names[i], page.getName(0));
+			assertEquals(i, page.length(0));
+			assertEquals("/pages", page.getPath());
+		}
+		assertEquals(0, unsorted.getPage(names[names.length - 1], 1).size());
+
+		// Page through, then carry on from a name that has gone.
+		for (Directory page = directory.getPage(null, 3); page.size() > 0; page = directory.getPage(after, 3)) {
+			assertTrue(page.size() <= 3);
+			for (int i = 0; i < page.size(); i++) {
+				assertTrue(after == null || after.compareTo(page.getName(i)) < 0);
+				after = page.getName(i);
+				count++;
+			}
+		}
+		assertEquals(NUM_FILES + NUM_DIRS, count);
+		assertEquals(FILE_PREFIX + 0, directory.getPage(DIR_PREFIX + "x", 1).getName(0));
+	}
+
+	@Test
+	public void testStream() throws Exception {
+		Directory directory = new Directory(TEMP_DIR);
+		List<Directory> batches = new ArrayList<>();
+		List<String> paths = new ArrayList<>();
+		EntryListener listener = new EntryListener() {
+			@Override
+			public void start(String path) {
+				paths.add(path);
+			}
+
+			@Override
+			public void entries(Directory batch) {
+				assertEquals(1, paths.size());
+				batches.add(batch);
+			}
+		};
+
+		assertEquals(NUM_FILES + NUM_DIRS, Directory.stream(TEMP_DIR, 7, listener));
+		assertEquals(Arrays.asList(directory.getPath()), paths);
+		assertEquals(3, batches.size());
+		assertEquals(7, batches.get(0).size());
+		assertEquals(6, batches.get(2).size());
+
+		// The batches hold the same entries as the whole listing.
+		Directory joined = new Directory(directory.getPath(), 0);
+
+		for (Directory batch : batches) {
+			assertEquals(directory.getPath(), batch.getPath());
+			for (int i = 0; i < batch.size(); i++) {
+				joined.addEntry(batch.getName(i), batch.isDirectory(i), batch.isHidden(i), batch.length(i));
+			}
+		}
+		assertEquals(directory.getPage(null, NUM_FILES + NUM_DIRS).toJSONString(),
+				joined.getPage(null, NUM_FILES + NUM_DIRS).toJSONString());
+
+		// And from a listing already read.
+		batches.clear();
+		paths.clear();
+		assertEquals(NUM_FILES + NUM_DIRS, directory.stream(10, listener));
+		assertEquals(2, batches.size());
+		assertEquals(directory.getName(10), batches.get(1).getName(0));
+	}
+
+	@Test
+	public void testReader() throws Exception {
+		Directory directory = new Directory(TEMP_DIR);
+
+		try (Directory.Reader reader = new Directory.Reader(TEMP_DIR)) {
+			assertEquals(directory.getPath(), reader.getPath());
+			assertEquals(7, reader.next(7).size());
+			assertEquals(13, reader.next(100).size());
+			assertEquals(NUM_FILES + NUM_DIRS, reader.getCount());
+			assertNull(reader.next(7));
+			assertNull(reader.next(7));
+		}
+
+		// The same runs from a listing already read.
+		assertEquals(directory.getName(7), directory.getBatch(7, 5).getName(0));
+		assertEquals(3, directory.getBatch(NUM_FILES + NUM_DIRS - 3, 5).size());
+		assertEquals(0, directory.getBatch(NUM_FILES + NUM_DIRS, 5).size());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testStreamUnknown() throws Exception {
+		Directory.stream("unknown", 10, new EntryListener() {
+			@Override
+			public void start(String path) {
+				fail("Started an unknown directory");
+			}
+
+			@Override
+			public void entries(Directory batch) {
+			}
+		});
+	}
+
 	@Test
 	public void testCreateFromJSON() throws Exception {
 		JSONParser parser = new JSONParser();
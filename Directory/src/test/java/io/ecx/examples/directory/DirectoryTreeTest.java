@@ -0,0 +1,113 @@
+package io.ecx.examples.directory;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DirectoryTreeTest {
+	private static final String TREE_DIR = "tree";
+	private static final String FILE_PREFIX = "file_";
+	private static final String DIR_PREFIX = "dir_";
+	private static final String LINK_NAME = "loop";
+	private static final int NUM_FILES = 3;
+	private static final int NUM_DIRS = 3;
+	private static final int FILE_SIZE = 10;
+
+	private static final File dir = new File(TREE_DIR);
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		// Two levels of directories, each with the same files.
+		createLevel(dir);
+		for (int i = 0; i < NUM_DIRS; i++) {
+			createLevel(new File(dir, DIR_PREFIX + i));
+		}
+
+		// A link from a leaf back to the root.
+		Files.createSymbolicLink(new File(new File(dir, DIR_PREFIX + 0), LINK_NAME).toPath(),
+				dir.getAbsoluteFile().toPath());
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		delete(dir);
+	}
+
+	@Test
+	public void testRollups() {
+		DirectoryTree tree = new DirectoryTree(dir.getAbsolutePath());
+
+		assertEquals(NUM_DIRS, tree.getChildren().size());
+		assertEquals(NUM_FILES * (NUM_DIRS + 1), tree.getFileCount());
+		// The link is listed as a directory but not walked.
+		assertEquals(NUM_DIRS + 1, tree.getDirectoryCount());
+		assertEquals(FILE_SIZE * NUM_FILES * (NUM_DIRS + 1), tree.getTotalSize());
+
+		for (DirectoryTree child : tree.getChildren()) {
+			assertEquals(NUM_FILES, child.getFileCount());
+			assertEquals(FILE_SIZE * NUM_FILES, child.getTotalSize());
+			assertTrue(child.getChildren().isEmpty());
+		}
+	}
+
+	@Test
+	public void testMaxDepth() {
+		DirectoryTree tree = new DirectoryTree(dir.getAbsolutePath(), 2, 0, false);
+
+		assertTrue(tree.getChildren().isEmpty());
+		assertEquals(NUM_FILES, tree.getFileCount());
+		assertEquals(NUM_DIRS, tree.getDirectoryCount());
+	}
+
+	@Test
+	public void testLinkLoop() {
+		DirectoryTree tree = new DirectoryTree(dir.getAbsolutePath(), 4, DirectoryTree.UNLIMITED_DEPTH, true);
+
+		// The link back to the root is listed but not followed, so the totals are the same.
+		assertEquals(NUM_DIRS, tree.getChildren().size());
+		assertEquals(NUM_FILES * (NUM_DIRS + 1), tree.getFileCount());
+		assertEquals(NUM_DIRS + 1, tree.getDirectoryCount());
+	}
+
+	@Test
+	public void testParallelism() {
+		DirectoryTree single = new DirectoryTree(dir.getAbsolutePath(), 1, DirectoryTree.UNLIMITED_DEPTH, false);
+		DirectoryTree multiple = new DirectoryTree(dir.getAbsolutePath(), 8, DirectoryTree.UNLIMITED_DEPTH, false);
+
+		assertEquals(single.getFileCount(), multiple.getFileCount());
+		assertEquals(single.getDirectoryCount(), multiple.getDirectoryCount());
+		assertEquals(single.getTotalSize(), multiple.getTotalSize());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testUnknownDirectory() {
+		new DirectoryTree("unknown");
+	}
+
+	private static void createLevel(File level) throws IOException {
+		level.mkdir();
+		for (int i = 0; i < NUM_FILES; i++) {
+			try (FileOutputStream out = new FileOutputStream(new File(level, FILE_PREFIX + i))) {
+				out.write(new byte[FILE_SIZE]);
+			}
+		}
+	}
+
+	private static void delete(File file) {
+		File[] list = file.listFiles();
+
+		if (list != null && !Files.isSymbolicLink(file.toPath())) {
+			for (File child : list) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
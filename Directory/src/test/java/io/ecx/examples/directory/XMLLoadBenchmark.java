@@ -0,0 +1,83 @@
+package io.ecx.examples.directory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compares loading an XML listing with {@link Directory#fromXML(InputStream)} and with a DOM.
+ *
+ * <p>
+ * Usage: java XMLLoadBenchmark [<i>copies</i>] [<i>iterations</i>]
+ * </p>
+ * <p>
+ * The entries in the directory.xml test resource are repeated <i>copies</i> times (default 50,000, about a million
+ * entries) to make the listing that is loaded.
+ * </p>
+ */
+public class XMLLoadBenchmark {
+	private static final String RESOURCE_XML = "directory.xml";
+	private static final int DEFAULT_COPIES = 50000;
+	private static final int DEFAULT_ITERATIONS = 5;
+
+	public static void main(String[] args) throws Exception {
+		int copies = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_COPIES;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+		byte[] xml = scale(copies);
+
+		System.out.printf("%.1f MB of XML%n", xml.length / 1e6);
+		for (int i = 0; i < iterations; i++) {
+			time("dom", xml, true);
+			time("stax", xml, false);
+		}
+	}
+
+	/*
+	 * Time one load and show the throughput.
+	 */
+	private static void time(String label, byte[] xml, boolean dom) throws Exception {
+		System.gc();
+		long start = System.nanoTime();
+		Directory directory = dom ? loadDOM(xml) : Directory.fromXML(new ByteArrayInputStream(xml));
+		long elapsed = System.nanoTime() - start;
+
+		System.out.printf("%-5s %d entries, %.0f ms, %.1f MB/s%n", label, directory.size(), elapsed / 1e6,
+				xml.length / 1e6 / (elapsed / 1e9));
+	}
+
+	private static Directory loadDOM(byte[] xml) throws Exception {
+		DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
+		return new Directory(db.parse(new ByteArrayInputStream(xml)));
+	}
+
+	/*
+	 * Repeat the entries of the test resource, giving each copy its own names.
+	 */
+	private static byte[] scale(int copies) throws IOException {
+		String xml;
+
+		try (InputStream in = XMLLoadBenchmark.class.getClassLoader().getResourceAsStream(RESOURCE_XML)) {
+			xml = IOUtils.toString(in, StandardCharsets.UTF_8);
+		}
+
+		int start = xml.indexOf('>', xml.indexOf("<dir")) + 1;
+		int end = xml.lastIndexOf("</dir>");
+		String entries = xml.substring(start, end);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		out.write(xml.substring(0, start).getBytes(StandardCharsets.UTF_8));
+		for (int i = 0; i < copies; i++) {
+			out.write(entries.replace("name=\"", "name=\"" + i + "_").getBytes(StandardCharsets.UTF_8));
+		}
+		out.write(xml.substring(end).getBytes(StandardCharsets.UTF_8));
+		return out.toByteArray();
+	}
+}
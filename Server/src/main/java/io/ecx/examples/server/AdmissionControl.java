@@ -0,0 +1,206 @@
+package io.ecx.examples.server;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits the directory scans a server runs at once, so a burst of requests for huge directories can't use up the heap
+ * or the file descriptors.
+ *
+ * <p>
+ * Each scan has a cost, the number of entries the directory had when it was last scanned, or
+ * {@link #UNKNOWN_COST} the first time. A scan is admitted while the number of scans and their total cost are both
+ * within the limits, a directory costing more than the whole limit runs alone. Scans that don't fit wait in a bounded
+ * queue and are admitted in the order they arrived. Once the queue is full a scan is refused at once with an
+ * {@link OverloadedException}, so under overload the requests that are taken are answered as quickly as ever and the
+ * rest fail fast, rather than all of them slowing down together.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class AdmissionControl {
+    /** The default maximum number of scans at once, each holds a file descriptor. */
+    public static final int DEFAULT_MAX_SCANS = 64;
+    /** The default maximum total cost of the scans at once, in entries. */
+    public static final long DEFAULT_MAX_COST = 1000000L;
+    /** The default maximum number of scans waiting to be admitted. */
+    public static final int DEFAULT_MAX_QUEUED = 256;
+    /** The cost of a directory that hasn't been scanned before. */
+    public static final long UNKNOWN_COST = 1000L;
+    // The most directories whose entry counts are remembered.
+    private static final int MAX_ESTIMATES = 10000;
+
+    private final int maxScans;
+    private final long maxCost;
+    private final int maxQueued;
+    // The scans waiting, oldest first.
+    private final ArrayDeque<Object> queue = new ArrayDeque<>();
+    // Access ordered, so the eldest is the least recently scanned.
+    private final LinkedHashMap<Path, Long> estimates = new LinkedHashMap<Path, Long>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Long> eldest) {
+            return size() > MAX_ESTIMATES;
+        }
+    };
+    private int scans;
+    private long cost;
+    private long admitted;
+    private long rejected;
+
+    /**
+     * Constructor with the default limits.
+     */
+    public AdmissionControl() {
+        this(DEFAULT_MAX_SCANS, DEFAULT_MAX_COST, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxScans
+     *            the maximum number of scans at once.
+     * @param maxCost
+     *            the maximum total cost of the scans at once.
+     * @param maxQueued
+     *            the maximum number of scans waiting.
+     */
+    public AdmissionControl(int maxScans, long maxCost, int maxQueued) {
+        this.maxScans = maxScans;
+        this.maxCost = maxCost;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Wait for a scan of a directory to be admitted. The permit must be closed once the scan is done.
+     *
+     * @param name
+     *            the name of the directory.
+     * @return the permit to scan.
+     * @throws OverloadedException
+     *             if the queue is full.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public Permit acquire(String name) throws OverloadedException, InterruptedException {
+        Path path = new File(name).toPath().toAbsolutePath().normalize();
+
+        synchronized (this) {
+            long estimate = Math.min(estimates.getOrDefault(path, UNKNOWN_COST), maxCost);
+
+            if (queue.isEmpty() && fits(estimate)) {
+                return admit(path, estimate);
+            } else if (queue.size() >= maxQueued) {
+                rejected++;
+                throw new OverloadedException("Server overloaded, " + queue.size() + " scans waiting");
+            }
+
+            Object ticket = new Object();
+
+            queue.add(ticket);
+            try {
+                while (queue.peek() != ticket || !fits(estimate)) {
+                    wait();
+                }
+            } finally {
+                queue.remove(ticket);
+                // The next in the queue may fit too, or now be at the front.
+                notifyAll();
+            }
+            return admit(path, estimate);
+        }
+    }
+
+    /**
+     * Get the number of scans admitted.
+     *
+     * @return the number admitted.
+     */
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * Get the number of scans refused as the queue was full.
+     *
+     * @return the number refused.
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Get the number of scans waiting.
+     *
+     * @return the length of the queue.
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of scans running.
+     *
+     * @return the number of permits not yet closed.
+     */
+    public synchronized int getScans() {
+        return scans;
+    }
+
+    private boolean fits(long estimate) {
+        return scans == 0 || (scans < maxScans && cost + estimate <= maxCost);
+    }
+
+    private Permit admit(Path path, long estimate) {
+        scans++;
+        cost += estimate;
+        admitted++;
+        return new Permit(path, estimate);
+    }
+
+    private synchronized void release(Permit permit) {
+        scans--;
+        cost -= permit.estimate;
+        if (permit.entries >= 0) {
+            estimates.put(permit.path, Math.max(permit.entries, 1L));
+        }
+        notifyAll();
+    }
+
+    /**
+     * The right to scan a directory, closing it lets the next scan in.
+     */
+    public class Permit implements AutoCloseable {
+        private final Path path;
+        private final long estimate;
+        private long entries = -1;
+        private boolean closed;
+
+        private Permit(Path path, long estimate) {
+            this.path = path;
+            this.estimate = estimate;
+        }
+
+        /**
+         * Record the number of entries the scan found, the cost of the next scan of the directory.
+         *
+         * @param entries
+         *            the number of entries in the directory.
+         */
+        public void setEntries(long entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(this);
+            }
+        }
+    }
+}
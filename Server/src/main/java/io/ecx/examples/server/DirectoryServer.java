@@ -0,0 +1,85 @@
+package io.ecx.examples.server;
+
+import java.io.IOException;
+
+/**
+ * A directory server engine, all engines speak the protocol described in {@link Server}.
+ *
+ * <p>
+ * The engine is chosen by the <code>io.ecx.examples.server.engine</code> system property, <i>thread</i> (the default)
+ * for {@link Server}, a thread per connection, or <i>nio</i> for {@link NioServer}, a few event loop threads that can
+ * hold many more connections.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public interface DirectoryServer {
+    /** The system property that selects the engine. */
+    String ENGINE_PROPERTY = "io.ecx.examples.server.engine";
+
+    /**
+     * Create a server with the engine selected by the system property.
+     *
+     * @param port
+     *            the port to listen on, or 0 for any free port.
+     * @param backlog
+     *            the maximum number of connections waiting to be accepted.
+     * @return the server, not yet started.
+     * @throws IOException
+     *             if the port can't be listened on.
+     * @throws IllegalArgumentException
+     *             if the engine isn't known.
+     */
+    static DirectoryServer create(int port, int backlog) throws IOException {
+        return forName(System.getProperty(ENGINE_PROPERTY, Server.ENGINE), port, backlog);
+    }
+
+    /**
+     * Create a server with an engine chosen by name.
+     *
+     * @param engine
+     *            <i>thread</i> or <i>nio</i>.
+     * @param port
+     *            the port to listen on, or 0 for any free port.
+     * @param backlog
+     *            the maximum number of connections waiting to be accepted.
+     * @return the server, not yet started.
+     * @throws IOException
+     *             if the port can't be listened on.
+     * @throws IllegalArgumentException
+     *             if the engine isn't known.
+     */
+    static DirectoryServer forName(String engine, int port, int backlog) throws IOException {
+        if (Server.ENGINE.equals(engine)) {
+            return new Server(port, backlog);
+        } else if (NioServer.ENGINE.equals(engine)) {
+            return new NioServer(port, backlog);
+        }
+        throw new IllegalArgumentException("Unknown engine: " + engine);
+    }
+
+    /**
+     * Start accepting connections.
+     */
+    void start();
+
+    /**
+     * Get the port the server is listening on.
+     *
+     * @return the port.
+     */
+    int getPort();
+
+    /**
+     * Stop accepting connections and close the open ones.
+     */
+    void shutdown();
+
+    /**
+     * Wait for the server to stop once it has been shut down.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    void join() throws InterruptedException;
+}
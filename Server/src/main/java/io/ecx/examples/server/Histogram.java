@@ -0,0 +1,163 @@
+package io.ecx.examples.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A histogram of non-negative values, such as times in nanoseconds or sizes in bytes, that many threads can record to
+ * at once without locking.
+ *
+ * <p>
+ * As in an HDR histogram the buckets are log-linear, each power of two is split into {@link #SUB_BUCKETS} equal
+ * buckets, so any value from 0 to {@link Long#MAX_VALUE} is kept to within about 3% in under 2,000 counters. Values
+ * below {@link #SUB_BUCKETS} are kept exactly. Recording a value is a few shifts and an atomic increment, reading
+ * the percentiles walks the counters, which may be a little behind the count if values are being recorded.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class Histogram {
+    /** The number of buckets each power of two is split into. */
+    public static final int SUB_BUCKETS = 32;
+    private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * Record a value.
+     *
+     * @param value
+     *            the value, negative values are recorded as 0.
+     */
+    public void record(long value) {
+        long v = Math.max(value, 0L);
+
+        counts.incrementAndGet(index(v));
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    /**
+     * Get the number of values recorded.
+     *
+     * @return the count.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the total of the values recorded.
+     *
+     * @return the sum.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Get the largest value recorded.
+     *
+     * @return the largest value, exactly, or 0 if none have been.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the mean of the values recorded.
+     *
+     * @return the mean, or 0 if none have been.
+     */
+    public double getMean() {
+        long n = count.sum();
+
+        return n > 0 ? (double) sum.sum() / n : 0.0;
+    }
+
+    /**
+     * Get the value that a percentage of the values recorded are at or below.
+     *
+     * @param percentile
+     *            the percentage, from 0 to 100.
+     * @return the largest value in the bucket holding the percentile, but no more than the largest value recorded, or
+     *         0 if none have been.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0L;
+        }
+
+        long rank = Math.max(1L, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Get the count, mean, p50, p99, p999 and max as JSON.
+     *
+     * @return the summary.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        JSONObject obj = new JSONObject();
+
+        obj.put("count", getCount());
+        obj.put("mean", Math.round(getMean()));
+        obj.put("p50", getValueAtPercentile(50.0));
+        obj.put("p99", getValueAtPercentile(99.0));
+        obj.put("p999", getValueAtPercentile(99.9));
+        obj.put("max", getMax());
+
+        return obj;
+    }
+
+    /*
+     * The bucket for a value, values below SUB_BUCKETS have one each, after that each power of two has SUB_BUCKETS.
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /*
+     * The largest value that goes in a bucket.
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+
+        return lowest + (1L << shift) - 1;
+    }
+}
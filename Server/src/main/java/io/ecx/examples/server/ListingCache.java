@@ -0,0 +1,583 @@
+package io.ecx.examples.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import io.ecx.examples.directory.BinaryCodec;
+import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryCodec;
+import io.ecx.examples.directory.DirectoryDelta;
+
+/**
+ * A cache of directory listings, ready serialized, for the server.
+ *
+ * <p>
+ * A listing is only serialized the first time it is sent whole, so a directory that is only paged through or queried
+ * never is, and a large one is kept for its pages as long as its entries fit. The serialized form of a listing that
+ * is kept is copied into a direct buffer, outside the heap, so a hit is sent from the buffer as it is, it is never
+ * serialized again or turned back into objects. A listing too big to keep is sent from the bytes it was serialized
+ * to on the heap, rather than copied first.
+ * </p>
+ * <p>
+ * Listings are kept by normalized path and evicted least recently used first once there are more than the maximum
+ * number of listings or they take more than the maximum number of bytes, counting both the entries on the heap and
+ * the serialized text. Each directory that is cached is watched with a {@link WatchService}, and its listing is
+ * dropped as soon as anything in it changes, so a hit touches neither the file system nor the serializer. If a
+ * directory can't be watched the modification time of the directory is checked on each hit instead, which notices
+ * entries being added, removed or renamed but not a file changing size. A directory is only watched while its listing
+ * is kept.
+ * </p>
+ * <p>
+ * Each listing has a version, which changes whenever a scan finds the directory has changed. A listing that has been
+ * invalidated is kept until its directory is scanned again, so the new listing knows what changed since the version
+ * before it and a client one version behind can be sent just the changes. Versions are unique across directories and
+ * start from the clock, so a version held by a client is never mistaken for another listing's, even after the
+ * listing is evicted or the server restarts.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class ListingCache implements Closeable {
+    /** The default maximum number of listings. */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    /** The default maximum size of the listings, their entries and serialized text. */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    /** A version that no listing has. */
+    public static final long NO_VERSION = 0L;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final ServerStats stats;
+    private final WatchService watcher;
+    // Access ordered, so the eldest is the least recently used.
+    private final LinkedHashMap<Path, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<WatchKey, Path> watched = new HashMap<>();
+    // Changes seen for each watched directory, so a scan that overlaps a change isn't cached.
+    private final Map<Path, Long> changes = new HashMap<>();
+    // Directories that have changed since they were listed.
+    private final Set<Path> stale = new HashSet<>();
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long lastVersion = System.currentTimeMillis();
+
+    /**
+     * Constructor with the default limits.
+     */
+    public ListingCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries
+     *            the maximum number of listings to keep.
+     * @param maxBytes
+     *            the maximum size of the listings to keep, their entries and serialized text.
+     */
+    public ListingCache(int maxEntries, long maxBytes) {
+        this(maxEntries, maxBytes, new ServerStats());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries
+     *            the maximum number of listings to keep.
+     * @param maxBytes
+     *            the maximum size of the listings to keep, their entries and serialized text.
+     * @param stats
+     *            where the times taken to scan and serialize the listings are recorded.
+     */
+    public ListingCache(int maxEntries, long maxBytes, ServerStats stats) {
+        WatchService tempWatcher;
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.stats = stats;
+
+        try {
+            tempWatcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            tempWatcher = null;
+        }
+        watcher = tempWatcher;
+
+        if (watcher != null) {
+            Thread thread = new Thread(this::watch, "ListingCache watcher");
+
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Get the listing of a directory, from the cache if it is there and still valid.
+     *
+     * @param name
+     *            the name of the directory.
+     * @return the listing.
+     * @throws NullPointerException
+     *             if the directory doesn't exist, as for {@link Directory#Directory(String)}.
+     */
+    public Listing get(String name) {
+        Path path = new File(name).toPath().toAbsolutePath().normalize();
+        DirectoryCodec codec = DirectoryCodec.getDefault();
+        Listing previous;
+        long changeCount;
+
+        synchronized (this) {
+            previous = listings.get(path);
+            if (previous != null && previous.codec.getName().equals(codec.getName()) && isValid(previous)) {
+                hits++;
+                return previous;
+            }
+            misses++;
+            changeCount = changes.getOrDefault(path, 0L);
+        }
+
+        // Watch before scanning, so a change during the scan isn't missed.
+        WatchKey key = register(path);
+        FileTime modified = key == null ? lastModified(path) : null;
+        Listing listing;
+
+        try {
+            long start = System.nanoTime();
+            Directory directory = scan(path);
+
+            stats.scan(System.nanoTime() - start);
+            DirectoryDelta delta = previous != null ? previous.directory.diff(directory) : null;
+
+            if (delta != null && delta.isEmpty()) {
+                // Nothing has changed after all, keep the version.
+                listing = new Listing(this, path, directory, codec, key, modified, previous.version,
+                        previous.previousVersion, previous.delta);
+            } else {
+                listing = new Listing(this, path, directory, codec, key, modified, nextVersion(),
+                        previous != null ? previous.version : NO_VERSION, delta);
+            }
+        } catch (RuntimeException e) {
+            // No listing is put for the key, so it mustn't be left watching.
+            synchronized (this) {
+                unwatch(path, key);
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            boolean unchanged = key != null ? key.isValid() && changes.getOrDefault(path, 0L) == changeCount
+                    : modified != null;
+
+            if (unchanged) {
+                put(path, listing);
+            } else {
+                unwatch(path, key);
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * Get the listing of a directory only if the cache holds a valid one, the directory is never read.
+     *
+     * @param name
+     *            the name of the directory.
+     * @return the listing, or null if it isn't cached.
+     */
+    public synchronized Listing peek(String name) {
+        Listing listing = listings.get(new File(name).toPath().toAbsolutePath().normalize());
+
+        if (listing != null && isValid(listing)) {
+            hits++;
+            return listing;
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of requests answered from the cache.
+     *
+     * @return the number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of requests that needed a scan.
+     *
+     * @return the number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of listings in the cache.
+     *
+     * @return the number of listings.
+     */
+    public synchronized int size() {
+        return listings.size();
+    }
+
+    /**
+     * Drop all the listings and stop watching.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            listings.clear();
+            stale.clear();
+            bytes = 0;
+        }
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    private synchronized long nextVersion() {
+        return ++lastVersion;
+    }
+
+    /**
+     * Get the number of directories being watched.
+     *
+     * @return the number of watch keys.
+     */
+    synchronized int getWatched() {
+        return watched.size();
+    }
+
+    /*
+     * Add a listing, evicting the least recently used ones to make room.
+     */
+    private void put(Path path, Listing listing) {
+        Listing old = listings.put(path, listing);
+
+        stale.remove(path);
+
+        if (old != null) {
+            bytes -= old.counted;
+            if (old.key != null && old.key != listing.key) {
+                // Watched again after its key was lost, the old key is done with.
+                old.key.cancel();
+                watched.remove(old.key);
+            }
+        }
+        listing.counted = listing.size();
+        bytes += listing.counted;
+        evict();
+    }
+
+    private synchronized boolean isKept(Listing listing) {
+        return listings.get(listing.path) == listing;
+    }
+
+    /*
+     * Count a listing's serialized form once it has been made, if the listing is kept.
+     */
+    private synchronized void serialized(Listing listing) {
+        if (isKept(listing)) {
+            long size = listing.size();
+
+            bytes += size - listing.counted;
+            listing.counted = size;
+            evict();
+        }
+    }
+
+    /*
+     * Drop the least recently used listings until within the limits.
+     */
+    private void evict() {
+        Iterator<Map.Entry<Path, Listing>> eldest = listings.entrySet().iterator();
+
+        while ((listings.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            Map.Entry<Path, Listing> entry = eldest.next();
+
+            eldest.remove();
+            bytes -= entry.getValue().counted;
+            stale.remove(entry.getKey());
+            unwatch(entry.getKey(), entry.getValue().key);
+        }
+    }
+
+    /*
+     * Stop watching a directory whose listing isn't kept. A listing kept for the directory shares the key, as the
+     * watch service gives one key per directory, so then it is left alone.
+     */
+    private void unwatch(Path path, WatchKey key) {
+        if (key != null && !listings.containsKey(path)) {
+            key.cancel();
+            watched.remove(key);
+            changes.remove(path);
+        }
+    }
+
+    /*
+     * Read a directory for a miss, it throws a NullPointerException if the directory can't be read.
+     */
+    Directory scan(Path path) {
+        return new Directory(path.toString());
+    }
+
+    /*
+     * Check a listing that isn't watched against the directory's modification time.
+     */
+    private boolean isValid(Listing listing) {
+        if (stale.contains(listing.path)) {
+            return false;
+        }
+        return listing.modified == null || listing.modified.equals(lastModified(listing.path));
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Watch a directory, or return null if it can't be watched.
+     */
+    private WatchKey register(Path path) {
+        if (watcher == null) {
+            return null;
+        }
+
+        try {
+            WatchKey key = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            synchronized (this) {
+                watched.put(key, path);
+                changes.putIfAbsent(path, 0L);
+            }
+            return key;
+        } catch (IOException | ClosedWatchServiceException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Mark the listings of directories as they change, until the cache is closed.
+     */
+    private void watch() {
+        try {
+            for (;;) {
+                WatchKey key = watcher.take();
+
+                key.pollEvents();
+                synchronized (this) {
+                    Path path = watched.get(key);
+
+                    if (path != null) {
+                        // The listing is kept to make the next delta from.
+                        if (listings.containsKey(path)) {
+                            stale.add(path);
+                        }
+                        changes.put(path, changes.getOrDefault(path, 0L) + 1);
+                        if (!key.reset()) {
+                            // The directory has gone.
+                            watched.remove(key);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed, stop watching.
+        }
+    }
+
+    /**
+     * A cached listing and its serialized text.
+     */
+    public static class Listing {
+        private final ListingCache cache;
+        private final Path path;
+        private final Directory directory;
+        private final DirectoryCodec codec;
+        private final WatchKey key;
+        private final FileTime modified;
+        private final long version;
+        private final long previousVersion;
+        // The changes from the previous version, if there was one.
+        private final DirectoryDelta delta;
+        // Made when the listing is first sent whole.
+        private volatile ByteBuffer json;
+        // Made when a binary connection first asks for it.
+        private volatile ByteBuffer binary;
+        // The bytes counted against the cache's limit, under the lock on the cache.
+        private long counted;
+
+        Listing(ListingCache cache, Path path, Directory directory, DirectoryCodec codec, WatchKey key,
+                FileTime modified, long version, long previousVersion, DirectoryDelta delta) {
+            this.cache = cache;
+            this.path = path;
+            this.directory = directory;
+            this.codec = codec;
+            this.key = key;
+            this.modified = modified;
+            this.version = version;
+            this.previousVersion = previousVersion;
+            this.delta = delta;
+        }
+
+        /*
+         * The bytes the listing takes, its entries and its serialized forms.
+         */
+        private long size() {
+            ByteBuffer serialized = json;
+            ByteBuffer binarySerialized = binary;
+
+            return directory.getHeapSize() + (serialized != null ? serialized.capacity() : 0)
+                    + (binarySerialized != null ? binarySerialized.capacity() : 0);
+        }
+
+        /**
+         * Get the listing.
+         *
+         * @return the listing.
+         */
+        public Directory getDirectory() {
+            return directory;
+        }
+
+        /**
+         * Get the listing serialized by the codec that was selected when it was cached.
+         *
+         * @return a copy of the UTF-8 JSON text.
+         */
+        public byte[] getJSON() {
+            return toArray(getJSONBuffer());
+        }
+
+        /**
+         * Get the listing serialized by the codec that was selected when it was cached, to be written without copying
+         * it. It is made the first time it is asked for.
+         *
+         * @return the UTF-8 JSON text, a read only buffer of the caller's own over memory shared with other callers.
+         */
+        public ByteBuffer getJSONBuffer() {
+            ByteBuffer buffer = json;
+
+            if (buffer == null) {
+                buffer = serialize(codec);
+                json = buffer;
+                cache.serialized(this);
+            }
+            return buffer.duplicate();
+        }
+
+        /**
+         * Get the listing serialized by the {@link BinaryCodec}, for binary connections.
+         *
+         * @return a copy of the binary listing.
+         */
+        public byte[] getBinary() {
+            return toArray(getBinaryBuffer());
+        }
+
+        /**
+         * Get the listing serialized by the {@link BinaryCodec}, for binary connections, to be written without copying
+         * it. It is made the first time it is asked for, and counted against the cache's maximum size as the JSON is.
+         *
+         * @return the binary listing, a read only buffer of the caller's own over memory shared with other callers.
+         */
+        public ByteBuffer getBinaryBuffer() {
+            ByteBuffer buffer = binary;
+
+            if (buffer == null) {
+                buffer = serialize(new BinaryCodec());
+                binary = buffer;
+                cache.serialized(this);
+            }
+            return buffer.duplicate();
+        }
+
+        /**
+         * Get the version of the listing.
+         *
+         * @return the version.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the changes made to the directory since a version.
+         *
+         * @param since
+         *            the version the client holds.
+         * @return the changes, or null if they aren't known and the full listing has to be sent.
+         */
+        public DirectoryDelta getDelta(long since) {
+            if (since == version) {
+                return new DirectoryDelta(directory.getPath());
+            } else if (since == previousVersion && since != NO_VERSION) {
+                return delta;
+            }
+            return null;
+        }
+
+        /*
+         * Serialize the listing to a read only buffer, a direct one if the listing is kept, otherwise the bytes as they
+         * were written.
+         */
+        private ByteBuffer serialize(DirectoryCodec codec) {
+            SerializedListing out = new SerializedListing();
+            long start = System.nanoTime();
+
+            try {
+                codec.write(directory, out);
+            } catch (IOException e) {
+                // Not thrown by a ByteArrayOutputStream.
+            }
+            cache.stats.serialize(System.nanoTime() - start);
+            return out.toBuffer(cache.isKept(this));
+        }
+
+        private static byte[] toArray(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.remaining()];
+
+            buffer.duplicate().get(bytes);
+            return bytes;
+        }
+    }
+
+    /*
+     * A ByteArrayOutputStream whose bytes can be used without copying them first.
+     */
+    private static class SerializedListing extends ByteArrayOutputStream {
+        ByteBuffer toBuffer(boolean direct) {
+            ByteBuffer buffer = ByteBuffer.wrap(buf, 0, count);
+
+            if (direct) {
+                buffer = ByteBuffer.allocateDirect(count).put(buffer);
+                buffer.flip();
+            }
+            return buffer.slice().asReadOnlyBuffer();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,1032 @@
+package io.ecx.examples.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import io.ecx.examples.directory.BinaryCodec;
+import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryCodec;
+import io.ecx.examples.directory.DirectoryDelta;
+import io.ecx.examples.directory.DirectoryQuery;
+
+/**
+ * Answers the messages from a client, see {@link Server} for the protocol. The handler only writes the replies, the
+ * server engines read the messages and send the replies as lines or frames. One handler is shared by all the
+ * connections to a server.
+ *
+ * <p>
+ * The directories of a batch are listed on a fixed pool of threads shared by all the connections, so however many
+ * batches arrive together the disk sees a bounded number of scans. Each batch keeps at most {@link #BATCH_WINDOW}
+ * of its directories in hand, sending each listing as soon as it is ready, in whatever order they finish.
+ * </p>
+ * <p>
+ * Listings in the cache are sent at once, every directory that has to be read is admitted by an
+ * {@link AdmissionControl} first. A request refused as the server is overloaded gets an exception reply marked as
+ * overloaded.
+ * </p>
+ * <p>
+ * Requests for a directory that is already being read wait for that scan rather than starting another, so when a
+ * popular listing is dropped from the cache the directory is read once however many connections ask for it at the
+ * same moment. Only the scan that runs is admitted. A request that has waited {@link #SCAN_TIMEOUT} for a scan gives
+ * up with an overloaded reply and the scan is no longer waited for, the next request starts another.
+ * </p>
+ * <p>
+ * A streamed listing is sent as a header, the entries in batches as the directory is read, and a trailer with the
+ * counts, so the client has the first entries after one batch has been read rather than the whole directory. A
+ * directory read for a stream isn't cached, each batch of it is admitted as it is read and the permit given back
+ * before the batch is sent, so a client reading slowly holds no permit. An engine can stop a batch or a stream
+ * between two replies while the client catches up, see {@link Replies#offer(Resumable)}.
+ * </p>
+ * <p>
+ * A cached listing is handed to the engine as it is held in the cache, between the few bytes written for the
+ * request, so it is never copied into a reply. {@link NioServer} writes it from the cache's buffer to the socket,
+ * {@link Server} copies it through a small chunk as {@link RequestHandler} says.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+class MessageHandler implements Closeable {
+    /** The id of a message sent without one. */
+    static final long NO_ID = 0L;
+    /** The number of threads listing the directories of batches. */
+    static final int BATCH_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    /** The most directories of one batch being listed, or listed and waiting to be sent, at once. */
+    static final int BATCH_WINDOW = 2 * BATCH_THREADS;
+    /** The most entries sent in one batch of a streamed listing. */
+    static final int MAX_STREAM_BATCH = 10000;
+    /** The longest a request waits for another's scan of the same directory, in milliseconds. */
+    static final long SCAN_TIMEOUT = 30000L;
+    /** The frame type returned when the reply has already been sent through the {@link Replies}. */
+    static final int SENT = -1;
+    /** The frame type returned when the rest of the reply has been taken by {@link Replies#offer(Resumable)}. */
+    static final int SUSPENDED = -2;
+    // Returned by a part of a reply that isn't the last.
+    private static final int MORE = -3;
+    private static final ByteBuffer NO_LISTING = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    private static final byte[] NO_BYTES = new byte[0];
+    private static final BinaryCodec BINARY_CODEC = new BinaryCodec();
+    private final ListingCache cache;
+    private final AdmissionControl admission;
+    private final ServerStats stats;
+    private final ExecutorService batchExecutor;
+    // The directories being read for the cache, by normalized path.
+    private final SingleFlight<Path, ListingCache.Listing> scans = new SingleFlight<>(SCAN_TIMEOUT);
+
+    /**
+     * Where the replies to a message go when there is more than one, or when a reply holds a cached listing, each is
+     * sent whole as it is written.
+     */
+    interface Replies {
+        /**
+         * Send a reply made of a head, a listing and a tail. The listing is shared with other replies, so it is sent
+         * from the buffer it is in rather than being put together with the head and tail.
+         *
+         * @param head
+         *            the start of the reply.
+         * @param listing
+         *            the serialized listing, the engine may move its position.
+         * @param tail
+         *            the end of the reply, without the line end.
+         * @param frameType
+         *            the frame type, if the connection is binary.
+         * @throws IOException
+         *             if the reply can't be sent.
+         */
+        void send(byte[] head, ByteBuffer listing, byte[] tail, int frameType) throws IOException;
+
+        /**
+         * Send a reply.
+         *
+         * @param reply
+         *            the reply, without the line end or the frame around it.
+         * @param frameType
+         *            the frame type, if the connection is binary.
+         * @throws IOException
+         *             if the reply can't be sent.
+         */
+        default void send(byte[] reply, int frameType) throws IOException {
+            send(reply, NO_LISTING.duplicate(), NO_BYTES, frameType);
+        }
+
+        /**
+         * Offer the rest of the replies to a message, between two of them. If the replies sent are far enough ahead
+         * of the client the engine takes the rest, and resumes them once the client has caught up or abandons them
+         * if the connection closes first. An engine whose sends block never takes them.
+         *
+         * @param rest
+         *            the rest of the replies.
+         * @return true if the engine has taken the rest, false to carry on sending them now.
+         */
+        boolean offer(Resumable rest);
+    }
+
+    /**
+     * The rest of the replies to a message, stopped between two of them while the connection was backed up. It holds
+     * nothing the server has to share, the directory it is reading is closed if it is abandoned.
+     */
+    interface Resumable {
+        /**
+         * Carry on sending the replies, as {@link MessageHandler#reply(JSONObject, boolean, PrintStream, Replies)}
+         * does, through the same {@link Replies}.
+         *
+         * @param reply
+         *            the destination for the last reply.
+         * @return the frame type for the last reply, or {@link #SUSPENDED} if it stopped again.
+         * @throws IOException
+         *             if a reply can't be sent.
+         */
+        int resume(PrintStream reply) throws IOException;
+
+        /**
+         * Give up the rest of the replies, the connection has closed.
+         */
+        void abandon();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param cache
+     *            the listings shared by all the connections.
+     */
+    MessageHandler(ListingCache cache) {
+        this(cache, new AdmissionControl(), new ServerStats());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param cache
+     *            the listings shared by all the connections.
+     * @param admission
+     *            limits the directories being read at once.
+     * @param stats
+     *            where the messages answered are recorded, the cache should record to the same.
+     */
+    MessageHandler(ListingCache cache, AdmissionControl admission, ServerStats stats) {
+        AtomicInteger threadNumber = new AtomicInteger();
+
+        this.cache = cache;
+        this.admission = admission;
+        this.stats = stats;
+        batchExecutor = Executors.newFixedThreadPool(BATCH_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "Batch " + threadNumber.incrementAndGet());
+
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stop listing batches, the batches being answered fail.
+     */
+    @Override
+    public void close() {
+        batchExecutor.shutdownNow();
+    }
+
+    /**
+     * Get the stats, the engines record the replies written to them.
+     *
+     * @return the stats.
+     */
+    ServerStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Get the hello sent when a connection is opened.
+     *
+     * @return the hello, as JSON.
+     */
+    String getHello() {
+        return command2JSON("hello").toJSONString();
+    }
+
+    /**
+     * Write the reply to a message, without the line end or the frame around it. A batch sends a reply for each of
+     * its directories first, the reply written here is the last. A cached listing is sent instead of being written,
+     * and {@link #SENT} returned. If the replies stop as the connection is backed up {@link #SUSPENDED} is returned and
+     * the rest has been taken by {@link Replies#offer(Resumable)}.
+     *
+     * @param input
+     *            the message.
+     * @param binary
+     *            true if the connection is using the binary format.
+     * @param reply
+     *            the destination for the reply.
+     * @param replies
+     *            where the replies before the last go.
+     * @return the frame type for the reply, if the connection is binary, {@link #SENT} if nothing was written, or
+     *         {@link #SUSPENDED}.
+     * @throws IOException
+     *             if the reply can't be written.
+     */
+    int reply(JSONObject input, boolean binary, PrintStream reply, Replies replies) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return answer(input, binary, reply, replies);
+        } finally {
+            stats.request(System.nanoTime() - start);
+        }
+    }
+
+    private int answer(JSONObject input, boolean binary, PrintStream reply, Replies replies) throws IOException {
+        int frameType = BinaryCodec.FRAME_JSON;
+        long id;
+
+        try {
+            id = getId(input);
+        } catch (IllegalArgumentException e) {
+            reply.print(exception2JSON(e, NO_ID));
+            return frameType;
+        }
+
+        if (input.containsKey("command")) {
+            if (isBye(input)) {
+                reply.print(withId(command2JSON("bye"), id));
+            } else if (isHello(input)) {
+                reply.print(withId(hello2JSON(binary || switchesToBinary(input, binary)), id));
+            } else if (isStats(input)) {
+                reply.print(withId(stats2JSON(), id));
+            } else if (isPing(input)) {
+                reply.print(withId(command2JSON("pong"), id));
+            }
+        } else if (input.containsKey("directory")) {
+            try {
+                if (input.containsKey("query")) {
+                    frameType = writeQuery(reply, binary, getString(input, "directory"), input.get("query"), id);
+                } else if (input.containsKey("stream")) {
+                    frameType = writeStream(reply, binary, getString(input, "directory"), input.get("stream"), id,
+                            replies);
+                } else {
+                    ListingCache.Listing listing = getListing(getString(input, "directory"));
+
+                    if (input.containsKey("limit")) {
+                        frameType = writePage(reply, binary, listing.getDirectory(), input, id);
+                    } else if (input.containsKey("since")) {
+                        long since = getLong(input, "since");
+                        DirectoryDelta delta = listing.getDelta(since);
+
+                        if (since == listing.getVersion()) {
+                            // The client's copy is current, so just the version goes back.
+                            reply.print(withId(notModified2JSON(since), id));
+                        } else if (delta != null) {
+                            reply.print("{\"delta\":");
+                            reply.print(delta.toJSONString());
+                            reply.print(",\"version\":" + listing.getVersion());
+                            reply.print(id != NO_ID ? ",\"id\":" + id + "}" : "}");
+                        } else {
+                            frameType = sendListing(replies, binary, listing, listing.getVersion(), id);
+                        }
+                    } else {
+                        frameType = sendListing(replies, binary, listing, ListingCache.NO_VERSION, id);
+                    }
+                }
+            } catch (NullPointerException | IllegalArgumentException | ClassCastException e) {
+                reply.print(exception2JSON(e, id));
+            } catch (OverloadedException e) {
+                reply.print(overloaded2JSON(e, id));
+            }
+        } else if (input.containsKey("directories")) {
+            try {
+                frameType = writeBatch(reply, binary, input.get("directories"), id, replies);
+            } catch (IllegalArgumentException e) {
+                reply.print(exception2JSON(e, id));
+            }
+        }
+
+        return frameType;
+    }
+
+    /**
+     * Check if a message ends the connection, once it is answered.
+     *
+     * @param input
+     *            the message.
+     * @return true for a bye.
+     */
+    static boolean isBye(JSONObject input) {
+        return isCommand(input, "bye");
+    }
+
+    /**
+     * Check if the connection changes to the binary format once a message is answered.
+     *
+     * @param input
+     *            the message.
+     * @param binary
+     *            true if the connection already is binary.
+     * @return true for a hello asking for the binary format on a connection that isn't.
+     */
+    static boolean switchesToBinary(JSONObject input, boolean binary) {
+        // Old clients never send hello, so they keep to lines of JSON.
+        return !binary && isHello(input) && BinaryCodec.NAME.equals(input.get("format"));
+    }
+
+    /**
+     * Check if a message may be answered out of order, it has an id and isn't a command. Anything else is answered
+     * once everything before it has been.
+     *
+     * @param input
+     *            the message.
+     * @return true if the message may be answered out of order.
+     */
+    static boolean isPipelined(JSONObject input) {
+        return input.get("id") != null && !input.containsKey("command");
+    }
+
+    /*
+     * Get the id of a message, a positive integer the reply carries back so the client can match them up.
+     */
+    private static long getId(JSONObject input) {
+        Object id = input.get("id");
+
+        if (id == null) {
+            return NO_ID;
+        } else if (!(id instanceof Long) || (Long) id <= 0) {
+            throw new IllegalArgumentException("Bad id: " + id);
+        }
+        return (Long) id;
+    }
+
+    /*
+     * Get a string field of a message, or null if it hasn't got one. The message came from the client, so the field
+     * may be of any type.
+     */
+    private static String getString(JSONObject input, String field) {
+        Object value = input.get(field);
+
+        if (value != null && !(value instanceof String)) {
+            throw new IllegalArgumentException("Bad " + field + ": " + value);
+        }
+        return (String) value;
+    }
+
+    /*
+     * Get an integer field of a message that it must have.
+     */
+    private static long getLong(JSONObject input, String field) {
+        Object value = input.get(field);
+
+        if (!(value instanceof Long)) {
+            throw new IllegalArgumentException("Bad " + field + ": " + value);
+        }
+        return (Long) value;
+    }
+
+    private static boolean isCommand(JSONObject input, String command) {
+        Object value = input.get("command");
+
+        return value instanceof String && command.equalsIgnoreCase((String) value);
+    }
+
+    private static boolean isHello(JSONObject input) {
+        return isCommand(input, "hello");
+    }
+
+    private static boolean isStats(JSONObject input) {
+        return isCommand(input, "stats");
+    }
+
+    private static boolean isPing(JSONObject input) {
+        return isCommand(input, "ping");
+    }
+
+    /*
+     * Get the listing of a directory, a cached listing at once, otherwise from the scan already reading it or once a
+     * scan of its own is admitted.
+     */
+    private ListingCache.Listing getListing(String name) throws IOException, OverloadedException {
+        ListingCache.Listing listing = cache.peek(name);
+
+        if (listing == null) {
+            listing = scans.run(new File(name).toPath().toAbsolutePath().normalize(), () -> {
+                try (AdmissionControl.Permit permit = admit(name)) {
+                    ListingCache.Listing scanned = cache.get(name);
+
+                    permit.setEntries(scanned.getDirectory().size());
+                    return scanned;
+                }
+            });
+        }
+        return listing;
+    }
+
+    private AdmissionControl.Permit admit(String name) throws IOException, OverloadedException {
+        try {
+            return admission.acquire(name);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /*
+     * Send a cached listing as it is, with the head and tail written for the request. Returns SENT.
+     */
+    private int sendListing(Replies replies, boolean binary, ListingCache.Listing listing, long version, long id)
+            throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream(32);
+        ByteArrayOutputStream tail = new ByteArrayOutputStream(32);
+        int frameType = writeHead(new PrintStream(head, true, StandardCharsets.UTF_8.name()), binary, version, null,
+                id, null);
+
+        writeTail(new PrintStream(tail, true, StandardCharsets.UTF_8.name()), binary, version, null, id, null);
+        stats.entries(listing.getDirectory().size());
+        replies.send(head.toByteArray(), binary ? listing.getBinaryBuffer() : listing.getJSONBuffer(),
+                tail.toByteArray(), frameType);
+        return SENT;
+    }
+
+    /*
+     * Write a page of a listing and the cursor for the next page, if there is one. The cursor is the last name on the
+     * page, so the next page starts after it even if the directory has changed. Returns the frame type.
+     */
+    private int writePage(PrintStream out, boolean binary, Directory directory, JSONObject input, long id)
+            throws IOException {
+        String cursor = getString(input, "cursor");
+        String after = cursor != null ? new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8)
+                : null;
+        long limit = getLong(input, "limit");
+
+        if (limit <= 0 || limit > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bad limit: " + limit);
+        }
+
+        Directory page = directory.getPage(after, (int) limit);
+        String last = page.size() > 0 ? page.getName(page.size() - 1) : null;
+        byte[] listing = serialize(page, binary);
+        String next = null;
+
+        if (page.size() == limit && directory.getPage(last, 1).size() > 0) {
+            next = Base64.getUrlEncoder().withoutPadding().encodeToString(last.getBytes(StandardCharsets.UTF_8));
+        }
+        return writeListing(out, binary, listing, ListingCache.NO_VERSION, next, id, null);
+    }
+
+    /*
+     * Write the entries of a directory that match a query. A listing that is already cached is queried in memory,
+     * otherwise the query runs as the directory is read, which is cheaper than caching the full listing for a few
+     * entries of it. Returns the frame type. The permit is only held, it isn't given the entry count as a query only
+     * returns the matches.
+     */
+    @SuppressWarnings("try")
+    private int writeQuery(PrintStream out, boolean binary, String name, Object queryJSON, long id)
+            throws IOException, OverloadedException {
+        if (!(queryJSON instanceof JSONObject)) {
+            throw new IllegalArgumentException("Bad query: " + queryJSON);
+        }
+
+        DirectoryQuery query = new DirectoryQuery((JSONObject) queryJSON);
+        ListingCache.Listing listing = cache.peek(name);
+        Directory result;
+
+        if (listing != null) {
+            result = query.apply(listing.getDirectory());
+        } else {
+            try (AdmissionControl.Permit permit = admit(name)) {
+                long start = System.nanoTime();
+
+                result = Directory.list(name, query);
+                stats.scan(System.nanoTime() - start);
+            }
+        }
+        return writeListing(out, binary, serialize(result, binary), ListingCache.NO_VERSION, null, id, null);
+    }
+
+    /*
+     * Send the entries of a directory in batches as they are read, after a header with the path, then write the
+     * trailer with the number of entries and batches. A cached listing is sent in batches from the cache, otherwise
+     * the directory is read, and not cached. Returns the frame type.
+     */
+    private int writeStream(PrintStream out, boolean binary, String name, Object batchJSON, long id,
+            Replies replies) throws IOException {
+        if (!(batchJSON instanceof Long) || (Long) batchJSON <= 0) {
+            throw new IllegalArgumentException("Bad stream: " + batchJSON);
+        }
+
+        int batchSize = (int) Math.min((Long) batchJSON, MAX_STREAM_BATCH);
+
+        return new StreamReplies(name, batchSize, cache.peek(name), binary, id, replies).resume(out);
+    }
+
+    /*
+     * List the directories of a batch on the batch threads, sending each listing or exception with its path as it
+     * finishes, then write the count of directories and of those that failed. A listing is taken from the cache if it
+     * is there, otherwise the directory is read and not cached, so a large batch doesn't push everything else out.
+     * Returns the frame type.
+     */
+    private int writeBatch(PrintStream out, boolean binary, Object pathsJSON, long id, Replies replies)
+            throws IOException {
+        if (!(pathsJSON instanceof JSONArray)) {
+            throw new IllegalArgumentException("Bad directories: " + pathsJSON);
+        }
+
+        List<String> paths = new ArrayList<>();
+
+        for (Object path : (JSONArray) pathsJSON) {
+            if (!(path instanceof String)) {
+                throw new IllegalArgumentException("Bad directory: " + path);
+            }
+            paths.add((String) path);
+        }
+        return new BatchReplies(paths, binary, id, replies).resume(out);
+    }
+
+    /*
+     * List one directory of a batch, on a batch thread. A cached listing is left in its buffer, between the head and
+     * tail of the reply.
+     */
+    private BatchReply listBatchDirectory(String path, boolean binary, long id) throws IOException {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(reply, false, StandardCharsets.UTF_8.name());
+        int frameType;
+        boolean failed = false;
+
+        try {
+            ListingCache.Listing listing = cache.peek(path);
+
+            if (listing != null) {
+                ByteArrayOutputStream tail = new ByteArrayOutputStream(64);
+                PrintStream tailOut = new PrintStream(tail, true, StandardCharsets.UTF_8.name());
+
+                stats.entries(listing.getDirectory().size());
+                frameType = writeHead(out, binary, ListingCache.NO_VERSION, null, id, path);
+                writeTail(tailOut, binary, ListingCache.NO_VERSION, null, id, path);
+                out.flush();
+                return new BatchReply(reply.toByteArray(), binary ? listing.getBinaryBuffer()
+                        : listing.getJSONBuffer(), tail.toByteArray(), frameType, false);
+            }
+
+            Directory directory;
+
+            try (AdmissionControl.Permit permit = admit(path)) {
+                long start = System.nanoTime();
+
+                directory = new Directory(path);
+                stats.scan(System.nanoTime() - start);
+                permit.setEntries(directory.size());
+            }
+            frameType = writeListing(out, binary, serialize(directory, binary), ListingCache.NO_VERSION, null, id,
+                    path);
+        } catch (NullPointerException | IllegalArgumentException e) {
+            out.print(withPath(exception2JSON(e, id), path));
+            frameType = BinaryCodec.FRAME_JSON;
+            failed = true;
+        } catch (OverloadedException e) {
+            out.print(withPath(overloaded2JSON(e, id), path));
+            frameType = BinaryCodec.FRAME_JSON;
+            failed = true;
+        }
+        out.flush();
+        return new BatchReply(reply.toByteArray(), null, null, frameType, failed);
+    }
+
+    /*
+     * Serialize a listing for the connection, counting its entries.
+     */
+    private byte[] serialize(Directory directory, boolean binary) throws IOException {
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+
+        (binary ? BINARY_CODEC : DirectoryCodec.getDefault()).write(directory, serialized);
+        stats.serialize(System.nanoTime() - start);
+        stats.entries(directory.size());
+        return serialized.toByteArray();
+    }
+
+    /*
+     * Write a listing reply, with the listing already serialized for the connection. Returns the frame type.
+     */
+    private static int writeListing(PrintStream out, boolean binary, byte[] listing, long version, String cursor,
+            long id, String path) throws IOException {
+        int frameType = writeHead(out, binary, version, cursor, id, path);
+
+        out.write(listing);
+        writeTail(out, binary, version, cursor, id, path);
+        return frameType;
+    }
+
+    /*
+     * Write what comes before the listing in a listing reply. In the binary format that is the version, cursor, id
+     * and the path asked for in a batch, in JSON they come after the listing, and are only sent if there are any.
+     * Returns the frame type.
+     */
+    private static int writeHead(PrintStream out, boolean binary, long version, String cursor, long id, String path)
+            throws IOException {
+        if (binary) {
+            if (path != null) {
+                BinaryCodec.writeVarint(out, id);
+                BinaryCodec.writeString(out, path);
+            } else if (id != NO_ID) {
+                BinaryCodec.writeVarint(out, id);
+            }
+            BinaryCodec.writeVarint(out, version);
+            BinaryCodec.writeString(out, cursor);
+            if (path != null) {
+                return BinaryCodec.FRAME_BATCH_LISTING;
+            }
+            return id != NO_ID ? BinaryCodec.FRAME_LISTING_ID : BinaryCodec.FRAME_LISTING;
+        }
+
+        out.print("{\"directory\":");
+        return BinaryCodec.FRAME_JSON;
+    }
+
+    /*
+     * Write what comes after the listing in a listing reply, nothing in the binary format.
+     */
+    private static void writeTail(PrintStream out, boolean binary, long version, String cursor, long id,
+            String path) {
+        if (binary) {
+            return;
+        }
+        if (version != ListingCache.NO_VERSION) {
+            out.print(",\"version\":" + version);
+        }
+        if (cursor != null) {
+            out.print(",\"cursor\":\"" + cursor + "\"");
+        }
+        if (id != NO_ID) {
+            out.print(",\"id\":" + id);
+        }
+        if (path != null) {
+            out.print(",\"path\":\"" + JSONValue.escape(path) + "\"");
+        }
+        out.print("}");
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject exception2JSON(Exception e, long id) {
+        JSONObject obj = new JSONObject();
+
+        obj.put("exception", e.getMessage());
+        stats.exception();
+
+        return withId(obj, id);
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject overloaded2JSON(OverloadedException e, long id) {
+        JSONObject obj = exception2JSON(e, id);
+
+        // Old clients see an exception, new ones know they may try again.
+        obj.put("overloaded", true);
+
+        return obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject withId(JSONObject obj, long id) {
+        if (id != NO_ID) {
+            obj.put("id", id);
+        }
+
+        return obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject withPath(JSONObject obj, String path) {
+        obj.put("path", path);
+
+        return obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject notModified2JSON(long version) {
+        JSONObject obj = new JSONObject();
+
+        obj.put("notModified", true);
+        obj.put("version", version);
+
+        return obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject batch2JSON(int count, int failed) {
+        JSONObject obj = new JSONObject();
+
+        obj.put("batch", count);
+        obj.put("failed", failed);
+
+        return obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject streamed2JSON(int count, int batches) {
+        JSONObject obj = new JSONObject();
+
+        obj.put("streamed", count);
+        obj.put("batches", batches);
+
+        return obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject stream2JSON(String path) {
+        JSONObject obj = new JSONObject();
+
+        obj.put("stream", path);
+
+        return obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject stats2JSON() {
+        JSONObject obj = command2JSON("stats");
+
+        obj.put("stats", stats.toJSON(cache, admission, scans));
+
+        return obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject hello2JSON(boolean binary) {
+        JSONObject obj = command2JSON("hello");
+
+        if (binary) {
+            obj.put("format", BinaryCodec.NAME);
+        }
+
+        return obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject command2JSON(String cmd) {
+        JSONObject obj = new JSONObject();
+
+        obj.put("command", cmd);
+
+        return obj;
+    }
+
+    /*
+     * The replies to a message sent one at a time, stopping between two while the connection is backed up.
+     */
+    private abstract static class PartialReplies implements Resumable {
+        private final Replies replies;
+
+        PartialReplies(Replies replies) {
+            this.replies = replies;
+        }
+
+        /*
+         * Send the next reply, or write the last and return its frame type.
+         */
+        abstract int next(PrintStream out, Replies replies) throws IOException;
+
+        @Override
+        public int resume(PrintStream out) throws IOException {
+            try {
+                int frameType;
+
+                while ((frameType = next(out, replies)) == MORE) {
+                    if (replies.offer(this)) {
+                        return SUSPENDED;
+                    }
+                }
+                return frameType;
+            } catch (IOException | RuntimeException e) {
+                abandon();
+                throw e;
+            }
+        }
+    }
+
+    /*
+     * Sends the header and the batches of entries of a streamed listing, then writes the trailer. A directory that
+     * isn't cached is read a batch at a time as the batches are sent, each read admitted on its own, so the stream
+     * only holds a permit while it reads and not while it waits for the client.
+     */
+    private class StreamReplies extends PartialReplies {
+        private final String name;
+        private final int batchSize;
+        private final ListingCache.Listing listing;
+        private final boolean binary;
+        private final long id;
+        private Directory.Reader reader;
+        // The next batch, read before the header so a directory that can't be read gets just an exception.
+        private Directory first;
+        private boolean started;
+        private int sent;
+        private int batches;
+        private long scanNanos;
+
+        StreamReplies(String name, int batchSize, ListingCache.Listing listing, boolean binary, long id,
+                Replies replies) {
+            super(replies);
+            this.name = name;
+            this.batchSize = batchSize;
+            this.listing = listing;
+            this.binary = binary;
+            this.id = id;
+        }
+
+        @Override
+        int next(PrintStream out, Replies replies) throws IOException {
+            try {
+                if (!started) {
+                    first = nextBatch();
+                    started = true;
+                    replies.send(withId(stream2JSON(listing != null ? listing.getDirectory().getPath()
+                            : reader.getPath()), id).toJSONString().getBytes(StandardCharsets.UTF_8),
+                            BinaryCodec.FRAME_JSON);
+                    return MORE;
+                }
+
+                Directory batch = first != null ? first : nextBatch();
+
+                first = null;
+                if (batch != null) {
+                    send(batch, replies);
+                    return MORE;
+                }
+            } catch (NullPointerException e) {
+                abandon();
+                out.print(exception2JSON(e, id));
+                return BinaryCodec.FRAME_JSON;
+            } catch (OverloadedException e) {
+                abandon();
+                out.print(overloaded2JSON(e, id));
+                return BinaryCodec.FRAME_JSON;
+            }
+            abandon();
+            if (listing == null) {
+                stats.scan(scanNanos);
+            }
+            stats.entries(sent);
+            out.print(withId(streamed2JSON(sent, batches), id));
+            return BinaryCodec.FRAME_JSON;
+        }
+
+        @Override
+        public void abandon() {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        /*
+         * Get the next batch from the cached listing, or read it once admitted, or null at the end.
+         */
+        private Directory nextBatch() throws IOException, OverloadedException {
+            if (listing != null) {
+                Directory batch = listing.getDirectory().getBatch(sent, batchSize);
+
+                return batch.size() > 0 ? batch : null;
+            }
+            try (AdmissionControl.Permit permit = admit(name)) {
+                long start = System.nanoTime();
+
+                if (reader == null) {
+                    reader = new Directory.Reader(name);
+                }
+
+                Directory batch = reader.next(batchSize);
+
+                scanNanos += System.nanoTime() - start;
+                if (batch == null) {
+                    permit.setEntries(reader.getCount());
+                }
+                return batch;
+            }
+        }
+
+        private void send(Directory batch, Replies replies) throws IOException {
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(reply, false, StandardCharsets.UTF_8.name());
+            long start = System.nanoTime();
+
+            if (binary) {
+                BinaryCodec.writeVarint(out, id);
+                BINARY_CODEC.write(batch, out);
+            } else {
+                out.print("{\"entries\":");
+                DirectoryCodec.getDefault().write(batch, out);
+                out.print(id != NO_ID ? ",\"id\":" + id + "}" : "}");
+            }
+            out.flush();
+            stats.serialize(System.nanoTime() - start);
+            sent += batch.size();
+            batches++;
+            replies.send(reply.toByteArray(), binary ? BinaryCodec.FRAME_ENTRIES : BinaryCodec.FRAME_JSON);
+        }
+    }
+
+    /*
+     * Lists the directories of a batch on the batch threads, keeping at most BATCH_WINDOW of them in hand, and sends
+     * each as it finishes. Abandoned, the directories in hand are listed and dropped.
+     */
+    private class BatchReplies extends PartialReplies {
+        private final List<String> paths;
+        private final boolean binary;
+        private final long id;
+        private final CompletionService<BatchReply> results = new ExecutorCompletionService<>(batchExecutor);
+        private int submitted;
+        private int sent;
+        private int failed;
+
+        BatchReplies(List<String> paths, boolean binary, long id, Replies replies) {
+            super(replies);
+            this.paths = paths;
+            this.binary = binary;
+            this.id = id;
+        }
+
+        @Override
+        int next(PrintStream out, Replies replies) throws IOException {
+            if (sent == paths.size()) {
+                out.print(withId(batch2JSON(paths.size(), failed), id));
+                return BinaryCodec.FRAME_JSON;
+            }
+            try {
+                while (submitted < paths.size() && submitted - sent < BATCH_WINDOW) {
+                    String path = paths.get(submitted++);
+
+                    results.submit(() -> listBatchDirectory(path, binary, id));
+                }
+
+                Future<BatchReply> done;
+
+                while ((done = results.poll(1, TimeUnit.SECONDS)) == null) {
+                    if (batchExecutor.isShutdown()) {
+                        // The directories waiting to be listed were dropped.
+                        throw new IOException("Shutting down");
+                    }
+                }
+
+                BatchReply result = done.get();
+
+                sent++;
+                if (result.failed) {
+                    failed++;
+                }
+                if (result.listing != null) {
+                    replies.send(result.reply, result.listing, result.tail, result.frameType);
+                } else {
+                    replies.send(result.reply, result.frameType);
+                }
+                return MORE;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } catch (RejectedExecutionException e) {
+                // The server is shutting down.
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void abandon() {
+        }
+    }
+
+    /*
+     * The reply for one directory of a batch, the head, cached listing and tail of it if it has a cached listing.
+     */
+    private static class BatchReply {
+        private final byte[] reply;
+        private final ByteBuffer listing;
+        private final byte[] tail;
+        private final int frameType;
+        private final boolean failed;
+
+        BatchReply(byte[] reply, ByteBuffer listing, byte[] tail, int frameType, boolean failed) {
+            this.reply = reply;
+            this.listing = listing;
+            this.tail = tail;
+            this.frameType = frameType;
+            this.failed = failed;
+        }
+    }
+}
@@ -0,0 +1,766 @@
+package io.ecx.examples.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import io.ecx.examples.directory.AsyncLogger;
+import io.ecx.examples.directory.BinaryCodec;
+
+/**
+ * A non-blocking directory server, speaking the same protocol as {@link Server}.
+ *
+ * <p>
+ * A small fixed set of event loop threads each own a {@link Selector} and the connections given to them. The loops
+ * read the messages straight out of the socket buffers and write the replies with gathering writes, they never block
+ * on a directory. The messages are answered by a separate pool of worker threads, so a slow scan only holds up its
+ * own connection. A cached listing is written from the cache's direct buffer as one part of the gathering write, so
+ * serving it takes no copying on the server's side, whatever its size.
+ * </p>
+ * <p>
+ * An idle connection holds no buffers, only its channel and a little state, so one process can keep tens of thousands
+ * of mostly idle connections open. The bytes of a message are only kept between reads while the message is
+ * incomplete, each loop reads into one buffer shared by its connections. A connection is answered one message at a
+ * time in the order sent, unless the messages have ids, see {@link RequestHandler} for the rules. A connection isn't
+ * read while it has a message it can't yet hand to a worker. The replies of a batch or a streamed listing stop once
+ * more than {@link #MAX_UNSENT} bytes are queued for the connection, and the worker goes on to other connections. The
+ * loop hands the rest back to the workers when the output has drained, so a client reading slowly holds up its own
+ * reply rather than filling the heap or holding a worker.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class NioServer implements DirectoryServer {
+    /** The name of this engine, for {@link DirectoryServer#ENGINE_PROPERTY}. */
+    public static final String ENGINE = "nio";
+    /** The longest message that will be read, a connection sending a longer one is closed. */
+    public static final int MAX_MESSAGE_LENGTH = 1024 * 1024;
+    /** The default number of event loops. */
+    public static final int DEFAULT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /** The default number of worker threads, scans mostly wait on the disk. */
+    public static final int DEFAULT_WORKERS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    /** The most bytes queued for a connection before the replies to it stop until the client catches up. */
+    public static final long MAX_UNSENT = 1024 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+    private static final byte[] LINE_END = { '\n' };
+    private static final Reply CLOSE = new Reply(null, true, false);
+    private static final Reply SUSPENDED = new Reply(null, false, false);
+    private final ServerSocketChannel serverChannel;
+    private final ServerStats stats = new ServerStats();
+    private final ListingCache cache = new ListingCache(ListingCache.DEFAULT_MAX_ENTRIES, ListingCache.DEFAULT_MAX_BYTES,
+            stats);
+    private final MessageHandler handler = new MessageHandler(cache, new AdmissionControl(), stats);
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    // The loop the next connection goes to.
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean shutdown;
+
+    /**
+     * Constructor with the default number of loops and workers.
+     *
+     * @param port
+     *            the port to listen on, or 0 for any free port.
+     * @param backlog
+     *            the maximum number of connections waiting to be accepted.
+     * @throws IOException
+     *             if the port can't be listened on.
+     */
+    public NioServer(int port, int backlog) throws IOException {
+        this(port, backlog, DEFAULT_LOOPS, DEFAULT_WORKERS);
+    }
+
+    /**
+     * Constructor, the server listens from here on but only accepts connections once started.
+     *
+     * @param port
+     *            the port to listen on, or 0 for any free port.
+     * @param backlog
+     *            the maximum number of connections waiting to be accepted.
+     * @param loopCount
+     *            the number of event loop threads.
+     * @param workerCount
+     *            the number of threads answering messages.
+     * @throws IOException
+     *             if the port can't be listened on.
+     */
+    public NioServer(int port, int backlog, int loopCount, int workerCount) throws IOException {
+        AtomicInteger workerNumber = new AtomicInteger();
+
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+            serverChannel.configureBlocking(false);
+            loops = new EventLoop[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new EventLoop("NioServer loop " + i);
+            }
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "NioServer worker " + workerNumber.incrementAndGet());
+
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void start() {
+        loops[0].execute(() -> {
+            try {
+                serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                shutdown();
+            }
+        });
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stop accepting connections and close the open ones, messages being answered are dropped.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+        }
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdown();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        for (EventLoop loop : loops) {
+            loop.thread.join();
+        }
+        handler.close();
+        try {
+            cache.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /*
+     * Answer a message on a worker thread, or carry on answering it. The replies of a batch before the last are handed
+     * to the connection's loop as they are written.
+     */
+    private Reply answer(Answer answer) {
+        try {
+            ReplyBuffer body = new ReplyBuffer();
+            PrintStream out = new PrintStream(body, false, StandardCharsets.UTF_8.name());
+            MessageHandler.Resumable rest = answer.rest;
+            int frameType;
+
+            if (rest != null) {
+                answer.rest = null;
+                frameType = rest.resume(out);
+            } else {
+                frameType = handler.reply(answer.input, answer.binary, out, answer);
+            }
+            if (frameType == MessageHandler.SUSPENDED) {
+                return SUSPENDED;
+            }
+
+            out.flush();
+            // A reply already sent only has to let the next message through.
+            return new Reply(frameType == MessageHandler.SENT ? new ByteBuffer[0]
+                    : frame(frameType, answer.binary, body.toByteBuffer()), MessageHandler.isBye(answer.input),
+                    MessageHandler.switchesToBinary(answer.input, answer.binary));
+        } catch (IOException | RuntimeException e) {
+            // As Server does, a message that can't be answered ends the connection.
+            return CLOSE;
+        }
+    }
+
+    /*
+     * Put the frame header in front of the parts of a reply, or the line end after them.
+     */
+    private static ByteBuffer[] frame(int frameType, boolean binary, ByteBuffer... parts) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[parts.length + 1];
+
+        if (binary) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream(6);
+            long length = 0;
+
+            for (ByteBuffer part : parts) {
+                length += part.remaining();
+            }
+            header.write(frameType);
+            BinaryCodec.writeVarint(header, length);
+            buffers[0] = ByteBuffer.wrap(header.toByteArray());
+            System.arraycopy(parts, 0, buffers, 1, parts.length);
+        } else {
+            System.arraycopy(parts, 0, buffers, 0, parts.length);
+            buffers[parts.length] = ByteBuffer.wrap(LINE_END);
+        }
+        return buffers;
+    }
+
+    private static long size(ByteBuffer[] buffers) {
+        long size = 0;
+
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        return size;
+    }
+
+    /*
+     * An event loop, the selector and the connections registered with it are only used on the loop's thread. Other
+     * threads hand it tasks.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Each read lands here first, only the part of a message still to come is kept by the connection.
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        /*
+         * Run a task on the loop's thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!shutdown) {
+                    selector.select();
+                    for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+
+                        keys.remove();
+                        if (key.isValid() && key.isAcceptable()) {
+                            accept();
+                        } else if (key.isValid()) {
+                            ((Connection) key.attachment()).ready(key);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The selector has failed, drop the connections.
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    close(key);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        /*
+         * Accept the waiting connections, sharing them out between the loops.
+         */
+        private void accept() {
+            SocketChannel channel;
+
+            try {
+                while ((channel = serverChannel.accept()) != null) {
+                    EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                    SocketChannel accepted = channel;
+
+                    try {
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        loop.execute(() -> loop.open(accepted));
+                    } catch (IOException e) {
+                        channel.close();
+                    }
+                }
+            } catch (IOException e) {
+                // Closed by shutdown, or out of file descriptors until a connection closes.
+            }
+        }
+
+        private void open(SocketChannel channel) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                Connection connection = new Connection(this, key);
+
+                key.attach(connection);
+                connection.send(new ByteBuffer[] {
+                        ByteBuffer.wrap((handler.getHello() + "\n").getBytes(StandardCharsets.UTF_8)) });
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException e1) {
+                }
+            }
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+        }
+        if (key.attachment() instanceof Connection) {
+            ((Connection) key.attachment()).abandon();
+        }
+    }
+
+    /*
+     * The state of one connection, only used on its loop's thread.
+     */
+    private class Connection {
+        private final EventLoop loop;
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>(4);
+        // The bytes of the output, and of the parts handed to the loop but not yet queued, the workers check it.
+        private final AtomicLong unsent = new AtomicLong();
+        // The bytes read but not yet taken as a message, ready to be read from, or null if there are none.
+        private ByteBuffer pending;
+        private boolean binary;
+        // A message without an id is being answered.
+        private boolean busy;
+        // The number of messages with ids being answered.
+        private int pipelined;
+        // A message read but waiting for those before it, or for fewer to be in hand.
+        private JSONObject held;
+        // The connection closes once the output is written.
+        private boolean closing;
+        // The messages whose replies stopped until the output drains, more than one if they have ids.
+        private final ArrayDeque<Answer> suspended = new ArrayDeque<>(1);
+
+        Connection(EventLoop loop, SelectionKey key) {
+            this.loop = loop;
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+        }
+
+        void ready(SelectionKey selected) {
+            try {
+                if (selected.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && selected.isWritable()) {
+                    write();
+                }
+            } catch (IOException e) {
+                close(key);
+            }
+        }
+
+        /*
+         * Queue a reply and write what the socket takes now.
+         */
+        void send(ByteBuffer[] buffers) throws IOException {
+            long size = size(buffers);
+
+            unsent.addAndGet(size);
+            queue(buffers, size);
+        }
+
+        /*
+         * Drop the rest of the suspended replies, once the connection has closed.
+         */
+        void abandon() {
+            for (Answer answer = suspended.poll(); answer != null; answer = suspended.poll()) {
+                answer.rest.abandon();
+            }
+        }
+
+        /*
+         * Queue a reply already counted as unsent and write what the socket takes now, the time recorded is only that
+         * of this first write.
+         */
+        private void queue(ByteBuffer[] buffers, long size) throws IOException {
+            for (ByteBuffer buffer : buffers) {
+                output.add(buffer);
+            }
+
+            long start = System.nanoTime();
+
+            write();
+            if (buffers.length > 0) {
+                stats.write(System.nanoTime() - start, size);
+            }
+        }
+
+        private void read() throws IOException {
+            ByteBuffer buffer = loop.readBuffer;
+
+            buffer.clear();
+            if (channel.read(buffer) < 0) {
+                close(key);
+                return;
+            }
+            buffer.flip();
+            append(buffer);
+            dispatch();
+        }
+
+        /*
+         * Hand the complete messages to the workers while they can be, messages with ids up to the limit together,
+         * any other alone.
+         */
+        private void dispatch() throws IOException {
+            while (!busy && !closing) {
+                JSONObject input = held;
+
+                if (input == null) {
+                    String message = nextMessage();
+
+                    if (message == null) {
+                        break;
+                    }
+                    LOG.info("Server received", message);
+                    input = parse(message);
+                    if (input == null) {
+                        // As Server does, a message that can't be understood ends the connection.
+                        closing = true;
+                        write();
+                        return;
+                    }
+                }
+
+                boolean isPipelined = MessageHandler.isPipelined(input);
+
+                if (isPipelined ? pipelined >= RequestHandler.MAX_PIPELINED : pipelined > 0) {
+                    held = input;
+                    break;
+                }
+                held = null;
+                if (isPipelined) {
+                    pipelined++;
+                } else {
+                    busy = true;
+                }
+                submit(input, isPipelined);
+            }
+            if (key.isValid()) {
+                // Only read when the next message could be taken.
+                key.interestOps(busy || closing || held != null ? key.interestOps() & ~SelectionKey.OP_READ
+                        : key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private void submit(JSONObject input, boolean isPipelined) {
+            run(new Answer(this, input, binary, isPipelined));
+        }
+
+        /*
+         * Answer a message on a worker, or carry on answering it.
+         */
+        private void run(Answer answer) {
+            try {
+                workers.execute(() -> {
+                    Reply reply = CLOSE;
+
+                    try {
+                        reply = answer(answer);
+                    } finally {
+                        // Even if the worker dies the connection is let go, closed if there is no reply.
+                        Reply finished = reply;
+
+                        loop.execute(() -> finish(finished, answer));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                close(key);
+                if (answer.rest != null) {
+                    answer.rest.abandon();
+                }
+            }
+        }
+
+        /*
+         * Send a reply and go on to the next message, or hold a suspended reply until the output drains, back on the
+         * loop's thread.
+         */
+        private void finish(Reply reply, Answer answer) {
+            if (!key.isValid()) {
+                if (answer.rest != null) {
+                    answer.rest.abandon();
+                }
+                return;
+            }
+            if (reply == SUSPENDED) {
+                if (unsent.get() > MAX_UNSENT) {
+                    suspended.add(answer);
+                } else {
+                    // Drained while the worker was stopping.
+                    run(answer);
+                }
+                return;
+            }
+            if (answer.isPipelined) {
+                pipelined--;
+            } else {
+                busy = false;
+            }
+            binary |= reply.switchToBinary;
+            closing |= reply.quit;
+            try {
+                if (reply.buffers != null) {
+                    send(reply.buffers);
+                } else {
+                    write();
+                }
+                if (key.isValid()) {
+                    dispatch();
+                }
+            } catch (IOException e) {
+                close(key);
+            }
+        }
+
+        /*
+         * Send a reply of a batch or stream before the last, back on the loop's thread.
+         */
+        private void sendPart(ByteBuffer[] buffers, long size) {
+            if (key.isValid()) {
+                try {
+                    queue(buffers, size);
+                } catch (IOException e) {
+                    close(key);
+                }
+            }
+        }
+
+        private JSONObject parse(String message) {
+            try {
+                return (JSONObject) new JSONParser().parse(message);
+            } catch (ParseException | ClassCastException e) {
+                return null;
+            }
+        }
+
+        /*
+         * Write as much of the output as the socket takes in one gathering write, waiting for the socket to be
+         * writable if any is left.
+         */
+        private void write() throws IOException {
+            if (!output.isEmpty()) {
+                long written = channel.write(output.toArray(new ByteBuffer[output.size()]));
+
+                unsent.addAndGet(-written);
+                while (!output.isEmpty() && !output.peek().hasRemaining()) {
+                    output.poll();
+                }
+            }
+            if (!output.isEmpty()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else if (closing) {
+                close(key);
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            // The replies that stopped carry on once the client has caught up.
+            while (key.isValid() && !suspended.isEmpty() && unsent.get() <= MAX_UNSENT) {
+                run(suspended.poll());
+            }
+        }
+
+        private void append(ByteBuffer buffer) {
+            if (pending == null) {
+                pending = ByteBuffer.allocate(Math.max(buffer.remaining(), 256));
+            } else {
+                pending.compact();
+                if (pending.remaining() < buffer.remaining()) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                            pending.position() + buffer.remaining()));
+
+                    pending.flip();
+                    grown.put(pending);
+                    pending = grown;
+                }
+            }
+            pending.put(buffer);
+            pending.flip();
+        }
+
+        /*
+         * Take the next complete message from the pending bytes, a line or a frame, or null if there isn't one yet.
+         */
+        private String nextMessage() throws IOException {
+            String message = null;
+
+            if (pending == null) {
+                return null;
+            } else if (binary) {
+                message = nextFrame();
+            } else {
+                message = nextLine();
+            }
+            if (!pending.hasRemaining()) {
+                // Nothing is held while the connection is idle.
+                pending = null;
+            }
+            return message;
+        }
+
+        private String nextLine() throws IOException {
+            int start = pending.position();
+
+            for (int i = start; i < pending.limit(); i++) {
+                if (pending.get(i) == '\n') {
+                    int end = i > start && pending.get(i - 1) == '\r' ? i - 1 : i;
+
+                    pending.position(i + 1);
+                    return new String(pending.array(), pending.arrayOffset() + start, end - start,
+                            StandardCharsets.UTF_8);
+                }
+            }
+            if (pending.remaining() > MAX_MESSAGE_LENGTH) {
+                throw new IOException("Message too long");
+            }
+            return null;
+        }
+
+        private String nextFrame() throws IOException {
+            int position = pending.position() + 1;
+            long length = 0;
+
+            // The type byte, then the varint length.
+            for (int shift = 0;; shift += 7) {
+                if (position >= pending.limit()) {
+                    return null;
+                } else if (shift > 28) {
+                    throw new IOException("Bad frame length");
+                }
+
+                int b = pending.get(position++);
+
+                length |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (length > MAX_MESSAGE_LENGTH) {
+                throw new IOException("Message too long");
+            } else if (pending.limit() - position < length) {
+                return null;
+            }
+
+            pending.position(position + (int) length);
+            return new String(pending.array(), pending.arrayOffset() + position, (int) length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /*
+     * A message being answered on the workers, its replies before the last go to the connection as they are written.
+     */
+    private class Answer implements MessageHandler.Replies {
+        private final Connection connection;
+        private final JSONObject input;
+        private final boolean binary;
+        private final boolean isPipelined;
+        // The rest of the replies, while they are stopped.
+        private MessageHandler.Resumable rest;
+
+        Answer(Connection connection, JSONObject input, boolean binary, boolean isPipelined) {
+            this.connection = connection;
+            this.input = input;
+            this.binary = binary;
+            this.isPipelined = isPipelined;
+        }
+
+        @Override
+        public void send(byte[] head, ByteBuffer listing, byte[] tail, int frameType) throws IOException {
+            if (!connection.key.isValid()) {
+                throw new IOException("Connection closed!");
+            }
+
+            ByteBuffer[] buffers = frame(frameType, binary, ByteBuffer.wrap(head), listing, ByteBuffer.wrap(tail));
+            long size = size(buffers);
+
+            // Counted now, so the parts waiting for the loop are held to the limit too.
+            connection.unsent.addAndGet(size);
+            connection.loop.execute(() -> connection.sendPart(buffers, size));
+        }
+
+        @Override
+        public boolean offer(MessageHandler.Resumable rest) {
+            if (connection.unsent.get() <= MAX_UNSENT) {
+                return false;
+            }
+            this.rest = rest;
+            return true;
+        }
+    }
+
+    /*
+     * A reply ready to send, null buffers to close the connection without one.
+     */
+    private static class Reply {
+        private final ByteBuffer[] buffers;
+        private final boolean quit;
+        private final boolean switchToBinary;
+
+        Reply(ByteBuffer[] buffers, boolean quit, boolean switchToBinary) {
+            this.buffers = buffers;
+            this.quit = quit;
+            this.switchToBinary = switchToBinary;
+        }
+    }
+
+    /*
+     * A ByteArrayOutputStream whose bytes can be sent without copying them.
+     */
+    private static class ReplyBuffer extends ByteArrayOutputStream {
+        ReplyBuffer() {
+            super(1024);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package io.ecx.examples.server;
+
+/**
+ * Thrown when a server is too busy to take on a request, the client may try again later.
+ *
+ * @author Paul Hounslow
+ */
+public class OverloadedException extends Exception {
+
+    private static final long serialVersionUID = -2857310449214396781L;
+
+    public OverloadedException(String msg) {
+        super(msg);
+    }
+}
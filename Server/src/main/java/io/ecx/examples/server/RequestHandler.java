@@ -0,0 +1,245 @@
+package io.ecx.examples.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import io.ecx.examples.directory.AsyncLogger;
+import io.ecx.examples.directory.BinaryCodec;
+
+/**
+ * Serves the messages on one connection to the {@link Server}, see there for the protocol. The connection is closed
+ * when the client says bye or goes away.
+ *
+ * <p>
+ * Messages with an id are answered on the server's executor while the next messages are read, each reply is written
+ * whole as soon as it is ready. Up to {@link #MAX_PIPELINED} may be in hand at once, after that the connection isn't
+ * read until one is answered. A message without an id waits for those before it to be answered first.
+ * </p>
+ * <p>
+ * A cached listing is copied from the cache's buffer to the socket in chunks, rather than being put together with
+ * the rest of the reply first.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+class RequestHandler implements Runnable {
+    /** The most messages with ids being answered at once on one connection. */
+    static final int MAX_PIPELINED = 64;
+    // The size of the chunks a cached listing is copied to the socket in.
+    private static final int CHUNK_SIZE = 8192;
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+    private static final ByteBuffer NO_LISTING = ByteBuffer.allocate(0);
+    private static final byte[] NO_BYTES = new byte[0];
+    private final Socket clientSocket;
+    private final MessageHandler handler;
+    private final Executor executor;
+    private final Semaphore pipelined = new Semaphore(MAX_PIPELINED);
+    private PrintStream out;
+    // Used under the lock on out.
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    /**
+     * Constructor.
+     *
+     * @param clientSocket
+     *            the connection, which the handler closes.
+     * @param handler
+     *            the handler for the messages, shared by all the connections.
+     * @param executor
+     *            runs the messages with ids.
+     */
+    RequestHandler(Socket clientSocket, MessageHandler handler, Executor executor) {
+        this.clientSocket = clientSocket;
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    @Override
+    public void run() {
+        try {
+            boolean binary = false;
+            // Each reply is flushed once it is complete, then sent at once rather than holding back the tail of a
+            // large reply for the client's delayed ACK.
+            clientSocket.setTcpNoDelay(true);
+            out = new PrintStream(new BufferedOutputStream(clientSocket.getOutputStream()), false,
+                    StandardCharsets.UTF_8.name());
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
+            InputStream binaryIn = null;
+            // Each reply is put together here and sent whole, as a line or a frame.
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            PrintStream messageOut = new PrintStream(message, false, StandardCharsets.UTF_8.name());
+
+            JSONObject input;
+            JSONParser parser = new JSONParser();
+
+            out.println(handler.getHello());
+            out.flush();
+
+            do {
+                String inputStr;
+                if (binary) {
+                    BinaryCodec.Frame frame = BinaryCodec.readFrame(binaryIn);
+
+                    inputStr = frame != null ? new String(frame.getPayload(), StandardCharsets.UTF_8) : null;
+                } else {
+                    inputStr = in.readLine();
+                }
+                if (inputStr == null) {
+                    // The client has gone without saying bye.
+                    break;
+                }
+                LOG.info("Server received", inputStr);
+
+                input = (JSONObject) parser.parse(inputStr);
+
+                if (MessageHandler.isPipelined(input)) {
+                    pipelined.acquire();
+                    answerLater(input, binary);
+                    continue;
+                }
+
+                // Wait for the messages before this one.
+                pipelined.acquire(MAX_PIPELINED);
+                pipelined.release(MAX_PIPELINED);
+                synchronized (out) {
+                    message.reset();
+                    int frameType = handler.reply(input, binary, messageOut, new BlockingReplies(binary));
+
+                    messageOut.flush();
+                    if (frameType != MessageHandler.SENT) {
+                        send(message.toByteArray(), NO_LISTING, NO_BYTES, frameType, binary);
+                    }
+                }
+
+                if (MessageHandler.switchesToBinary(input, binary)) {
+                    // The client sends nothing more until it has read the reply, so the reader holds nothing back.
+                    binary = true;
+                    binaryIn = new BufferedInputStream(clientSocket.getInputStream());
+                }
+            } while (!MessageHandler.isBye(input));
+
+        } catch (IOException e) {
+        } catch (ParseException | ClassCastException e1) {
+            // A message that isn't a JSON object ends the connection.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /*
+     * Write a reply made of a head, a listing and a tail as a frame or a line and flush it, recording the time taken.
+     * The caller holds the lock on out.
+     */
+    private void send(byte[] head, ByteBuffer listing, byte[] tail, int frameType, boolean binary)
+            throws IOException {
+        long start = System.nanoTime();
+        long length = head.length + listing.remaining() + tail.length;
+
+        if (binary) {
+            out.write(frameType);
+            BinaryCodec.writeVarint(out, length);
+        }
+        out.write(head);
+        while (listing.hasRemaining()) {
+            int count = Math.min(listing.remaining(), chunk.length);
+
+            listing.get(chunk, 0, count);
+            out.write(chunk, 0, count);
+        }
+        out.write(tail);
+        if (!binary) {
+            out.println();
+        }
+        out.flush();
+        handler.getStats().write(System.nanoTime() - start, length);
+    }
+
+    /*
+     * Sends each reply of a batch, and each cached listing, whole, between the replies to any other messages. The
+     * writes block while the client is behind, so the rest of the replies are never taken, they carry on once the
+     * writes do.
+     */
+    private class BlockingReplies implements MessageHandler.Replies {
+        private final boolean binary;
+
+        BlockingReplies(boolean binary) {
+            this.binary = binary;
+        }
+
+        @Override
+        public void send(byte[] head, ByteBuffer listing, byte[] tail, int frameType) throws IOException {
+            synchronized (out) {
+                RequestHandler.this.send(head, listing, tail, frameType, binary);
+                if (out.checkError()) {
+                    throw new IOException("Connection closed!");
+                }
+            }
+        }
+
+        @Override
+        public boolean offer(MessageHandler.Resumable rest) {
+            return false;
+        }
+    }
+
+    /*
+     * Answer a message on the executor, the reply is put together first and then written whole.
+     */
+    private void answerLater(JSONObject input, boolean binary) throws IOException {
+        Runnable task = () -> {
+            try {
+                ByteArrayOutputStream message = new ByteArrayOutputStream();
+                PrintStream messageOut = new PrintStream(message, false, StandardCharsets.UTF_8.name());
+                int frameType = handler.reply(input, binary, messageOut, new BlockingReplies(binary));
+
+                messageOut.flush();
+                if (frameType != MessageHandler.SENT) {
+                    synchronized (out) {
+                        send(message.toByteArray(), NO_LISTING, NO_BYTES, frameType, binary);
+                        if (out.checkError()) {
+                            clientSocket.close();
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // The client can't be left waiting for a reply that will never come.
+                try {
+                    clientSocket.close();
+                } catch (IOException e1) {
+                }
+            } finally {
+                pipelined.release();
+            }
+        };
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The server is shutting down.
+            pipelined.release();
+            clientSocket.close();
+        }
+    }
+}
@@ -1,17 +1,18 @@
 package io.ecx.examples.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-
-import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryCodec;
+import io.ecx.examples.directory.DirectoryDelta;
+import io.ecx.examples.directory.DirectoryQuery;
 
 /**
  * A Simple directory server to demonstrate networking and JSON.
@@ -19,7 +20,17 @@ import io.ecx.examples.directory.Directory;
  * The server sends a directory listing when requested by a client.
  * </p>
  * <p>
- * All communication is done using JSON.
+ * All communication is done using JSON, encoded as UTF-8. Listings are written with the {@link DirectoryCodec}
+ * selected by the <code>io.ecx.examples.codec</code> system property.
+ * </p>
+ * <p>
+ * Listings are served from a {@link ListingCache}, so a directory that hasn't changed is only read and serialized
+ * once.
+ * </p>
+ * <p>
+ * Once started the server accepts connections until {@link #shutdown()}, each served on a thread of its own by a
+ * {@link RequestHandler}. All the connections share the cache. See {@link NioServer} for an engine that holds many
+ * mostly idle connections with a few threads.
  * </p>
  * <p>
  * The messages that may be received from the client are:
@@ -27,6 +38,11 @@ import io.ecx.examples.directory.Directory;
  * <ol>
  * <li>command: <i>&lt;cmd&gt;</i></li>
  * <li>directory: <i>&lt;dir&gt;</i></li>
+ * <li>directory: <i>&lt;dir&gt;</i>, since: <i>&lt;version&gt;</i></li>
+ * <li>directory: <i>&lt;dir&gt;</i>, limit: <i>&lt;limit&gt;</i>, cursor: <i>&lt;cursor&gt;</i></li>
+ * <li>directory: <i>&lt;dir&gt;</i>, query: <i>&lt;query&gt;</i></li>
+ * <li>directory: <i>&lt;dir&gt;</i>, stream: <i>&lt;size&gt;</i></li>
+ * <li>directories: [<i>&lt;dir&gt;</i>, ...]</li>
  * <ol>
  *
  * <p>
@@ -37,10 +53,41 @@ import io.ecx.examples.directory.Directory;
  * </p>
  * <ol>
  * <li>bye - end the communication.</li>
+ * <li>stats - get the server's request counts and rates, cache hit ratio and the percentiles of the times taken to
+ * scan, serialize and write the listings, see {@link ServerStats}.</li>
+ * <li>ping - check the connection is still good, answered with pong.</li>
  * </ol>
  * <p>
  * <i>&lt;dir&gt;</i> is the directory to list.
  * </p>
+ * <p>
+ * <i>&lt;version&gt;</i> is the version of the listing the client already holds, or 0 if it has none. The reply
+ * carries the current version, with only the changes since the client's version if the server still knows them, or
+ * just the version if the client's listing is current.
+ * </p>
+ * <p>
+ * <i>&lt;limit&gt;</i> is the maximum number of entries to send, in name order, and <i>&lt;cursor&gt;</i> is the
+ * cursor sent with the page before, left out for the first page.
+ * </p>
+ * <p>
+ * <i>&lt;query&gt;</i> picks out and orders the entries to send, see {@link DirectoryQuery}. A cached listing is
+ * queried in memory, otherwise the query is applied as the directory is read and the result isn't cached.
+ * </p>
+ * <p>
+ * <i>&lt;size&gt;</i> asks for the listing to be streamed, the entries are sent in batches of at most this many as the
+ * directory is read.
+ * </p>
+ * <p>
+ * Any message may also carry an id: <i>&lt;id&gt;</i>, a positive integer that is sent back in the reply. Listings
+ * asked for with ids are answered together, so a client can send many without waiting and match the replies, which
+ * may come back in any order. A message without an id is answered once all those before it have been.
+ * </p>
+ * <p>
+ * <i>directories</i> is a batch, the directories are listed at the same time on a bounded pool of threads and each
+ * listing or exception is sent as soon as it is ready, with path: <i>&lt;dir&gt;</i> as it was asked for. Cached
+ * listings are used, but the directories read for a batch aren't cached. The batch ends with a count of the
+ * directories and of those that failed.
+ * </p>
  *
  * <p>
  * The server may send the following to the client:
@@ -48,7 +95,19 @@ import io.ecx.examples.directory.Directory;
  * <ol>
  * <li>command: <i>&lt;cmd&gt;</i></li>
  * <li>dir: <i>&lt;directory&gt;</i></li>
+ * <li>dir: <i>&lt;directory&gt;</i>, version: <i>&lt;version&gt;</i></li>
+ * <li>delta: <i>&lt;delta&gt;</i>, version: <i>&lt;version&gt;</i></li>
+ * <li>notModified: true, version: <i>&lt;version&gt;</i> - the listing the client holds is current.</li>
+ * <li>dir: <i>&lt;directory&gt;</i>, cursor: <i>&lt;cursor&gt;</i></li>
  * <li>exception: <i>&lt;message&gt;</i></li>
+ * <li>exception: <i>&lt;message&gt;</i>, overloaded: true - the server is too busy to read the directory, see
+ * {@link AdmissionControl}, the request may be tried again later.</li>
+ * <li>dir: <i>&lt;directory&gt;</i>, path: <i>&lt;dir&gt;</i> or exception: <i>&lt;message&gt;</i>, path:
+ * <i>&lt;dir&gt;</i> for each directory of a batch.</li>
+ * <li>batch: <i>&lt;count&gt;</i>, failed: <i>&lt;failed&gt;</i> the end of a batch.</li>
+ * <li>stream: <i>&lt;path&gt;</i>, then entries: <i>&lt;entries&gt;</i> for each batch, then streamed:
+ * <i>&lt;count&gt;</i>, batches: <i>&lt;batches&gt;</i> for a streamed listing. An exception in place of any of these
+ * ends the stream.</li>
  * <ol>
  *
  * <p>
@@ -61,94 +120,152 @@ import io.ecx.examples.directory.Directory;
  * <li>hello - sent in response to a connection being opened. Once the client receives the 'hello' command it knows it
  * can send messages to the server.</li>
  * <li>bye - sent in response to a 'bye' command from the client before the connection is closed.</li>
+ * <li>stats - sent in response to a 'stats' command, with stats: <i>&lt;stats&gt;</i>.</li>
+ * <li>pong - sent in response to a 'ping' command.</li>
  * </ol>
  * <p>
  * <i>&lt;directory&gt;</i> is the directory listing.
  * </p>
  * <p>
+ * <i>&lt;delta&gt;</i> is the changes to the listing, see {@link DirectoryDelta}.
+ * </p>
+ * <p>
+ * <i>&lt;cursor&gt;</i> is where the next page starts, sent when there are more entries to come.
+ * </p>
+ * <p>
  * <i>&lt;message&gt;</i> is the error message.
  * </p>
  *
  * @author Paul Hounslow
  *
  */
-public class Server extends Thread {
+public class Server extends Thread implements DirectoryServer {
     public static final int PORT_NUM = 9999;
+    /** The name of this engine, for {@link DirectoryServer#ENGINE_PROPERTY}. */
+    public static final String ENGINE = "thread";
+    /** The default length of the queue of connections waiting to be accepted. */
+    public static final int DEFAULT_BACKLOG = 1024;
+    // How long a shutdown waits for the connections to finish.
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
     private final ServerSocket serverSocket;
+    private final ServerStats stats = new ServerStats();
+    private final ListingCache cache = new ListingCache(ListingCache.DEFAULT_MAX_ENTRIES, ListingCache.DEFAULT_MAX_BYTES,
+            stats);
+    private final MessageHandler handler = new MessageHandler(cache, new AdmissionControl(), stats);
+    private final ExecutorService executor = newConnectionExecutor();
+    // The open connections, closed on shutdown.
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
 
-    public static void main(String[] args) throws IOException {
-        new Server();
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : PORT_NUM;
+        int backlog = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BACKLOG;
+        DirectoryServer server = DirectoryServer.create(port, backlog);
+
+        server.start();
+        // The engines' threads are daemons, so the process lasts as long as the server does.
+        server.join();
     }
 
     public Server() throws IOException {
-        serverSocket = new ServerSocket(PORT_NUM);
+        this(PORT_NUM, DEFAULT_BACKLOG);
     }
 
-    public void run() {
-        Socket clientSocket;
-        try {
-            boolean quit = false;
-            clientSocket = serverSocket.accept();
-            PrintStream out = new PrintStream(clientSocket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-
-            JSONObject input;
-            JSONParser parser = new JSONParser();
-
-            out.println(command2JSON("hello"));
-
-            do {
-                String inputStr = in.readLine();
-                System.out.println("Server received: " + inputStr);
+    /**
+     * Constructor, the server listens from here on but only accepts connections once started.
+     *
+     * @param port
+     *            the port to listen on, or 0 for any free port.
+     * @param backlog
+     *            the maximum number of connections waiting to be accepted.
+     * @throws IOException
+     *             if the port can't be listened on.
+     */
+    public Server(int port, int backlog) throws IOException {
+        super("Server " + port);
+        serverSocket = new ServerSocket(port, backlog);
+    }
 
-                input = (JSONObject) parser.parse(inputStr);
+    @Override
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
 
-                if (input.containsKey("command")) {
-                    String command = (String) input.get("command");
+    /**
+     * Accept connections until shut down, each is served on a thread of its own.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!serverSocket.isClosed()) {
+                Socket clientSocket = serverSocket.accept();
 
-                    if ("bye".equalsIgnoreCase(command)) {
-                        quit = true;
-                        out.print(command2JSON("bye"));
-                    }
-                } else if (input.containsKey("directory")) {
+                connections.add(clientSocket);
+                executor.execute(() -> {
                     try {
-                        Directory dir = new Directory((String) input.get("directory"));
-                        JSONObject obj = new JSONObject();
-
-                        obj.put("directory", dir);
-                        out.print(obj.toJSONString());
-                    } catch (NullPointerException e) {
-                        out.print(exception2JSON(e));
+                        new RequestHandler(clientSocket, handler, executor).run();
+                    } finally {
+                        connections.remove(clientSocket);
                     }
-                }
-                out.println();
-                out.flush();
-            } while (!quit);
-
-            out.close();
-            serverSocket.close();
-
+                });
+            }
         } catch (IOException e) {
-        } catch (ParseException e1) {
+            // Shut down.
         } finally {
+            // One may have been accepted as the server was shut down.
+            closeConnections();
+            handler.close();
+            executor.shutdown();
+            try {
+                executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                cache.close();
+            } catch (IOException e) {
+            }
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private JSONObject exception2JSON(Exception e) {
-        JSONObject obj = new JSONObject();
-
-        obj.put("exception", e.getMessage());
+    /**
+     * Stop accepting connections and close the open ones. The server thread ends once the connections have finished,
+     * join it to wait for that.
+     */
+    @Override
+    public void shutdown() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+        closeConnections();
+    }
 
-        return obj;
+    private void closeConnections() {
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
     }
 
-    @SuppressWarnings("unchecked")
-    private JSONObject command2JSON(String cmd) {
-        JSONObject obj = new JSONObject();
+    /*
+     * A virtual thread per connection where the JVM has them (Java 21 and later), they cost little while blocked on
+     * the socket so the number of connections isn't bounded by threads. Older JVMs get a cached pool of platform
+     * threads.
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
 
-        obj.put("command", cmd);
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "Server connection " + count.incrementAndGet());
 
-        return obj;
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 }
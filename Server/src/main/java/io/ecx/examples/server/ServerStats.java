@@ -0,0 +1,156 @@
+package io.ecx.examples.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+
+/**
+ * The counters and histograms of a server, sent back for a <i>stats</i> command.
+ *
+ * <p>
+ * Times are in nanoseconds. Recording costs a couple of atomic increments, so it is always on. The rates are given
+ * both over the life of the server and since the stats were last asked for, so a monitor polling at a steady interval
+ * reads the recent rate directly.
+ * </p>
+ *
+ * @author Paul Hounslow
+ */
+public class ServerStats {
+    private final long started = System.nanoTime();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder exceptions = new LongAdder();
+    private final Histogram requestTime = new Histogram();
+    private final Histogram scanTime = new Histogram();
+    private final Histogram serializeTime = new Histogram();
+    private final Histogram writeTime = new Histogram();
+    private final Histogram entries = new Histogram();
+    private final Histogram bytes = new Histogram();
+    // When the stats were last asked for, and the counts then.
+    private long lastTime = started;
+    private long lastRequests;
+    private long lastBytes;
+
+    /**
+     * Count a message and the time taken to answer it, up to writing the reply.
+     *
+     * @param nanos
+     *            the time taken.
+     */
+    public void request(long nanos) {
+        requests.increment();
+        requestTime.record(nanos);
+    }
+
+    /**
+     * Count a message answered with an exception.
+     */
+    public void exception() {
+        exceptions.increment();
+    }
+
+    /**
+     * Record the time taken to read a directory.
+     *
+     * @param nanos
+     *            the time taken.
+     */
+    public void scan(long nanos) {
+        scanTime.record(nanos);
+    }
+
+    /**
+     * Record the time taken to serialize a listing.
+     *
+     * @param nanos
+     *            the time taken.
+     */
+    public void serialize(long nanos) {
+        serializeTime.record(nanos);
+    }
+
+    /**
+     * Record the number of entries in a listing sent.
+     *
+     * @param count
+     *            the number of entries.
+     */
+    public void entries(long count) {
+        entries.record(count);
+    }
+
+    /**
+     * Record a reply written to a socket.
+     *
+     * @param nanos
+     *            the time taken to write it.
+     * @param count
+     *            the number of bytes.
+     */
+    public void write(long nanos, long count) {
+        writeTime.record(nanos);
+        bytes.record(count);
+    }
+
+    /**
+     * Get the stats as JSON.
+     *
+     * @param cache
+     *            the server's cache, for its hit ratio.
+     * @param admission
+     *            the server's admission control, for the scans running and waiting.
+     * @param scans
+     *            the scans for the cache, for the requests that waited for another's.
+     * @return the stats.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized JSONObject toJSON(ListingCache cache, AdmissionControl admission, SingleFlight<?, ?> scans) {
+        long now = System.nanoTime();
+        long requestCount = requests.sum();
+        long byteCount = bytes.getSum();
+        double seconds = (now - started) / 1e9;
+        double recentSeconds = (now - lastTime) / 1e9;
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        JSONObject obj = new JSONObject();
+        JSONObject cacheObj = new JSONObject();
+        JSONObject admissionObj = new JSONObject();
+
+        obj.put("uptimeSeconds", Math.round(seconds));
+        obj.put("requests", requestCount);
+        obj.put("exceptions", exceptions.sum());
+        obj.put("bytesSent", byteCount);
+        obj.put("requestsPerSecond", rate(requestCount, seconds));
+        obj.put("recentRequestsPerSecond", rate(requestCount - lastRequests, recentSeconds));
+        obj.put("bytesPerSecond", rate(byteCount, seconds));
+        obj.put("recentBytesPerSecond", rate(byteCount - lastBytes, recentSeconds));
+
+        cacheObj.put("hits", hits);
+        cacheObj.put("misses", misses);
+        cacheObj.put("hitRatio", hits + misses > 0 ? (double) hits / (hits + misses) : 0.0);
+        cacheObj.put("listings", cache.size());
+        cacheObj.put("coalesced", scans.getJoined());
+        obj.put("cache", cacheObj);
+
+        admissionObj.put("scans", admission.getScans());
+        admissionObj.put("queued", admission.getQueued());
+        admissionObj.put("admitted", admission.getAdmitted());
+        admissionObj.put("rejected", admission.getRejected());
+        obj.put("admission", admissionObj);
+
+        obj.put("requestNanos", requestTime.toJSON());
+        obj.put("scanNanos", scanTime.toJSON());
+        obj.put("serializeNanos", serializeTime.toJSON());
+        obj.put("writeNanos", writeTime.toJSON());
+        obj.put("entries", entries.toJSON());
+        obj.put("bytes", bytes.toJSON());
+
+        lastTime = now;
+        lastRequests = requestCount;
+        lastBytes = byteCount;
+        return obj;
+    }
+
+    private static double rate(long count, double seconds) {
+        return seconds > 0 ? Math.round(count / seconds * 10) / 10.0 : 0.0;
+    }
+}
@@ -89,7 +89,9 @@ public class ServerTest {
 		assertEquals("{\"command\":\"bye\"}", fromServer);
 		
 		socket.close();
-		
+
+		server.shutdown();
+		server.join();
 		assertFalse(server.isAlive());
 	}
 }
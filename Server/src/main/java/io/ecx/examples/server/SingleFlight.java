@@ -0,0 +1,134 @@
+package io.ecx.examples.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs one call at a time for each key, a thread asking for a key while a call for it is already running waits for
+ * that call and gets the same result, or the same exception.
+ *
+ * <p>
+ * The server uses it so that when a popular directory's listing is dropped from the cache and many connections ask
+ * for it at once the directory is only read once. A thread waits at most the timeout for a call, after that the call
+ * is taken to be stuck and forgotten, so the next thread to ask starts a fresh one, and the waiting thread gets an
+ * {@link OverloadedException} to tell its client to try again.
+ * </p>
+ *
+ * @author Paul Hounslow
+ *
+ * @param <K>
+ *            the type of the keys.
+ * @param <V>
+ *            the type of the results.
+ */
+class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final long timeout;
+    private final LongAdder joined = new LongAdder();
+
+    /**
+     * A call that may be shared.
+     *
+     * @param <T>
+     *            the type of the result.
+     */
+    interface Call<T> {
+        T call() throws IOException, OverloadedException;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param timeout
+     *            the longest a thread waits for another's call, in milliseconds.
+     */
+    SingleFlight(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Make a call for a key, unless one is already running for it, in which case wait for its result.
+     *
+     * @param key
+     *            the key.
+     * @param call
+     *            the call, only made if there isn't one running for the key.
+     * @return the result.
+     * @throws IOException
+     *             if the call throws one, or the thread is interrupted while waiting.
+     * @throws OverloadedException
+     *             if the call throws one, or the call being waited for takes longer than the timeout.
+     */
+    V run(K key, Call<V> call) throws IOException, OverloadedException {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = flights.putIfAbsent(key, flight);
+
+        if (running != null) {
+            joined.increment();
+            return await(key, running);
+        }
+
+        try {
+            V result = call.call();
+
+            flight.complete(result);
+            return result;
+        } catch (IOException | OverloadedException | RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Get the number of calls that waited for another's result rather than making their own.
+     *
+     * @return the number of calls joined.
+     */
+    long getJoined() {
+        return joined.sum();
+    }
+
+    /**
+     * Get the number of calls running.
+     *
+     * @return the number of keys with calls running.
+     */
+    int size() {
+        return flights.size();
+    }
+
+    private V await(K key, CompletableFuture<V> running) throws IOException, OverloadedException {
+        try {
+            return running.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Let the next thread try for itself.
+            flights.remove(key, running);
+            throw new OverloadedException("Timed out waiting for " + key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            // The waiting threads get the exception the call threw.
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof OverloadedException) {
+                throw (OverloadedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
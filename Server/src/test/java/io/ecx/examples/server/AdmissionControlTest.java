@@ -0,0 +1,98 @@
+package io.ecx.examples.server;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class AdmissionControlTest {
+	private static final long TIMEOUT = 5000;
+
+	@Test
+	@SuppressWarnings("try")
+	public void testLimits() throws Exception {
+		AdmissionControl admission = new AdmissionControl(2, 10000, 0);
+
+		try (AdmissionControl.Permit first = admission.acquire("a");
+				AdmissionControl.Permit second = admission.acquire("b")) {
+			assertEquals(2, admission.getScans());
+			try {
+				admission.acquire("c");
+				fail("Admitted more scans than the limit");
+			} catch (OverloadedException e) {
+			}
+		}
+		assertEquals(0, admission.getScans());
+		assertEquals(2, admission.getAdmitted());
+		assertEquals(1, admission.getRejected());
+	}
+
+	@Test
+	@SuppressWarnings("try")
+	public void testCost() throws Exception {
+		AdmissionControl admission = new AdmissionControl(10, 3 * AdmissionControl.UNKNOWN_COST, 0);
+
+		// Once scanned, a directory costs its entry count.
+		try (AdmissionControl.Permit permit = admission.acquire("big")) {
+			permit.setEntries(2 * AdmissionControl.UNKNOWN_COST);
+		}
+		try (AdmissionControl.Permit big = admission.acquire("big");
+				AdmissionControl.Permit small = admission.acquire("small")) {
+			try {
+				admission.acquire("other");
+				fail("Admitted more than the cost limit");
+			} catch (OverloadedException e) {
+			}
+		}
+
+		// One costing more than the limit runs alone.
+		try (AdmissionControl.Permit permit = admission.acquire("huge")) {
+			permit.setEntries(100 * AdmissionControl.UNKNOWN_COST);
+		}
+		try (AdmissionControl.Permit permit = admission.acquire("huge")) {
+			try {
+				admission.acquire("small");
+				fail("Admitted alongside a huge directory");
+			} catch (OverloadedException e) {
+			}
+		}
+	}
+
+	@Test
+	@SuppressWarnings("try")
+	public void testQueue() throws Exception {
+		AdmissionControl admission = new AdmissionControl(1, 10000, 1);
+		AdmissionControl.Permit first = admission.acquire("a");
+		CountDownLatch admitted = new CountDownLatch(1);
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		Thread waiter = new Thread(() -> {
+			try (AdmissionControl.Permit permit = admission.acquire("b")) {
+				admitted.countDown();
+			} catch (Exception e) {
+				failure.set(e);
+			}
+		});
+
+		waiter.start();
+		while (admission.getQueued() == 0) {
+			Thread.sleep(10);
+		}
+		// The queue is full.
+		try {
+			admission.acquire("c");
+			fail("Queued more than the limit");
+		} catch (OverloadedException e) {
+		}
+		assertEquals(1, admitted.getCount());
+
+		first.close();
+		assertTrue(admitted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		waiter.join(TIMEOUT);
+		assertNull(failure.get());
+		assertEquals(0, admission.getQueued());
+		assertEquals(0, admission.getScans());
+	}
+}
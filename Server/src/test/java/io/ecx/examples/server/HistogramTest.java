@@ -0,0 +1,100 @@
+package io.ecx.examples.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+public class HistogramTest {
+	// The most a value may be reported above what was recorded.
+	private static final double PRECISION = 1.0 / Histogram.SUB_BUCKETS;
+
+	@Test
+	public void testEmpty() {
+		Histogram histogram = new Histogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(99.0));
+		assertEquals(0.0, histogram.getMean(), 0.0);
+	}
+
+	@Test
+	public void testBuckets() {
+		long previous = -1;
+
+		for (int i = 0; Histogram.highestValue(i) < Long.MAX_VALUE; i++) {
+			long highest = Histogram.highestValue(i);
+
+			assertTrue(highest > previous);
+			assertEquals(i, Histogram.index(previous + 1));
+			assertEquals(i, Histogram.index(highest));
+			previous = highest;
+		}
+		assertEquals(Long.MAX_VALUE, Histogram.highestValue(Histogram.index(Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void testPercentiles() {
+		Histogram histogram = new Histogram();
+
+		for (long v = 1; v <= 100000; v++) {
+			histogram.record(v * 1000);
+		}
+		assertEquals(100000, histogram.getCount());
+		assertEquals(100000000L, histogram.getMax());
+		assertEquals(50000500.0, histogram.getMean(), 1.0);
+		assertNear(50000000L, histogram.getValueAtPercentile(50.0));
+		assertNear(99000000L, histogram.getValueAtPercentile(99.0));
+		assertNear(99900000L, histogram.getValueAtPercentile(99.9));
+		assertEquals(100000000L, histogram.getValueAtPercentile(100.0));
+
+		JSONObject json = histogram.toJSON();
+
+		assertEquals(histogram.getValueAtPercentile(99.9), json.get("p999"));
+		assertEquals(100000L, json.get("count"));
+	}
+
+	@Test
+	public void testSmallValues() {
+		Histogram histogram = new Histogram();
+
+		histogram.record(-5);
+		histogram.record(3);
+		histogram.record(3);
+		histogram.record(7);
+		assertEquals(0, histogram.getValueAtPercentile(25.0));
+		assertEquals(3, histogram.getValueAtPercentile(50.0));
+		assertEquals(7, histogram.getValueAtPercentile(99.0));
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		Histogram histogram = new Histogram();
+		List<Thread> threads = new ArrayList<>();
+
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 100000; i++) {
+					histogram.record(i % 1000);
+				}
+			});
+
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(400000, histogram.getCount());
+		assertEquals(999, histogram.getMax());
+		assertNear(499, histogram.getValueAtPercentile(50.0));
+	}
+
+	private static void assertNear(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but was " + actual,
+				actual >= expected && actual <= expected + expected * PRECISION);
+	}
+}
@@ -0,0 +1,215 @@
+package io.ecx.examples.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ecx.examples.directory.BinaryCodec;
+import io.ecx.examples.directory.Directory;
+import io.ecx.examples.directory.DirectoryCodec;
+import io.ecx.examples.directory.DirectoryDelta;
+
+public class ListingCacheTest {
+	private static final String CACHE_DIR = "cache";
+	private static final String FILE_PREFIX = "file_";
+	private static final int NUM_FILES = 5;
+	// Long enough for a slow polling watch service.
+	private static final long WATCH_TIMEOUT = 15000;
+
+	private static final File dir = new File(CACHE_DIR);
+	private static final File other = new File(dir, "other");
+
+	private ListingCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		dir.mkdir();
+		other.mkdir();
+		for (int i = 0; i < NUM_FILES; i++) {
+			new File(dir, FILE_PREFIX + i).createNewFile();
+		}
+		cache = new ListingCache();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		cache.close();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testHit() {
+		ListingCache.Listing first = cache.get(CACHE_DIR);
+
+		assertSame(first, cache.get(CACHE_DIR));
+		// The same directory by another name is the same entry.
+		assertSame(first, cache.get(new File(other, "..").getPath()));
+		assertEquals(1, cache.getMisses());
+		assertEquals(2, cache.getHits());
+		assertEquals(NUM_FILES + 1, first.getDirectory().size());
+	}
+
+	@Test
+	public void testJSON() throws Exception {
+		ListingCache.Listing listing = cache.get(CACHE_DIR);
+		Directory read = DirectoryCodec.getDefault().read(new ByteArrayInputStream(listing.getJSON()));
+
+		assertEquals(listing.getDirectory().toJSONString(), read.toJSONString());
+	}
+
+	@Test
+	public void testBuffers() throws Exception {
+		ListingCache.Listing listing = cache.get(CACHE_DIR);
+		ByteBuffer json = listing.getJSONBuffer();
+		ByteBuffer binary = listing.getBinaryBuffer();
+
+		assertTrue(json.isDirect());
+		assertTrue(json.isReadOnly());
+		assertArrayEquals(listing.getJSON(), bytes(json));
+		// Each caller has a position of its own.
+		assertEquals(0, listing.getJSONBuffer().position());
+		assertArrayEquals(listing.getBinary(), bytes(binary));
+		assertEquals(listing.getDirectory().toJSONString(),
+				new BinaryCodec().read(new ByteArrayInputStream(listing.getBinary())).toJSONString());
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		ListingCache.Listing first = cache.get(CACHE_DIR);
+		ListingCache.Listing listing = first;
+		long end = System.currentTimeMillis() + WATCH_TIMEOUT;
+
+		new File(dir, FILE_PREFIX + NUM_FILES).createNewFile();
+		while (listing == first && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+			listing = cache.get(CACHE_DIR);
+		}
+		assertNotSame(first, listing);
+		assertEquals(NUM_FILES + 2, listing.getDirectory().size());
+	}
+
+	@Test
+	public void testVersion() throws Exception {
+		ListingCache.Listing first = cache.get(CACHE_DIR);
+		ListingCache.Listing listing = first;
+		long end = System.currentTimeMillis() + WATCH_TIMEOUT;
+
+		assertTrue(cache.get(CACHE_DIR).getDelta(first.getVersion()).isEmpty());
+		assertNull(first.getDelta(ListingCache.NO_VERSION));
+
+		new File(dir, FILE_PREFIX + 0).delete();
+		while (listing == first && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+			listing = cache.get(CACHE_DIR);
+		}
+		DirectoryDelta delta = listing.getDelta(first.getVersion());
+
+		assertTrue(listing.getVersion() > first.getVersion());
+		assertEquals(Collections.singletonList(FILE_PREFIX + 0), delta.getRemoved());
+		assertEquals(listing.getDirectory().toJSONString(), delta.apply(first.getDirectory()).toJSONString());
+		assertNull(listing.getDelta(first.getVersion() - 1));
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		ListingCache small = new ListingCache(1, ListingCache.DEFAULT_MAX_BYTES);
+
+		try {
+			ListingCache.Listing first = small.get(CACHE_DIR);
+
+			small.get(other.getPath());
+			assertEquals(1, small.size());
+			// Only the directory kept is still watched.
+			assertTrue(small.getWatched() <= 1);
+			assertNotSame(first, small.get(CACHE_DIR));
+			assertEquals(3, small.getMisses());
+		} finally {
+			small.close();
+		}
+	}
+
+	@Test
+	public void testMaxBytes() throws Exception {
+		ListingCache small = new ListingCache(ListingCache.DEFAULT_MAX_ENTRIES, 1);
+
+		try {
+			// Too big to keep at all.
+			ListingCache.Listing listing = small.get(CACHE_DIR);
+
+			assertEquals(0, small.size());
+			assertEquals(0, small.getWatched());
+			// So it is sent from the bytes as serialized, rather than copied out of the heap first.
+			assertFalse(listing.getJSONBuffer().isDirect());
+			assertArrayEquals(listing.getJSON(), bytes(listing.getJSONBuffer()));
+		} finally {
+			small.close();
+		}
+	}
+
+	@Test
+	public void testSerializedWhenSent() throws Exception {
+		// Room for the entries, but not for their text as well.
+		ListingCache small = new ListingCache(ListingCache.DEFAULT_MAX_ENTRIES,
+				new Directory(CACHE_DIR).getHeapSize() + 1);
+
+		try {
+			ListingCache.Listing listing = small.get(CACHE_DIR);
+
+			// Kept for its pages, as nothing has been serialized yet.
+			assertSame(listing, small.get(CACHE_DIR));
+			assertEquals(1, small.size());
+			listing.getJSONBuffer();
+			assertEquals(0, small.size());
+		} finally {
+			small.close();
+		}
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testUnknownDirectory() {
+		cache.get("unknown");
+	}
+
+	@Test
+	public void testVanished() throws Exception {
+		File gone = new File(dir, "gone");
+		// The directory goes after it is watched but before it is read.
+		ListingCache vanishing = new ListingCache() {
+			@Override
+			Directory scan(Path path) {
+				gone.delete();
+				return super.scan(path);
+			}
+		};
+
+		gone.mkdir();
+		try {
+			try {
+				vanishing.get(gone.getPath());
+				fail("Listed a directory that has gone");
+			} catch (NullPointerException e) {
+			}
+			// Nothing is kept, so nothing is left watched.
+			assertEquals(0, vanishing.getWatched());
+			assertEquals(0, vanishing.size());
+		} finally {
+			vanishing.close();
+		}
+	}
+
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+
+		buffer.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,404 @@
+package io.ecx.examples.server;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ecx.examples.directory.BinaryCodec;
+import io.ecx.examples.directory.Directory;
+
+public class NioServerTest {
+	private static final int NUM_FILES = 10;
+
+	private File dir;
+	private NioServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("nio").toFile();
+		for (int i = 0; i < NUM_FILES; i++) {
+			new File(dir, "file_" + i).createNewFile();
+		}
+
+		server = new NioServer(0, 100, 2, 2);
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+		server.join();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testLines() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			BufferedReader in = reader(socket);
+			OutputStream out = socket.getOutputStream();
+
+			assertEquals("{\"command\":\"hello\"}", in.readLine());
+
+			send(out, "{\"directory\":\"" + dir.getPath() + "\"}\n");
+			assertEquals(new Directory(dir.getPath()).toJSONString(), directory(in.readLine()));
+
+			send(out, "{\"directory\":\"no such directory\"}\n");
+			assertTrue(in.readLine().startsWith("{\"exception\":"));
+
+			send(out, "{\"command\":\"bye\"}\n");
+			assertEquals("{\"command\":\"bye\"}", in.readLine());
+			assertNull(in.readLine());
+		}
+	}
+
+	@Test
+	public void testSplitMessages() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			BufferedReader in = reader(socket);
+			OutputStream out = socket.getOutputStream();
+			String request = "{\"directory\":\"" + dir.getPath() + "\"}\r\n";
+
+			assertNotNull(in.readLine());
+
+			// Half a message, then the rest with two more in one write.
+			send(out, request.substring(0, 5));
+			Thread.sleep(50);
+			send(out, request.substring(5) + request + "{\"command\":\"bye\"}\n");
+
+			String listing = new Directory(dir.getPath()).toJSONString();
+
+			assertEquals(listing, directory(in.readLine()));
+			assertEquals(listing, directory(in.readLine()));
+			assertEquals("{\"command\":\"bye\"}", in.readLine());
+		}
+	}
+
+	@Test
+	public void testBinary() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+
+			assertEquals("{\"command\":\"hello\"}", readLine(in));
+			send(out, "{\"command\":\"hello\",\"format\":\"binary\"}\n");
+			assertEquals("binary", ((JSONObject) new JSONParser().parse(readLine(in))).get("format"));
+
+			byte[] request = ("{\"directory\":\"" + dir.getPath() + "\"}").getBytes(StandardCharsets.UTF_8);
+
+			BinaryCodec.writeFrame(out, BinaryCodec.FRAME_JSON, request, 0, request.length);
+			out.flush();
+
+			BinaryCodec.Frame frame = BinaryCodec.readFrame(in);
+			ByteArrayInputStream payload = new ByteArrayInputStream(frame.getPayload());
+
+			assertEquals(BinaryCodec.FRAME_LISTING, frame.getType());
+			assertEquals(0L, BinaryCodec.readVarint(payload));
+			assertNull(BinaryCodec.readString(payload));
+			assertEquals(new Directory(dir.getPath()).toJSONString(), new BinaryCodec().read(payload).toJSONString());
+
+			// Again with an id, this time sent from the cache's buffer.
+			request = ("{\"directory\":\"" + dir.getPath() + "\",\"id\":7}").getBytes(StandardCharsets.UTF_8);
+			BinaryCodec.writeFrame(out, BinaryCodec.FRAME_JSON, request, 0, request.length);
+			out.flush();
+
+			frame = BinaryCodec.readFrame(in);
+			payload = new ByteArrayInputStream(frame.getPayload());
+
+			assertEquals(BinaryCodec.FRAME_LISTING_ID, frame.getType());
+			assertEquals(7L, BinaryCodec.readVarint(payload));
+			assertEquals(0L, BinaryCodec.readVarint(payload));
+			assertNull(BinaryCodec.readString(payload));
+			assertEquals(new Directory(dir.getPath()).toJSONString(), new BinaryCodec().read(payload).toJSONString());
+		}
+	}
+
+	@Test
+	public void testPipelining() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			BufferedReader in = reader(socket);
+			StringBuilder requests = new StringBuilder();
+			Set<Long> ids = new HashSet<>();
+
+			assertNotNull(in.readLine());
+			// More than are answered at once, all in one write, then a message without an id.
+			for (long id = 1; id <= 100; id++) {
+				String path = id % 10 == 0 ? "no such directory" : dir.getPath();
+
+				requests.append("{\"directory\":\"").append(path).append("\",\"id\":").append(id).append("}\n");
+			}
+			send(socket.getOutputStream(), requests + "{\"command\":\"bye\"}\n");
+
+			for (int i = 0; i < 100; i++) {
+				JSONObject reply = (JSONObject) new JSONParser().parse(in.readLine());
+				long id = (Long) reply.get("id");
+
+				assertTrue(ids.add(id));
+				assertEquals(id % 10 == 0, reply.containsKey("exception"));
+			}
+			// Answered once all those before it were.
+			assertEquals("{\"command\":\"bye\"}", in.readLine());
+			assertNull(in.readLine());
+		}
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			BufferedReader in = reader(socket);
+			StringBuilder request = new StringBuilder("{\"directories\":[");
+			Set<String> paths = new HashSet<>();
+
+			assertNotNull(in.readLine());
+			// More than one batch has in hand at once.
+			for (int i = 0; i < 2 * MessageHandler.BATCH_WINDOW; i++) {
+				String path = i % 10 == 9 ? "missing_" + i : dir.getPath();
+
+				request.append(i > 0 ? "," : "").append('"').append(path).append('"');
+				paths.add(path);
+			}
+			send(socket.getOutputStream(), request + "]}\n");
+
+			int failed = 0;
+
+			for (int i = 0; i < 2 * MessageHandler.BATCH_WINDOW; i++) {
+				JSONObject reply = (JSONObject) new JSONParser().parse(in.readLine());
+
+				assertTrue(paths.contains(reply.get("path")));
+				if (reply.containsKey("exception")) {
+					failed++;
+				} else {
+					assertEquals(NUM_FILES, ((JSONArray) ((JSONObject) reply.get("directory")).get("files")).size());
+				}
+			}
+			assertEquals(2 * MessageHandler.BATCH_WINDOW / 10, failed);
+
+			JSONObject end = (JSONObject) new JSONParser().parse(in.readLine());
+
+			assertEquals(2L * MessageHandler.BATCH_WINDOW, end.get("batch"));
+			assertEquals((long) failed, end.get("failed"));
+
+			send(socket.getOutputStream(), "{\"directories\":\"" + dir.getPath() + "\"}\n");
+			assertTrue(in.readLine().startsWith("{\"exception\":"));
+		}
+	}
+
+	@Test
+	public void testStream() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			JSONParser parser = new JSONParser();
+			int count = 0;
+
+			assertNotNull(readLine(in));
+			send(out, "{\"directory\":\"" + dir.getPath() + "\",\"stream\":3,\"id\":5}\n");
+
+			JSONObject header = (JSONObject) parser.parse(readLine(in));
+
+			assertEquals(new File(dir.getPath()).getAbsolutePath(), header.get("stream"));
+			assertEquals(5L, header.get("id"));
+
+			JSONObject reply;
+
+			while ((reply = (JSONObject) parser.parse(readLine(in))).containsKey("entries")) {
+				assertEquals(5L, reply.get("id"));
+				count += ((JSONArray) ((JSONObject) reply.get("entries")).get("files")).size();
+			}
+			assertEquals(NUM_FILES, count);
+			assertEquals((long) NUM_FILES, reply.get("streamed"));
+			assertEquals((NUM_FILES + 2L) / 3, reply.get("batches"));
+
+			// The same from the cache, in the binary format.
+			send(out, "{\"directory\":\"" + dir.getPath() + "\"}\n");
+			readLine(in);
+			send(out, "{\"command\":\"hello\",\"format\":\"binary\"}\n");
+			readLine(in);
+
+			byte[] request = ("{\"directory\":\"" + dir.getPath() + "\",\"stream\":4}").getBytes(StandardCharsets.UTF_8);
+
+			BinaryCodec.writeFrame(out, BinaryCodec.FRAME_JSON, request, 0, request.length);
+			out.flush();
+			assertEquals(BinaryCodec.FRAME_JSON, BinaryCodec.readFrame(in).getType());
+			count = 0;
+
+			BinaryCodec.Frame frame;
+
+			while ((frame = BinaryCodec.readFrame(in)).getType() == BinaryCodec.FRAME_ENTRIES) {
+				ByteArrayInputStream payload = new ByteArrayInputStream(frame.getPayload());
+
+				assertEquals(0L, BinaryCodec.readVarint(payload));
+				count += new BinaryCodec().read(payload).size();
+			}
+			assertEquals(NUM_FILES, count);
+			reply = (JSONObject) parser.parse(new String(frame.getPayload(), StandardCharsets.UTF_8));
+			assertEquals(3L, reply.get("batches"));
+		}
+	}
+
+	@Test
+	public void testSlowReaders() throws Exception {
+		File big = new File(dir, "big");
+		StringBuilder batch = new StringBuilder("{\"directories\":[");
+
+		big.mkdir();
+		for (int i = 0; i < 1000; i++) {
+			new File(big, "a_rather_long_file_name_to_fill_the_listing_" + i).createNewFile();
+		}
+		for (int i = 0; i < 200; i++) {
+			batch.append(i > 0 ? ",\"" : "\"").append(big.getPath()).append('"');
+		}
+		batch.append("]}\n");
+
+		List<Socket> slow = new ArrayList<>();
+
+		try {
+			// Far more than the socket buffers hold, to each of as many clients as there are workers, read by none.
+			for (int i = 0; i < 2; i++) {
+				Socket socket = new Socket("localhost", server.getPort());
+				BufferedReader in = reader(socket);
+
+				slow.add(socket);
+				assertNotNull(in.readLine());
+				send(socket.getOutputStream(), "{\"directory\":\"" + big.getPath() + "\"}\n");
+				in.readLine();
+				send(socket.getOutputStream(), batch.toString());
+			}
+			Thread.sleep(500);
+
+			try (Socket socket = new Socket("localhost", server.getPort())) {
+				BufferedReader in = reader(socket);
+
+				// Answered although both workers have replies they can't yet send.
+				socket.setSoTimeout(5000);
+				assertNotNull(in.readLine());
+				send(socket.getOutputStream(), "{\"command\":\"ping\"}\n");
+				assertEquals("{\"command\":\"pong\"}", in.readLine());
+			}
+
+			// And the rest of a stopped batch follows once it is read.
+			BufferedReader in = reader(slow.get(0));
+			int replies = 0;
+			String line;
+
+			slow.get(0).setSoTimeout(10000);
+			while (!(line = in.readLine()).contains("\"failed\":")) {
+				assertTrue(line.contains("\"path\":"));
+				replies++;
+			}
+			assertEquals(200, replies);
+		} finally {
+			for (Socket socket : slow) {
+				socket.close();
+			}
+		}
+	}
+
+	@Test
+	public void testManyConnections() throws Exception {
+		List<Socket> sockets = new ArrayList<>();
+
+		try {
+			for (int i = 0; i < 200; i++) {
+				Socket socket = new Socket("localhost", server.getPort());
+
+				sockets.add(socket);
+				assertEquals("{\"command\":\"hello\"}", reader(socket).readLine());
+			}
+			for (Socket socket : sockets) {
+				send(socket.getOutputStream(), "{\"command\":\"bye\"}\n");
+			}
+			for (Socket socket : sockets) {
+				assertEquals("{\"command\":\"bye\"}", readLine(socket.getInputStream()));
+			}
+		} finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+
+	@Test
+	public void testBadMessage() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			BufferedReader in = reader(socket);
+
+			assertNotNull(in.readLine());
+			send(socket.getOutputStream(), "not json\n");
+			assertNull(in.readLine());
+		}
+	}
+
+	@Test
+	public void testBadTypes() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			BufferedReader in = reader(socket);
+			OutputStream out = socket.getOutputStream();
+
+			// Answered with an exception, never left hanging.
+			socket.setSoTimeout(5000);
+			assertNotNull(in.readLine());
+			send(out, "{\"directory\":5}\n");
+			assertEquals("{\"exception\":\"Bad directory: 5\"}", in.readLine());
+			send(out, "{\"directory\":\"" + dir.getPath() + "\",\"since\":\"1\"}\n");
+			assertEquals("{\"exception\":\"Bad since: 1\"}", in.readLine());
+
+			send(out, "{\"directory\":\"" + dir.getPath() + "\",\"limit\":\"2\",\"id\":3}\n");
+
+			JSONObject reply = (JSONObject) new JSONParser().parse(in.readLine());
+
+			assertEquals("Bad limit: 2", reply.get("exception"));
+			assertEquals(3L, reply.get("id"));
+
+			// Not a command it knows, so an empty reply as for any other.
+			send(out, "{\"command\":5}\n{\"command\":\"bye\"}\n");
+			assertEquals("", in.readLine());
+			assertEquals("{\"command\":\"bye\"}", in.readLine());
+		}
+	}
+
+	private static BufferedReader reader(Socket socket) throws Exception {
+		return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+	}
+
+	private static void send(OutputStream out, String message) throws Exception {
+		out.write(message.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	/*
+	 * Read a line a byte at a time, so nothing after it is read.
+	 */
+	private static String readLine(InputStream in) throws Exception {
+		StringBuilder line = new StringBuilder();
+
+		for (int b = in.read(); b != '\n'; b = in.read()) {
+			assertTrue(b >= 0);
+			line.append((char) b);
+		}
+		return line.toString();
+	}
+
+	private static String directory(String reply) throws Exception {
+		return ((JSONObject) ((JSONObject) new JSONParser().parse(reply)).get("directory")).toJSONString();
+	}
+}
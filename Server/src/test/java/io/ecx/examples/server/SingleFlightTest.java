@@ -0,0 +1,127 @@
+package io.ecx.examples.server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SingleFlightTest {
+	private static final long TIMEOUT = 5000;
+	private static final int THREADS = 8;
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testShared() throws Exception {
+		SingleFlight<String, String> flights = new SingleFlight<>(TIMEOUT);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger calls = new AtomicInteger();
+		List<Future<String>> results = new ArrayList<>();
+
+		for (int i = 0; i < THREADS; i++) {
+			results.add(executor.submit(() -> flights.run("dir", () -> {
+				calls.incrementAndGet();
+				await(release);
+				return "listing " + calls.get();
+			})));
+		}
+		// Let them all arrive while the first call is held up.
+		while (flights.getJoined() < THREADS - 1) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+		for (Future<String> result : results) {
+			assertEquals("listing 1", result.get(TIMEOUT, TimeUnit.MILLISECONDS));
+		}
+		assertEquals(1, calls.get());
+		assertEquals(0, flights.size());
+
+		// Once it's done the next call runs afresh.
+		assertEquals("again", flights.run("dir", () -> "again"));
+	}
+
+	@Test
+	public void testException() throws Exception {
+		SingleFlight<String, String> flights = new SingleFlight<>(TIMEOUT);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Future<String> first = executor.submit(() -> flights.run("dir", () -> {
+			started.countDown();
+			await(release);
+			throw new NullPointerException("No such directory");
+		}));
+
+		// The second has to join the first, not run on its own before the first has started.
+		await(started);
+		Future<String> second = executor.submit(() -> flights.run("dir", () -> "not called"));
+
+		while (flights.getJoined() < 1) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+		for (Future<String> result : Arrays.asList(first, second)) {
+			try {
+				result.get(TIMEOUT, TimeUnit.MILLISECONDS);
+				fail("No exception");
+			} catch (ExecutionException e) {
+				assertEquals("No such directory", e.getCause().getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		SingleFlight<String, String> flights = new SingleFlight<>(50);
+		CountDownLatch release = new CountDownLatch(1);
+		Future<String> stuck = executor.submit(() -> flights.run("dir", () -> {
+			await(release);
+			return "late";
+		}));
+
+		while (flights.size() < 1) {
+			Thread.sleep(1);
+		}
+		try {
+			flights.run("dir", () -> "not called");
+			fail("Waited past the timeout");
+		} catch (OverloadedException e) {
+		}
+		// The stuck call is forgotten, the next one runs.
+		assertEquals("fresh", flights.run("dir", () -> "fresh"));
+		release.countDown();
+		assertEquals("late", stuck.get(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	@Test(expected = IOException.class)
+	public void testIOException() throws Exception {
+		new SingleFlight<String, String>(TIMEOUT).run("dir", () -> {
+			throw new IOException("Failed");
+		});
+	}
+
+	private static void await(CountDownLatch latch) throws IOException {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+}